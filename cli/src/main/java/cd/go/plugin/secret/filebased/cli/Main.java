@@ -41,6 +41,7 @@ public class Main {
         RemoveSecretArgs removeSecretArgs = new RemoveSecretArgs();
         ShowSecretArgs showSecretArgs = new ShowSecretArgs();
         ShowAllSecretKeysArgs keysArgs = new ShowAllSecretKeysArgs();
+        CompactArgs compactArgs = new CompactArgs();
 
         JCommander cmd = JCommander.newBuilder()
                 .addObject(rootArgs)
@@ -49,6 +50,7 @@ public class Main {
                 .addCommand(removeSecretArgs)
                 .addCommand(showSecretArgs)
                 .addCommand(keysArgs)
+                .addCommand(compactArgs)
                 .build();
 
         String parsedCommand = null;
@@ -77,6 +79,9 @@ public class Main {
                 case "keys":
                     keysArgs.execute(exitter);
                     break;
+                case "compact":
+                    compactArgs.execute(exitter);
+                    break;
                 default:
                     throw new UnsupportedOperationException(parsedCommand);
             }
@@ -16,9 +16,10 @@
 
 package cd.go.plugin.secret.filebased.cli.args;
 
-import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -30,10 +31,15 @@ public class AddSecretArgs extends HasNameArgs {
     @Parameter(names = {"--value", "-v"}, required = true, description = "The value of the secret.", password = true)
     public String secret;
 
+    @ParametersDelegate
+    public DatabaseFormatArgs formatArgs = new DatabaseFormatArgs();
+
     public void execute(Consumer<Integer> exitter) throws IOException, GeneralSecurityException {
-        SecretsDatabase.readFrom(databaseFile)
-                .addSecret(key, secret)
-                .saveTo(databaseFile);
+        if (databaseFile.isDirectory()) {
+            new SecretsDirectory(databaseFile).addSecret(key, secret);
+        } else {
+            formatArgs.saveTo(readSecretsDatabase().addSecret(key, secret), secretFile);
+        }
 
         System.err.println("Added secret named " + key + ".");
     }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.cli.args;
+
+import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import com.beust.jcommander.Parameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+@Parameters(commandDescription = "Rewrites the secret database file with all the changes appended to it applied.", commandNames = "compact")
+public class CompactArgs extends DatabaseFileArgs {
+    public void execute(Consumer<Integer> exitter) throws IOException {
+        SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+        List<File> files = new ArrayList<>();
+        if (secretsDatabase.isSharded()) {
+            for (int shard = 0; shard < secretsDatabase.getShards(); shard++) {
+                files.add(secretsDatabase.shardFile(databaseFile, shard));
+            }
+        } else {
+            files.add(databaseFile);
+        }
+
+        boolean compacted = false;
+        for (File file : files) {
+            SecretsDatabase journaled = file == databaseFile ? secretsDatabase : SecretsDatabase.readFrom(file);
+            if (journaled.isJournaled()) {
+                journaled.compact(file);
+                compacted = true;
+            }
+        }
+
+        if (compacted) {
+            System.err.println("Compacted the secrets database file.");
+        } else {
+            System.err.println("The secrets database file is not journaled, there is nothing to compact.");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.cli.args;
+
+import cd.go.plugin.secret.filebased.db.DatabaseFormat;
+import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import com.beust.jcommander.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DatabaseFormatArgs {
+    @Parameter(names = {"--format"}, description = "The format to write the secret database file in. Defaults to the format it is already in, or JSON for a new file.")
+    public DatabaseFormat format;
+
+    @Parameter(names = {"--journal"}, arity = 1, description = "Whether to append changes to the end of the secret database file, rather than rewrite all of it. Defaults to what the file already does, or false for a new file.")
+    public Boolean journal;
+
+    public void saveTo(SecretsDatabase secretsDatabase, File databaseFile) throws IOException {
+        secretsDatabase.saveTo(databaseFile,
+                format == null ? secretsDatabase.getFormat() : format,
+                journal == null ? secretsDatabase.isJournaled() : journal);
+    }
+}
@@ -16,9 +16,30 @@
 
 package cd.go.plugin.secret.filebased.cli.args;
 
+import cd.go.plugin.secret.filebased.db.SecretsDatabase;
 import com.beust.jcommander.Parameter;
 
+import java.io.File;
+import java.io.IOException;
+
 public abstract class HasNameArgs extends DatabaseFileArgs {
     @Parameter(names = {"--name", "-n"}, required = true, description = "The name of the secret.")
     public String key;
+
+    // the file the secret is in, as found by readSecretsDatabase()
+    protected File secretFile;
+
+    /**
+     * Reads the database the secret is in, which is the shard it belongs in if the file is the manifest of a sharded
+     * database, so that only that shard is read and written.
+     */
+    protected SecretsDatabase readSecretsDatabase() throws IOException {
+        SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+        if (!secretsDatabase.isSharded()) {
+            secretFile = databaseFile;
+            return secretsDatabase;
+        }
+        secretFile = secretsDatabase.shardFile(databaseFile, secretsDatabase.shardOf(key));
+        return SecretsDatabase.readFrom(secretFile);
+    }
 }
@@ -16,19 +16,41 @@
 
 package cd.go.plugin.secret.filebased.cli.args;
 
+import cd.go.plugin.secret.filebased.db.DatabaseFormat;
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
+import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.util.function.Consumer;
 
 @Parameters(commandDescription = "Initialize the secret database file. Should be run before any other commands as it generates secrets database file used by other commands.", commandNames = "init")
 public class InitArgs extends DatabaseFileArgs {
+    @ParametersDelegate
+    public DatabaseFormatArgs formatArgs = new DatabaseFormatArgs();
+
+    @Parameter(names = {"--shards"}, description = "Spread the secrets across this many files, named after the secret database file, which then only lists them. Changing a secret only rewrites the file it is in.")
+    public Integer shards;
+
+    @Parameter(names = {"--directory"}, description = "Keep each secret in a file of its own, in a directory at the given path, like mounted Kubernetes secrets.")
+    public boolean directory;
+
     public void execute(Consumer<Integer> exitter) throws NoSuchAlgorithmException, IOException {
-        Files.writeString(databaseFile.toPath(), new SecretsDatabase().toJSON(), StandardCharsets.UTF_8);
+        if (directory) {
+            SecretsDirectory.init(databaseFile);
+        } else if (shards == null) {
+            formatArgs.saveTo(new SecretsDatabase(), databaseFile);
+        } else {
+            SecretsDatabase manifest = SecretsDatabase.sharded(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                formatArgs.saveTo(manifest.newShard(), manifest.shardFile(databaseFile, shard));
+            }
+            // last, so that the shards are all there once the manifest is
+            manifest.saveTo(databaseFile, DatabaseFormat.JSON, false);
+        }
         System.err.println("Initialized secret database file in " + databaseFile);
     }
 }
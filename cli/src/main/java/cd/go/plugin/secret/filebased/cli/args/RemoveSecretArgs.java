@@ -18,7 +18,9 @@ package cd.go.plugin.secret.filebased.cli.args;
 
 import cd.go.plugin.secret.filebased.db.BadSecretException;
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -26,13 +28,27 @@ import java.util.function.Consumer;
 
 @Parameters(commandDescription = "Removes given secret.", commandNames = "remove")
 public class RemoveSecretArgs extends HasNameArgs {
+    @ParametersDelegate
+    public DatabaseFormatArgs formatArgs = new DatabaseFormatArgs();
+
     public void execute(Consumer<Integer> exitter) throws IOException, BadSecretException, GeneralSecurityException {
-        SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+        if (databaseFile.isDirectory()) {
+            printRemoved(new SecretsDirectory(databaseFile).removeSecret(key));
+            return;
+        }
+
+        SecretsDatabase secretsDatabase = readSecretsDatabase();
 
         if (secretsDatabase.getSecret(key) != null) {
-            secretsDatabase
-                    .removeSecret(key)
-                    .saveTo(databaseFile);
+            formatArgs.saveTo(secretsDatabase.removeSecret(key), secretFile);
+            printRemoved(true);
+        } else {
+            printRemoved(false);
+        }
+    }
+
+    private void printRemoved(boolean removed) {
+        if (removed) {
             System.err.println("Removed secret named " + key + ".");
         } else {
             System.err.println("Secret named " + key + " was not found.");
@@ -18,18 +18,32 @@ package cd.go.plugin.secret.filebased.cli.args;
 
 import cd.go.plugin.secret.filebased.db.BadSecretException;
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import com.beust.jcommander.Parameters;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.function.Consumer;
 
 @Parameters(commandDescription = "Returns all secret keys.", commandNames = "keys")
 public class ShowAllSecretKeysArgs extends DatabaseFileArgs {
     public void execute(Consumer<Integer> exitter) throws IOException, BadSecretException, GeneralSecurityException {
-        Set<String> secretKeys = SecretsDatabase.readFrom(databaseFile).getAllSecretKeys();
+        Set<String> secretKeys;
+        if (databaseFile.isDirectory()) {
+            secretKeys = new SecretsDirectory(databaseFile).getAllSecretKeys();
+        } else {
+            SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+            secretKeys = secretsDatabase.getAllSecretKeys();
+            if (secretsDatabase.isSharded()) {
+                secretKeys = new LinkedHashSet<>();
+                for (int shard = 0; shard < secretsDatabase.getShards(); shard++) {
+                    secretKeys.addAll(SecretsDatabase.readFrom(secretsDatabase.shardFile(databaseFile, shard)).getAllSecretKeys());
+                }
+            }
+        }
 
         if (!secretKeys.isEmpty()) {
             System.out.println(secretKeys);
@@ -17,7 +17,7 @@
 package cd.go.plugin.secret.filebased.cli.args;
 
 import cd.go.plugin.secret.filebased.db.BadSecretException;
-import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import com.beust.jcommander.Parameters;
 
 import java.io.IOException;
@@ -29,7 +29,7 @@ import java.util.function.Consumer;
 @Parameters(commandDescription = "Returns value for given secret.", commandNames = "show")
 public class ShowSecretArgs extends HasNameArgs {
     public void execute(Consumer<Integer> exitter) throws IOException, BadSecretException, GeneralSecurityException {
-        String secret = SecretsDatabase.readFrom(databaseFile).getSecret(key);
+        String secret = databaseFile.isDirectory() ? new SecretsDirectory(databaseFile).getSecret(key) : readSecretsDatabase().getSecret(key);
 
         if (secret != null) {
             System.out.println(secret);
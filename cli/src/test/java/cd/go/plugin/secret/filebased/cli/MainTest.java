@@ -16,7 +16,9 @@
 
 package cd.go.plugin.secret.filebased.cli;
 
+import cd.go.plugin.secret.filebased.db.DatabaseFormat;
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import cd.go.plugin.secret.filebased.db.Util;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
@@ -24,6 +26,7 @@ import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.UUID;
 import java.util.function.Consumer;
@@ -77,6 +80,62 @@ class MainTest {
                 verifyNoMoreInteractions(dummyExitter);
             });
         }
+
+        @Test
+        void shouldInitializeSecretsDatabaseInBinaryFormat(@TempDir Path tempDirectory) throws Exception {
+            File databaseFile = new File(tempDirectory.toFile(), UUID.randomUUID().toString().substring(0, 8));
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("init", "-f", databaseFile.getAbsolutePath(), "--format", "binary").run(dummyExitter);
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            assertThat(SecretsDatabase.readFrom(databaseFile).getFormat()).isEqualTo(DatabaseFormat.BINARY);
+        }
+
+        @Test
+        void shouldInitializeDirectoryOfSecrets(@TempDir Path tempDirectory) throws Exception {
+            File directory = new File(tempDirectory.toFile(), "secrets");
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("init", "-f", directory.getAbsolutePath(), "--directory").run(dummyExitter);
+                new Main("add", "-f", directory.getAbsolutePath(), "-n", "password", "-v", "p@ssw0rd").run(dummyExitter);
+                new Main("add", "-f", directory.getAbsolutePath(), "-n", "username", "-v", "admin").run(dummyExitter);
+                new Main("remove", "-f", directory.getAbsolutePath(), "-n", "username").run(dummyExitter);
+                new Main("show", "-f", directory.getAbsolutePath(), "-n", "password").run(dummyExitter);
+                assertThat(out.toString()).isEqualToIgnoringNewLines("p@ssw0rd");
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            assertThat(new File(directory, SecretsDirectory.KEY_FILE_NAME)).exists();
+            assertThat(new File(directory, "password")).exists();
+            assertThat(new File(directory, "username")).doesNotExist();
+        }
+
+        @Test
+        void shouldInitializeShardedSecretsDatabase(@TempDir Path tempDirectory) throws Exception {
+            File databaseFile = new File(tempDirectory.toFile(), UUID.randomUUID().toString().substring(0, 8));
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("init", "-f", databaseFile.getAbsolutePath(), "--shards", "4", "--format", "binary").run(dummyExitter);
+                new Main("add", "-f", databaseFile.getAbsolutePath(), "-n", "password", "-v", "p@ssw0rd").run(dummyExitter);
+                new Main("add", "-f", databaseFile.getAbsolutePath(), "-n", "username", "-v", "admin").run(dummyExitter);
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            SecretsDatabase manifest = SecretsDatabase.readFrom(databaseFile);
+            assertThat(manifest.getShards()).isEqualTo(4);
+            File shardFile = manifest.shardFile(databaseFile, manifest.shardOf("password"));
+            assertThat(SecretsDatabase.readFrom(shardFile).getFormat()).isEqualTo(DatabaseFormat.BINARY);
+            assertThat(SecretsDatabase.readFrom(shardFile).getSecret("password")).isEqualTo("p@ssw0rd");
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("keys", "-f", databaseFile.getAbsolutePath()).run(dummyExitter);
+                new Main("show", "-f", databaseFile.getAbsolutePath(), "-n", "username").run(dummyExitter);
+                assertThat(out.toString()).contains("password").contains("username").contains("admin");
+                verifyNoMoreInteractions(dummyExitter);
+            });
+        }
     }
 
     @Nested
@@ -127,6 +186,38 @@ class MainTest {
             assertThat(SecretsDatabase.readFrom(databaseFile).getSecret("ssh-key")).isEqualTo("some-ssh-key");
             assertThat(SecretsDatabase.readFrom(databaseFile).getSecret("new-ssh-key")).isEqualTo("foobar-key");
         }
+
+        @Test
+        void shouldWriteTheSecretsDatabaseInTheGivenFormat(@TempDir Path tempDirectory) throws Exception {
+            File databaseFile = new File(tempDirectory.toFile(), UUID.randomUUID().toString().substring(0, 8));
+            new SecretsDatabase().addSecret("ssh-key", "some-ssh-key").saveTo(databaseFile);
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("add", "-f", databaseFile.getAbsolutePath(), "-n", "new-ssh-key", "-v", "foobar-key", "--format", "compact_json").run(dummyExitter);
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+            assertThat(secretsDatabase.getFormat()).isEqualTo(DatabaseFormat.COMPACT_JSON);
+            assertThat(secretsDatabase.getSecret("new-ssh-key")).isEqualTo("foobar-key");
+        }
+
+        @Test
+        void shouldAppendToAJournaledSecretsDatabase(@TempDir Path tempDirectory) throws Exception {
+            File databaseFile = new File(tempDirectory.toFile(), UUID.randomUUID().toString().substring(0, 8));
+            new SecretsDatabase().addSecret("ssh-key", "some-ssh-key").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            long length = databaseFile.length();
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("add", "-f", databaseFile.getAbsolutePath(), "-n", "new-ssh-key", "-v", "foobar-key").run(dummyExitter);
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+            assertThat(secretsDatabase.isJournaled()).isTrue();
+            assertThat(secretsDatabase.getSecret("new-ssh-key")).isEqualTo("foobar-key");
+            assertThat(databaseFile.length()).isGreaterThan(length);
+        }
     }
 
     @Nested
@@ -258,4 +349,42 @@ class MainTest {
             });
         }
     }
+
+    @Nested
+    class Compact {
+        @Test
+        void shouldCompactAJournaledSecretsDatabase(@TempDir Path tempDirectory) throws Exception {
+            File databaseFile = new File(tempDirectory.toFile(), UUID.randomUUID().toString().substring(0, 8));
+            new SecretsDatabase().addSecret("ssh-key", "some-ssh-key").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            SecretsDatabase.readFrom(databaseFile).removeSecret("ssh-key").addSecret("new-ssh-key", "foobar-key").saveTo(databaseFile);
+            long length = databaseFile.length();
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("compact", "-f", databaseFile.getAbsolutePath()).run(dummyExitter);
+                assertThat(out.toString()).isEmpty();
+                assertThat(err.toString()).isEqualToIgnoringNewLines("Compacted the secrets database file.");
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+            assertThat(secretsDatabase.isJournaled()).isTrue();
+            assertThat(secretsDatabase.getAllSecretKeys()).containsExactly("new-ssh-key");
+            assertThat(databaseFile.length()).isLessThan(length);
+        }
+
+        @Test
+        void shouldNotCompactASecretsDatabaseThatIsNotJournaled(@TempDir Path tempDirectory) throws Exception {
+            File databaseFile = new File(tempDirectory.toFile(), UUID.randomUUID().toString().substring(0, 8));
+            new SecretsDatabase().addSecret("ssh-key", "some-ssh-key").saveTo(databaseFile);
+            String contents = Files.readString(databaseFile.toPath());
+
+            Util.withCapturedSysOut((out, err) -> {
+                new Main("compact", "-f", databaseFile.getAbsolutePath()).run(dummyExitter);
+                assertThat(err.toString()).isEqualToIgnoringNewLines("The secrets database file is not journaled, there is nothing to compact.");
+                verifyNoMoreInteractions(dummyExitter);
+            });
+
+            assertThat(Files.readString(databaseFile.toPath())).isEqualTo(contents);
+        }
+    }
 }
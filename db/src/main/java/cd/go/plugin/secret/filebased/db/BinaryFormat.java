@@ -0,0 +1,507 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * Reads and writes an indexed binary representation of a {@link SecretsDatabase}, in which a secret can be found
+ * without reading any of the others. All numbers are big-endian:
+ * <pre>
+ * header   magic (4 bytes), version (int), generation (long), checksum (int), count (int), number of index slots (int),
+ *          secret key length (int, -1 for none), secret key (UTF-8)
+ * index    an open addressing hash table, with a power of two number of slots that are each the hash code of a name
+ *          (int) and the offset of its entry from the start of the entries (int, -1 for an empty slot)
+ * entries  in the order the secrets were added, each a name length (int), name (UTF-8) and a value, which is either
+ *          AES (byte), IV length (byte), IV, cipher text length (int), cipher text
+ *          or, for values not written by {@link Cipher#encrypt(String, String)},
+ *          VERBATIM (byte), length (int, -1 for null), value (UTF-8)
+ * </pre>
+ */
+final class BinaryFormat {
+
+    private static final byte[] MAGIC = {(byte) 0x89, 'S', 'D', 'B'};
+
+    private static final int VERSION = 1;
+
+    private static final int GENERATION_OFFSET = 8;
+
+    private static final int CHECKSUM_OFFSET = 16;
+
+    private static final int COUNT_OFFSET = 20;
+
+    private static final int SLOTS_OFFSET = 24;
+
+    private static final int SECRET_KEY_OFFSET = 28;
+
+    private static final int SLOT_LENGTH = 8;
+
+    private static final int EMPTY_SLOT = -1;
+
+    // so that the hash code and the offset of every slot still fit in an array
+    private static final int MAX_SLOTS = 1 << 29;
+
+    private static final byte VERBATIM = 0;
+
+    private static final byte AES = 1;
+
+    private BinaryFormat() {
+    }
+
+    static boolean hasMagic(ByteBuffer prefix) {
+        return Util.startsWith(prefix, MAGIC);
+    }
+
+    static boolean hasMagic(FileChannel channel) throws IOException {
+        return Util.startsWith(channel, MAGIC);
+    }
+
+    static boolean hasMagic(InputStream in) throws IOException {
+        return Util.startsWith(in, MAGIC);
+    }
+
+    /**
+     * @return the header at the start of a binary database, or {@code null} if the prefix is too short to hold it
+     */
+    static DatabaseHeader readHeader(ByteBuffer prefix) {
+        if (prefix.limit() < COUNT_OFFSET || prefix.getInt(MAGIC.length) != VERSION) {
+            return null;
+        }
+        return new DatabaseHeader(prefix.getLong(GENERATION_OFFSET), formatChecksum(prefix.getInt(CHECKSUM_OFFSET)));
+    }
+
+    static SecretsDatabase read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Secrets database is too large: " + size + " bytes");
+        }
+        return read(Util.readFully(channel, 0, (int) size));
+    }
+
+    /**
+     * Reads the header and checks the shape of the index, leaving the secrets in the buffer until they are asked for.
+     */
+    static SecretsDatabase read(ByteBuffer buffer) throws IOException {
+        if (!hasMagic(buffer)) {
+            throw new IOException("Malformed secrets database: not a binary secrets database");
+        }
+        if (buffer.limit() < SECRET_KEY_OFFSET + 4) {
+            throw new IOException("Malformed secrets database: truncated header");
+        }
+        int version = buffer.getInt(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("Unsupported secrets database version " + version);
+        }
+
+        IndexedSecrets secrets = new IndexedSecrets(buffer);
+        return new SecretsDatabase(secrets.readSecretKey(), buffer.getLong(GENERATION_OFFSET),
+                formatChecksum(buffer.getInt(CHECKSUM_OFFSET)), secrets, DatabaseFormat.BINARY);
+    }
+
+    static void write(OutputStream out, long generation, String checksum, String secretKey, Map<String, String> secrets) throws IOException {
+        byte[] secretKeyBytes = secretKey == null ? null : secretKey.getBytes(StandardCharsets.UTF_8);
+        int count = secrets.size();
+        int slots = slotsFor(count);
+
+        // lay out the index first, as it is written before the entries it points at
+        int[] index = new int[slots * 2];
+        Arrays.fill(index, EMPTY_SLOT);
+        long offset = 0;
+        for (Map.Entry<String, String> secret : secrets.entrySet()) {
+            int hash = secret.getKey().hashCode();
+            int slot = mix(hash) & (slots - 1);
+            while (index[slot * 2 + 1] != EMPTY_SLOT) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            index[slot * 2] = hash;
+            index[slot * 2 + 1] = (int) offset;
+            offset += entryLength(secret.getKey(), secret.getValue());
+        }
+
+        long length = SECRET_KEY_OFFSET + 4 + (secretKeyBytes == null ? 0 : secretKeyBytes.length) + (long) slots * SLOT_LENGTH + offset;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Secrets database is too large to be written in the binary format: " + length + " bytes");
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(generation);
+        data.writeInt(Integer.parseUnsignedInt(checksum, 16));
+        data.writeInt(count);
+        data.writeInt(slots);
+        writeBytes(data, secretKeyBytes);
+        for (int value : index) {
+            data.writeInt(value);
+        }
+        for (Map.Entry<String, String> secret : secrets.entrySet()) {
+            writeBytes(data, secret.getKey().getBytes(StandardCharsets.UTF_8));
+            byte[][] aes = aesParts(secret.getValue());
+            if (aes != null) {
+                data.writeByte(AES);
+                data.writeByte(aes[0].length);
+                data.write(aes[0]);
+                writeBytes(data, aes[1]);
+            } else {
+                data.writeByte(VERBATIM);
+                writeBytes(data, secret.getValue() == null ? null : secret.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        data.flush();
+    }
+
+    private static long entryLength(String name, String value) {
+        long length = 4 + name.getBytes(StandardCharsets.UTF_8).length + 1;
+        byte[][] aes = aesParts(value);
+        if (aes != null) {
+            return length + 1 + aes[0].length + 4 + aes[1].length;
+        }
+        return length + 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void writeBytes(DataOutputStream data, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            data.writeInt(-1);
+        } else {
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    /**
+     * @return the IV and cipher text of a value written by {@link Cipher#encrypt(String, String)}, or {@code null} for
+     * anything that would not read back exactly as it was from them
+     */
+    private static byte[][] aesParts(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(":", -1);
+        if (parts.length != 3 || !"AES".equals(parts[0])) {
+            return null;
+        }
+        try {
+            byte[] iv = Base64.getDecoder().decode(parts[1]);
+            byte[] cipherText = Base64.getDecoder().decode(parts[2]);
+            if (iv.length > 0xff || !encode(iv).equals(parts[1]) || !encode(cipherText).equals(parts[2])) {
+                return null;
+            }
+            return new byte[][]{iv, cipherText};
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    // at most 3/4 full, so that lookups of missing names find an empty slot quickly
+    static int slotsFor(int count) {
+        long needed = (long) count + count / 3 + 1;
+        if (count < 0 || needed > MAX_SLOTS) {
+            throw new IllegalArgumentException("Cannot index " + count + " secrets");
+        }
+        int slots = 2;
+        while (slots < needed) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    // String.hashCode() differs mostly in its low bits, which are the ones used to pick a slot
+    static int mix(int hash) {
+        int mixed = hash * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+
+    private static String formatChecksum(int checksum) {
+        return String.format("%08x", checksum);
+    }
+
+    /**
+     * The secrets of a binary database, decoded from the buffer one at a time when they are looked up. Safe for
+     * concurrent use, as the buffer is only ever read at absolute positions.
+     */
+    static final class IndexedSecrets extends AbstractMap<String, String> implements EncodedSecrets {
+
+        private final ByteBuffer buffer;
+
+        private final int count;
+
+        private final int slots;
+
+        private final int indexStart;
+
+        private final int entriesStart;
+
+        // built from the hash codes in the index, so that missing secrets are not looked for in the buffer
+        private final NameFilter names;
+
+        private IndexedSecrets(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            this.count = buffer.getInt(COUNT_OFFSET);
+            this.slots = buffer.getInt(SLOTS_OFFSET);
+            int secretKeyLength = buffer.getInt(SECRET_KEY_OFFSET);
+            this.indexStart = SECRET_KEY_OFFSET + 4 + Math.max(secretKeyLength, 0);
+            long entriesStart = indexStart + (long) slots * SLOT_LENGTH;
+
+            // every lookup must be able to reach an empty slot
+            if (count < 0 || slots <= count || Integer.bitCount(slots) != 1 || secretKeyLength < -1 || entriesStart > buffer.limit()) {
+                throw new IOException("Malformed secrets database: bad index");
+            }
+            this.entriesStart = (int) entriesStart;
+
+            this.names = new NameFilter(count);
+            for (int slot = 0; slot < slots; slot++) {
+                int slotPosition = indexStart + slot * SLOT_LENGTH;
+                if (buffer.getInt(slotPosition + 4) != EMPTY_SLOT) {
+                    names.add(buffer.getInt(slotPosition));
+                }
+            }
+        }
+
+        long estimatedSize() {
+            return HeapSize.OBJECT + HeapSize.of(buffer) + names.estimatedSize();
+        }
+
+        private String readSecretKey() {
+            int length = buffer.getInt(SECRET_KEY_OFFSET);
+            return length < 0 ? null : readString(SECRET_KEY_OFFSET + 4, length);
+        }
+
+        @Override
+        public String get(Object key) {
+            int position = find(key);
+            return position < 0 ? null : valueOf(position);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new EntryIterator<>() {
+                        @Override
+                        String read(int position) {
+                            return readName(position);
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new EntryIterator<>() {
+                        @Override
+                        Entry<String, String> read(int position) {
+                            return new SimpleImmutableEntry<>(readName(position), readValue(skipName(position)));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * @return the position of the entry with the given name, or -1 if there is none
+         */
+        @Override
+        public int find(Object key) {
+            if (!(key instanceof String)) {
+                return -1;
+            }
+            String name = (String) key;
+            int hash = name.hashCode();
+            if (!names.mightContain(hash)) {
+                return -1;
+            }
+            ByteBuffer nameBytes = StandardCharsets.UTF_8.encode(name);
+            try {
+                int slot = mix(hash) & (slots - 1);
+                for (int probes = 0; probes < slots; probes++, slot = (slot + 1) & (slots - 1)) {
+                    int slotPosition = indexStart + slot * SLOT_LENGTH;
+                    int offset = buffer.getInt(slotPosition + 4);
+                    if (offset == EMPTY_SLOT) {
+                        return -1;
+                    }
+                    if (buffer.getInt(slotPosition) == hash) {
+                        int position = entriesStart + offset;
+                        int length = buffer.getInt(position);
+                        if (length == nameBytes.remaining() && buffer.slice(position + 4, length).equals(nameBytes)) {
+                            return position;
+                        }
+                    }
+                }
+                return -1;
+            } catch (IndexOutOfBoundsException e) {
+                throw malformed(e);
+            }
+        }
+
+        /**
+         * Decrypts the value of the entry at the given position from the IV and ciphertext in the buffer.
+         */
+        @Override
+        public String decrypt(int position, Cipher cipher) throws BadSecretException, GeneralSecurityException {
+            int valuePosition = skipName(position);
+            try {
+                if (buffer.get(valuePosition) == AES) {
+                    int ivLength = buffer.get(valuePosition + 1) & 0xff;
+                    int cipherTextPosition = valuePosition + 6 + ivLength;
+                    return cipher.decrypt(buffer, valuePosition + 2, ivLength, cipherTextPosition, buffer.getInt(cipherTextPosition - 4));
+                }
+            } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw malformed(e);
+            }
+            String encryptedValue = readValue(valuePosition);
+            return encryptedValue == null ? null : cipher.decrypt(encryptedValue);
+        }
+
+        @Override
+        public String valueOf(int position) {
+            return readValue(skipName(position));
+        }
+
+        // the values are compared as written, so that neither needs to be decoded
+        @Override
+        public boolean sameValue(int position, EncodedSecrets secrets, int otherPosition) {
+            if (!(secrets instanceof IndexedSecrets)) {
+                return EncodedSecrets.super.sameValue(position, secrets, otherPosition);
+            }
+            IndexedSecrets other = (IndexedSecrets) secrets;
+            int start = skipName(position);
+            int otherStart = other.skipName(otherPosition);
+            try {
+                int length = skipValue(start) - start;
+                return length == other.skipValue(otherStart) - otherStart
+                        && buffer.slice(start, length).equals(other.buffer.slice(otherStart, length));
+            } catch (IndexOutOfBoundsException e) {
+                throw malformed(e);
+            }
+        }
+
+        private String readName(int position) {
+            return readString(position + 4, buffer.getInt(position));
+        }
+
+        private int skipName(int position) {
+            return position + 4 + buffer.getInt(position);
+        }
+
+        private String readValue(int position) {
+            try {
+                if (buffer.get(position) == AES) {
+                    int ivLength = buffer.get(position + 1) & 0xff;
+                    int cipherTextLength = buffer.getInt(position + 2 + ivLength);
+                    return String.join(":", "AES", encode(readBytes(position + 2, ivLength)), encode(readBytes(position + 6 + ivLength, cipherTextLength)));
+                }
+                int length = buffer.getInt(position + 1);
+                return length < 0 ? null : readString(position + 5, length);
+            } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw malformed(e);
+            }
+        }
+
+        private int skipValue(int position) {
+            if (buffer.get(position) == AES) {
+                int ivLength = buffer.get(position + 1) & 0xff;
+                return position + 6 + ivLength + buffer.getInt(position + 2 + ivLength);
+            }
+            return position + 5 + Math.max(buffer.getInt(position + 1), 0);
+        }
+
+        private String readString(int position, int length) {
+            return new String(readBytes(position, length), StandardCharsets.UTF_8);
+        }
+
+        private byte[] readBytes(int position, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(position, bytes);
+            return bytes;
+        }
+
+        private static IllegalStateException malformed(RuntimeException e) {
+            return new IllegalStateException("Malformed secrets database: an entry points outside of the file", e);
+        }
+
+        private abstract class EntryIterator<T> implements Iterator<T> {
+
+            private int remaining = count;
+
+            private int position = entriesStart;
+
+            abstract T read(int position);
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    T next = read(position);
+                    position = skipValue(skipName(position));
+                    remaining--;
+                    return next;
+                } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+                    throw malformed(e);
+                }
+            }
+        }
+    }
+}
@@ -19,32 +19,48 @@ package cd.go.plugin.secret.filebased.db;
 import javax.crypto.KeyGenerator;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Base64;
 
-import static cd.go.plugin.secret.filebased.db.Util.isBlank;
-
+/**
+ * Encrypts and decrypts secrets, as {@code AES:<iv>:<ciphertext>}, both Base64 encoded.
+ * <p>
+ * An instance is bound to one key, which is decoded once. Each thread keeps a {@link javax.crypto.Cipher} and buffers,
+ * which every instance initialises with its own key before using them, so that decrypting a secret allocates little
+ * more than the decrypted value itself, and no instance keeps an engine of its own alive in every thread that used it.
+ * The static methods do the same from scratch every time.
+ */
 public class Cipher {
-    public static String decrypt(String cipherKey, String encryptedValue) throws BadSecretException, GeneralSecurityException {
-        byte[] keyBytes = Base64.getDecoder().decode(cipherKey);
 
-        if (!canDecrypt(encryptedValue)) {
-            throw new BadSecretException("Bad cipher text");
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    private static final String PREFIX = "AES:";
+
+    private static final int[] BASE64 = new int[128];
+
+    static {
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = i;
         }
+    }
 
-        String[] splits = encryptedValue.split(":");
+    // one for each thread, however many instances there are, as every use initialises it with the key of the instance
+    private static final ThreadLocal<Engine> ENGINES = new ThreadLocal<>();
 
-        String encodedIV = splits[1];
-        String encodedCipherText = splits[2];
+    private final SecretKeySpec key;
 
-        byte[] initializationVector = Base64.getDecoder().decode(encodedIV);
-        javax.crypto.Cipher decryptCipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding");
-        decryptCipher.init(javax.crypto.Cipher.DECRYPT_MODE, createSecretKeySpec(keyBytes), new IvParameterSpec(initializationVector));
+    public Cipher(String cipherKey) {
+        this.key = createSecretKeySpec(Base64.getDecoder().decode(cipherKey));
+    }
 
-        byte[] decryptedBytes = decryptCipher.doFinal(Base64.getDecoder().decode(encodedCipherText));
-        return new String(decryptedBytes, StandardCharsets.UTF_8);
+    public static String decrypt(String cipherKey, String encryptedValue) throws BadSecretException, GeneralSecurityException {
+        return new Cipher(cipherKey).decrypt(encryptedValue, new Engine());
     }
 
     public static byte[] generateKey() throws NoSuchAlgorithmException {
@@ -54,18 +70,150 @@ public class Cipher {
     }
 
     public static String encrypt(String cipherKey, String value) throws GeneralSecurityException {
-        byte[] keyBytes = Base64.getDecoder().decode(cipherKey);
-        byte[] initializationVector = generateKey();
-        byte[] bytesToEncrypt = value.getBytes(StandardCharsets.UTF_8);
+        return new Cipher(cipherKey).encrypt(value, new Engine());
+    }
+
+    public String decrypt(String encryptedValue) throws BadSecretException, GeneralSecurityException {
+        return decrypt(encryptedValue, engine());
+    }
+
+    public String encrypt(String value) throws GeneralSecurityException {
+        return encrypt(value, engine());
+    }
+
+    /**
+     * Decrypts a secret whose IV and ciphertext were already decoded, see {@link #decode(String, byte[], int, int[])}.
+     */
+    String decrypt(byte[] data, int ivStart, int cipherTextStart, int end) throws GeneralSecurityException {
+        return decrypt(data, ivStart, cipherTextStart, end, engine());
+    }
+
+    /**
+     * Decrypts an IV and a ciphertext held at the given positions of a buffer, as they are in a binary database.
+     */
+    String decrypt(ByteBuffer data, int ivStart, int ivLength, int cipherTextStart, int cipherTextLength) throws GeneralSecurityException {
+        Engine engine = engine();
+        byte[] input = engine.input(ivLength + cipherTextLength);
+        data.get(ivStart, input, 0, ivLength);
+        data.get(cipherTextStart, input, ivLength, cipherTextLength);
+        return decrypt(input, 0, ivLength, ivLength + cipherTextLength, engine);
+    }
 
-        javax.crypto.Cipher encryptCipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding");
-        encryptCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, createSecretKeySpec(keyBytes), new IvParameterSpec(initializationVector));
+    private String decrypt(String encryptedValue, Engine engine) throws BadSecretException, GeneralSecurityException {
+        byte[] input = engine.input(maxDecodedLength(encryptedValue));
+        decode(encryptedValue, input, 0, engine.ends);
+        return decrypt(input, 0, engine.ends[0], engine.ends[1], engine);
+    }
 
-        byte[] encryptedBytes = encryptCipher.doFinal(bytesToEncrypt);
+    private String decrypt(byte[] data, int ivStart, int cipherTextStart, int end, Engine engine) throws GeneralSecurityException {
+        engine.cipher.init(javax.crypto.Cipher.DECRYPT_MODE, key, new IvParameterSpec(data, ivStart, cipherTextStart - ivStart));
+        byte[] output = engine.output(engine.cipher.getOutputSize(end - cipherTextStart));
+        int length = engine.cipher.doFinal(data, cipherTextStart, end - cipherTextStart, output, 0);
+        try {
+            return new String(output, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            // so that the plaintext is not left lying around in the buffer
+            Arrays.fill(output, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * @return how many bytes at most the IV and ciphertext of the encrypted value take up once decoded
+     */
+    static int maxDecodedLength(String encryptedValue) {
+        return encryptedValue == null ? 0 : decodedLength(encryptedValue.length());
+    }
+
+    /**
+     * Decodes the IV and the ciphertext of an encrypted value one after the other, found without splitting the value up.
+     *
+     * @param buffer has room for {@link #maxDecodedLength(String)} bytes from the offset
+     * @param ends   is told where the IV ends and the ciphertext starts, and where that ends
+     */
+    static void decode(String encryptedValue, byte[] buffer, int offset, int[] ends) throws BadSecretException {
+        // AES:<iv>:<ciphertext>
+        int end = encryptedValue == null ? 0 : encryptedValue.length();
+        while (end > 0 && encryptedValue.charAt(end - 1) == ':') {
+            end--;
+        }
+        if (end == 0 || !encryptedValue.startsWith(PREFIX)) {
+            throw new BadSecretException("Bad cipher text");
+        }
+        int separator = encryptedValue.indexOf(':', PREFIX.length());
+        if (separator < 0 || separator >= end || encryptedValue.lastIndexOf(':', end - 1) != separator
+                || isBlank(encryptedValue, PREFIX.length(), separator) || isBlank(encryptedValue, separator + 1, end)) {
+            throw new BadSecretException("Bad cipher text");
+        }
+
+        ends[0] = offset + decode(encryptedValue, PREFIX.length(), separator, buffer, offset);
+        ends[1] = ends[0] + decode(encryptedValue, separator + 1, end, buffer, ends[0]);
+    }
+
+    /**
+     * @return the encrypted value, as {@link #encrypt(String)} writes it, of an IV and ciphertext
+     */
+    static String encode(byte[] data, int ivStart, int cipherTextStart, int end) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + new String(encoder.encode(Arrays.copyOfRange(data, ivStart, cipherTextStart)), StandardCharsets.ISO_8859_1)
+                + ":" + new String(encoder.encode(Arrays.copyOfRange(data, cipherTextStart, end)), StandardCharsets.ISO_8859_1);
+    }
+
+    private String encrypt(String value, Engine engine) throws GeneralSecurityException {
+        byte[] initializationVector = generateKey();
+        engine.cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, key, new IvParameterSpec(initializationVector));
+
+        byte[] encryptedBytes = engine.cipher.doFinal(value.getBytes(StandardCharsets.UTF_8));
 
         return String.join(":", "AES", encode(initializationVector), encode(encryptedBytes));
     }
 
+    private Engine engine() throws GeneralSecurityException {
+        Engine engine = ENGINES.get();
+        if (engine == null) {
+            engine = new Engine();
+            ENGINES.set(engine);
+        }
+        return engine;
+    }
+
+    // like Util.isBlank, of part of the text
+    private static boolean isBlank(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int decodedLength(int encodedLength) {
+        return (encodedLength + 3) / 4 * 3;
+    }
+
+    // decodes the Base64 between start and end into the buffer, from the given offset, returning how many bytes it took
+    private static int decode(String encoded, int start, int end, byte[] buffer, int offset) throws BadSecretException {
+        while (end > start && encoded.charAt(end - 1) == '=') {
+            end--;
+        }
+        int position = offset;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = start; i < end; i++) {
+            char c = encoded.charAt(i);
+            int sextet = c < BASE64.length ? BASE64[c] : -1;
+            if (sextet < 0) {
+                throw new BadSecretException("Bad cipher text");
+            }
+            bits = bits << 6 | sextet;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                buffer[position++] = (byte) (bits >> bitCount);
+            }
+        }
+        return position - offset;
+    }
+
     private static String encode(byte[] initializationVector) {
         return Base64.getEncoder().encodeToString(initializationVector);
     }
@@ -74,11 +222,35 @@ public class Cipher {
         return new SecretKeySpec(key, "AES");
     }
 
-    private static boolean canDecrypt(String cipherText) {
-        if (isBlank(cipherText)) {
-            return false;
+    /**
+     * What a thread needs to encrypt and decrypt, which is costly to get and not safe to share.
+     */
+    private static final class Engine {
+
+        private final javax.crypto.Cipher cipher;
+
+        private byte[] input = new byte[256];
+
+        private byte[] output = new byte[256];
+
+        private final int[] ends = new int[2];
+
+        private Engine() throws GeneralSecurityException {
+            this.cipher = javax.crypto.Cipher.getInstance(TRANSFORMATION);
+        }
+
+        private byte[] input(int length) {
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            return input;
+        }
+
+        private byte[] output(int length) {
+            if (output.length < length) {
+                output = new byte[Math.max(length, output.length * 2)];
+            }
+            return output;
         }
-        String[] splits = cipherText.split(":");
-        return splits.length == 3 && "AES".equals(splits[0]) && (!isBlank(splits[1])) && (!isBlank(splits[2]));
     }
 }
@@ -14,21 +14,17 @@
  * limitations under the License.
  */
 
-package cd.go.plugin.secret.filebased.util;
+package cd.go.plugin.secret.filebased.db;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
-
-public class LRUCache<K, V> extends LinkedHashMap<K, V> {
-
-    private int cacheSize;
-
-    public LRUCache(int cacheSize) {
-        super(16, 0.75f, true);
-        this.cacheSize = cacheSize;
-    }
-
-    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        return size() >= cacheSize;
-    }
+/**
+ * The ways a {@link SecretsDatabase} can be written to disk. All of them can be read back by
+ * {@link SecretsDatabase#readFrom(java.io.File)}.
+ */
+public enum DatabaseFormat {
+    /** pretty printed JSON, the default */
+    JSON,
+    /** JSON without any whitespace, smaller and so quicker to read */
+    COMPACT_JSON,
+    /** an indexed binary format, in which a secret can be found without reading the others */
+    BINARY
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * The generation and checksum written at the top of a secrets database file, which identify its contents without
+ * having to read all of it.
+ */
+public final class DatabaseHeader {
+
+    // the header is written before anything else, so this is plenty
+    static final int MAX_LENGTH = 512;
+
+    private final long generation;
+
+    private final String checksum;
+
+    DatabaseHeader(long generation, String checksum) {
+        this.generation = generation;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Reads the header from the first few hundred bytes of a file, without moving the position of the channel.
+     *
+     * @return the header, or {@code null} if the file does not start with one
+     */
+    public static DatabaseHeader read(FileChannel channel) throws IOException {
+        ByteBuffer prefix = Util.readFully(channel, 0, MAX_LENGTH);
+        if (JournalFormat.hasMagic(prefix)) {
+            // changes are appended to the journal without touching the header of its base
+            return null;
+        }
+        if (BinaryFormat.hasMagic(prefix)) {
+            return BinaryFormat.readHeader(prefix);
+        }
+        return parse(StandardCharsets.UTF_8.decode(prefix).toString());
+    }
+
+    static DatabaseHeader parse(String prefix) {
+        Long generation = null;
+        String checksum = null;
+
+        try (JsonReader reader = new JsonReader(new StringReader(prefix))) {
+            reader.beginObject();
+            while (reader.hasNext() && (generation == null || checksum == null)) {
+                switch (reader.nextName()) {
+                    case "generation":
+                        generation = reader.nextLong();
+                        break;
+                    case "checksum":
+                        checksum = reader.peek() == JsonToken.NULL ? null : reader.nextString();
+                        break;
+                    case "secrets":
+                        // the header always comes before the secrets
+                        return null;
+                    default:
+                        reader.skipValue();
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // the prefix ends in the middle of a value, or this is not a secrets database at all
+        }
+
+        if (generation == null || checksum == null) {
+            return null;
+        }
+        return new DatabaseHeader(generation, checksum);
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DatabaseHeader that = (DatabaseHeader) o;
+
+        return generation == that.generation && checksum.equals(that.checksum);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(generation, checksum);
+    }
+
+    @Override
+    public String toString() {
+        return "DatabaseHeader{generation=" + generation + ", checksum='" + checksum + "'}";
+    }
+}
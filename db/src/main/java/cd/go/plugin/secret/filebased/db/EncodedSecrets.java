@@ -0,0 +1,51 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Secrets whose encrypted values are kept in a form they can be decrypted from as they are, each found by the entry
+ * it is in, so that looking a secret up does not build its encrypted value as a string only to parse it again.
+ */
+interface EncodedSecrets extends Map<String, String> {
+
+    /**
+     * @return the entry of the secret with the given name, or -1 if there is none
+     */
+    int find(Object key);
+
+    /**
+     * Decrypts the value of an entry straight from what it is kept as.
+     */
+    String decrypt(int entry, Cipher cipher) throws BadSecretException, GeneralSecurityException;
+
+    /**
+     * @return the encrypted value of an entry, as it would be written in a JSON file
+     */
+    String valueOf(int entry);
+
+    /**
+     * @return whether an entry of these secrets and one of the given ones have the same encrypted value
+     */
+    default boolean sameValue(int entry, EncodedSecrets other, int otherEntry) {
+        return Objects.equals(valueOf(entry), other.valueOf(otherEntry));
+    }
+}
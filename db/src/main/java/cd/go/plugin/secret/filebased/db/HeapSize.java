@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Rough estimates of how much heap the objects a database is made of hold on to, assuming a 64-bit JVM with compressed
+ * references, and strings of ASCII characters. Good enough to tell a small database from a large one, not to account
+ * for every byte.
+ */
+final class HeapSize {
+
+    static final long OBJECT = 16;
+
+    static final long REFERENCE = 4;
+
+    static final long ARRAY = 16;
+
+    // a node of a hash map, along with its slot in the table
+    static final long MAP_ENTRY = 32 + REFERENCE * 2;
+
+    private HeapSize() {
+    }
+
+    static long of(String string) {
+        return string == null ? 0 : OBJECT + 8 + ARRAY + string.length();
+    }
+
+    // mapped files are not on the heap
+    static long of(ByteBuffer buffer) {
+        return buffer.isDirect() ? OBJECT + 32 : OBJECT + 32 + ARRAY + buffer.capacity();
+    }
+
+    static long of(int[] array) {
+        return ARRAY + 4L * array.length;
+    }
+
+    static long of(Map<String, String> secrets) {
+        if (secrets instanceof BinaryFormat.IndexedSecrets) {
+            return ((BinaryFormat.IndexedSecrets) secrets).estimatedSize();
+        }
+        if (secrets instanceof JsonIndex.IndexedSecrets) {
+            return ((JsonIndex.IndexedSecrets) secrets).estimatedSize();
+        }
+        if (secrets instanceof PackedSecrets) {
+            return ((PackedSecrets) secrets).estimatedSize();
+        }
+        if (secrets instanceof JournalFormat.JournaledSecrets) {
+            return ((JournalFormat.JournaledSecrets) secrets).estimatedSize();
+        }
+        long size = OBJECT * 2;
+        for (Map.Entry<String, String> secret : secrets.entrySet()) {
+            size += MAP_ENTRY + of(secret.getKey()) + of(secret.getValue());
+        }
+        return size;
+    }
+}
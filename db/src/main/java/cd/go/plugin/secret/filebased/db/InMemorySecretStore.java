@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps decrypted secrets on the heap, and nothing else. Nothing is read, parsed or decrypted on lookup, which makes it
+ * the baseline to compare the other stores against.
+ */
+public final class InMemorySecretStore implements SecretStore {
+
+    private final ConcurrentHashMap<String, String> secrets = new ConcurrentHashMap<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    public InMemorySecretStore() {
+    }
+
+    public InMemorySecretStore(Map<String, String> secrets) {
+        this.secrets.putAll(secrets);
+    }
+
+    /**
+     * @return a store holding all the secrets of the given store, decrypted
+     */
+    public static InMemorySecretStore copyOf(SecretStore secretStore) throws IOException {
+        InMemorySecretStore copy = new InMemorySecretStore(secretStore.getSecrets(secretStore.getAllSecretKeys()));
+        copy.generation.set(secretStore.getGeneration());
+        return copy;
+    }
+
+    public InMemorySecretStore addSecret(String name, String value) {
+        secrets.put(name, value);
+        generation.incrementAndGet();
+        return this;
+    }
+
+    public InMemorySecretStore removeSecret(String name) {
+        if (secrets.remove(name) != null) {
+            generation.incrementAndGet();
+        }
+        return this;
+    }
+
+    @Override
+    public String getSecret(String name) {
+        return secrets.get(name);
+    }
+
+    @Override
+    public Set<String> getAllSecretKeys() {
+        return Collections.unmodifiableSet(secrets.keySet());
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+}
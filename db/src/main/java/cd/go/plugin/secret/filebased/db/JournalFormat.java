@@ -0,0 +1,629 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and appends to a journaled secrets database, which is a base database in any of the other formats followed by
+ * records of the secrets that were added or removed since it was written. All numbers are big-endian:
+ * <pre>
+ * header   magic (4 bytes), version (int), id of the base (long), length of the base (long)
+ * base     a database in any other format
+ * records  each a payload length (int), CRC32C of the payload (int), and a payload that is either
+ *          SET (byte), name length (int), name (UTF-8), value length (int, -1 for null), value (UTF-8)
+ *          or REMOVE (byte), name length (int), name (UTF-8)
+ * </pre>
+ * Records are only ever appended, so a record that was cut short by a crash is simply ignored, and dropped by the next
+ * append. Rewriting the base gives it a new id, so that readers can tell whether the records they have already seen
+ * are still there.
+ */
+final class JournalFormat {
+
+    private static final byte[] MAGIC = {(byte) 0x89, 'S', 'D', 'J'};
+
+    private static final int VERSION = 1;
+
+    private static final int ID_OFFSET = 8;
+
+    private static final int BASE_LENGTH_OFFSET = 16;
+
+    static final int BASE_OFFSET = 24;
+
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private static final byte SET = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final long MIN_COMPACTION_THRESHOLD = 64 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private JournalFormat() {
+    }
+
+    static boolean hasMagic(ByteBuffer prefix) {
+        return Util.startsWith(prefix, MAGIC);
+    }
+
+    static boolean hasMagic(FileChannel channel) throws IOException {
+        return Util.startsWith(channel, MAGIC);
+    }
+
+    static boolean hasMagic(InputStream in) throws IOException {
+        return Util.startsWith(in, MAGIC);
+    }
+
+    /**
+     * Reads the base as a stream, and then the records after it.
+     */
+    static SecretsDatabase read(FileChannel channel) throws IOException {
+        Journal journal = readJournal(Util.readFully(channel, 0, BASE_OFFSET));
+        channel.position(BASE_OFFSET);
+        SecretsDatabase base = SecretsDatabase.readFrom(new BoundedInputStream(Channels.newInputStream(channel), journal.baseLength));
+        return replay(base, journal, readRecords(channel, journal.end));
+    }
+
+    /**
+     * Reads a whole journaled database from a buffer, viewing the base in place when asked to.
+     */
+    static SecretsDatabase read(ByteBuffer contents, boolean view) throws IOException {
+        Journal journal = readJournal(contents);
+        if (journal.end > contents.limit()) {
+            throw new IOException("Malformed secrets database: truncated base");
+        }
+        ByteBuffer base = contents.slice(BASE_OFFSET, (int) journal.baseLength);
+        ByteBuffer records = contents.slice((int) journal.end, contents.limit() - (int) journal.end);
+        if (view) {
+            return replay(SecretsDatabase.view(base), journal, records);
+        }
+        byte[] bytes = new byte[base.remaining()];
+        base.get(bytes);
+        return replay(SecretsDatabase.readFrom(new ByteArrayInputStream(bytes)), journal, records);
+    }
+
+    /**
+     * @return the database with the records appended since it was read applied to it, or {@code null} if the file
+     * does not hold the base it was read from anymore
+     */
+    static SecretsDatabase readAppended(SecretsDatabase secretsDatabase, Journal journal, FileChannel channel) throws IOException {
+        if (!journal.isBaseOf(Util.readFully(channel, 0, BASE_OFFSET)) || channel.size() < journal.end) {
+            return null;
+        }
+        return replay(secretsDatabase, journal, readRecords(channel, journal.end));
+    }
+
+    /**
+     * Appends records to the file, after dropping anything that follows the last complete record. Only the records
+     * appended since the journal was read are looked at, so appending takes the same time however large the file is.
+     *
+     * @return where the journal ends now, or {@code null} if the file does not hold the journal anymore, or if it
+     * should be compacted rather than appended to
+     */
+    static Journal append(Path path, Journal journal, List<byte[]> records) throws IOException {
+        try (FileChannel channel = Util.lock(path)) {
+            if (!journal.isBaseOf(Util.readFully(channel, 0, BASE_OFFSET)) || channel.size() < journal.end) {
+                return null;
+            }
+
+            // there may be records that were appended by someone else since, and must be kept
+            long end = journal.end + validLength(readRecords(channel, journal.end));
+            long length = records.stream().mapToLong(record -> record.length).sum();
+            if (end - BASE_OFFSET - journal.baseLength + length > compactionThreshold(journal)) {
+                return null;
+            }
+
+            channel.truncate(end);
+            for (byte[] record : records) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    end += channel.write(buffer, end);
+                }
+            }
+            channel.force(false);
+            return new Journal(journal.id, journal.baseLength, end);
+        }
+    }
+
+    /**
+     * Applies the records appended to the file since the journal was read to the secrets, and then the given records
+     * again, so that those still win over any made to the same secrets in the meantime.
+     *
+     * @return the secrets as they would be in the file with the given records appended to it, or {@code null} if the
+     * file does not hold the journal anymore
+     */
+    static Map<String, String> catchUp(Map<String, String> secrets, Journal journal, FileChannel channel, List<byte[]> records) throws IOException {
+        if (!journal.isBaseOf(Util.readFully(channel, 0, BASE_OFFSET)) || channel.size() < journal.end) {
+            return null;
+        }
+        ByteBuffer appended = readRecords(channel, journal.end);
+        if (recordLength(appended, 0) == 0) {
+            return secrets;
+        }
+        JournaledSecrets caughtUp = JournaledSecrets.of(secrets);
+        for (int position = 0, length; (length = apply(caughtUp, appended, position)) > 0; position += length) {
+            // apply every complete record
+        }
+        return apply(caughtUp, records);
+    }
+
+    /**
+     * @return the secrets with the given records applied to them
+     */
+    static Map<String, String> apply(Map<String, String> secrets, List<byte[]> records) {
+        JournaledSecrets applied = JournaledSecrets.of(secrets);
+        for (byte[] record : records) {
+            apply(applied, ByteBuffer.wrap(record), 0);
+        }
+        return applied;
+    }
+
+    /**
+     * Writes the header in front of a base that was just written, with a new id.
+     *
+     * @return the journal of the file, with no records yet
+     */
+    static Journal writeHeader(FileChannel channel, long baseLength) throws IOException {
+        Journal journal = new Journal(RANDOM.nextLong(), baseLength, BASE_OFFSET + baseLength);
+        ByteBuffer header = ByteBuffer.allocate(BASE_OFFSET);
+        header.put(MAGIC).putInt(VERSION).putLong(journal.id).putLong(journal.baseLength).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        return journal;
+    }
+
+    // compacting rewrites the base, so wait until about as much has been appended to it, to keep the cost of rewriting
+    // in proportion to the cost of appending
+    private static long compactionThreshold(Journal journal) {
+        return Math.max(MIN_COMPACTION_THRESHOLD, journal.baseLength);
+    }
+
+    static byte[] set(String name, String value) {
+        return record(SET, name, value);
+    }
+
+    static byte[] remove(String name) {
+        return record(REMOVE, name, null);
+    }
+
+    private static byte[] record(byte operation, String name, String value) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(payload);
+            data.writeByte(operation);
+            writeString(data, name);
+            if (operation == SET) {
+                writeString(data, value);
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(payload.toByteArray());
+            return ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.size())
+                    .putInt(payload.size())
+                    .putInt((int) crc.getValue())
+                    .put(payload.toByteArray())
+                    .array();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    private static Journal readJournal(ByteBuffer header) throws IOException {
+        if (!hasMagic(header) || header.limit() < BASE_OFFSET) {
+            throw new IOException("Malformed secrets database: truncated journal header");
+        }
+        int version = header.getInt(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("Unsupported secrets database journal version " + version);
+        }
+        long baseLength = header.getLong(BASE_LENGTH_OFFSET);
+        if (baseLength < 0 || baseLength > Integer.MAX_VALUE) {
+            throw new IOException("Malformed secrets database: bad base length " + baseLength);
+        }
+        return new Journal(header.getLong(ID_OFFSET), baseLength, BASE_OFFSET + baseLength);
+    }
+
+    private static ByteBuffer readRecords(FileChannel channel, long start) throws IOException {
+        long length = Math.max(channel.size() - start, 0);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Secrets database journal is too large: " + length + " bytes");
+        }
+        return Util.readFully(channel, start, (int) length);
+    }
+
+    private static SecretsDatabase replay(SecretsDatabase secretsDatabase, Journal journal, ByteBuffer records) {
+        JournaledSecrets secrets = JournaledSecrets.of(secretsDatabase.getSecrets());
+        int applied = 0;
+        int position = 0;
+        for (int length; (length = apply(secrets, records, position)) > 0; position += length) {
+            applied++;
+        }
+        return secretsDatabase.withJournal(secrets, applied, new Journal(journal.id, journal.baseLength, journal.end + position));
+    }
+
+    /**
+     * @return the length of the record at the given position that was applied, or 0 if there is no complete and
+     * intact one
+     */
+    private static int apply(JournaledSecrets secrets, ByteBuffer records, int position) {
+        int length = recordLength(records, position);
+        if (length > 0) {
+            ByteBuffer payload = records.slice(position + RECORD_HEADER_LENGTH, length - RECORD_HEADER_LENGTH);
+            String name = readString(payload, 1);
+            if (payload.get(0) == SET) {
+                secrets.set(name, readString(payload, 5 + payload.getInt(1)));
+            } else {
+                secrets.remove(name);
+            }
+        }
+        return length;
+    }
+
+    private static int validLength(ByteBuffer records) {
+        int position = 0;
+        for (int length; (length = recordLength(records, position)) > 0; ) {
+            position += length;
+        }
+        return position;
+    }
+
+    /**
+     * @return the length of the complete and intact record at the given position, or 0 if there is none
+     */
+    private static int recordLength(ByteBuffer records, int position) {
+        if (records.limit() - position < RECORD_HEADER_LENGTH) {
+            return 0;
+        }
+        int payloadLength = records.getInt(position);
+        if (payloadLength < 5 || payloadLength > records.limit() - position - RECORD_HEADER_LENGTH) {
+            return 0;
+        }
+        ByteBuffer payload = records.slice(position + RECORD_HEADER_LENGTH, payloadLength);
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != records.getInt(position + 4) || !isWellFormed(payload)) {
+            return 0;
+        }
+        return RECORD_HEADER_LENGTH + payloadLength;
+    }
+
+    private static boolean isWellFormed(ByteBuffer payload) {
+        byte operation = payload.get(0);
+        int nameLength = payload.getInt(1);
+        if ((operation != SET && operation != REMOVE) || nameLength < 0 || 5L + nameLength > payload.limit()) {
+            return false;
+        }
+        if (operation == REMOVE) {
+            return 5 + nameLength == payload.limit();
+        }
+        if (9L + nameLength > payload.limit()) {
+            return false;
+        }
+        int valueLength = payload.getInt(5 + nameLength);
+        return 9L + nameLength + Math.max(valueLength, 0) == payload.limit();
+    }
+
+    private static String readString(ByteBuffer payload, int position) {
+        int length = payload.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Where a journaled database was read up to.
+     */
+    static final class Journal {
+
+        private final long id;
+
+        private final long baseLength;
+
+        // the position just past the last record that was read
+        private final long end;
+
+        Journal(long id, long baseLength, long end) {
+            this.id = id;
+            this.baseLength = baseLength;
+            this.end = end;
+        }
+
+        private boolean isBaseOf(ByteBuffer header) {
+            return hasMagic(header) && header.limit() >= BASE_OFFSET && header.getLong(ID_OFFSET) == id && header.getLong(BASE_LENGTH_OFFSET) == baseLength;
+        }
+    }
+
+    /**
+     * The secrets of a base database with the records of its journal laid over them, so that replaying a journal does
+     * not have to copy the base.
+     */
+    static class JournaledSecrets extends AbstractMap<String, String> {
+
+        final Map<String, String> base;
+
+        // secrets that were set since the base was written, in the order they were first set, to where their values are
+        final LinkedHashMap<String, Integer> set;
+
+        // every value that was set, including those set again since, which are few until the journal is compacted
+        final List<String> values;
+
+        // secrets of the base that were removed since it was written
+        final Set<String> removed;
+
+        private int size;
+
+        private JournaledSecrets(Map<String, String> base, LinkedHashMap<String, Integer> set, List<String> values, Set<String> removed, int size) {
+            this.base = base;
+            this.set = set;
+            this.values = values;
+            this.removed = removed;
+            this.size = size;
+        }
+
+        // layers over the same base, rather than on top of another layer, and encoded as the base is
+        private static JournaledSecrets of(Map<String, String> secrets) {
+            Map<String, String> base = secrets;
+            LinkedHashMap<String, Integer> set = new LinkedHashMap<>();
+            List<String> values = new ArrayList<>();
+            Set<String> removed = new HashSet<>();
+            if (secrets instanceof JournaledSecrets) {
+                JournaledSecrets journaled = (JournaledSecrets) secrets;
+                base = journaled.base;
+                set.putAll(journaled.set);
+                values.addAll(journaled.values);
+                removed.addAll(journaled.removed);
+            }
+            return base instanceof EncodedSecrets
+                    ? new EncodedJournaledSecrets((EncodedSecrets) base, set, values, removed, secrets.size())
+                    : new JournaledSecrets(base, set, values, removed, secrets.size());
+        }
+
+        long estimatedSize() {
+            long size = HeapSize.OBJECT * 2 + HeapSize.of(base) + HeapSize.ARRAY + HeapSize.REFERENCE * values.size();
+            for (String name : set.keySet()) {
+                size += HeapSize.MAP_ENTRY + HeapSize.of(name) + HeapSize.OBJECT;
+            }
+            for (String value : values) {
+                size += HeapSize.of(value);
+            }
+            for (String name : removed) {
+                size += HeapSize.MAP_ENTRY + HeapSize.of(name);
+            }
+            return size;
+        }
+
+        private void set(String name, String value) {
+            if (!containsKey(name)) {
+                size++;
+            }
+            removed.remove(name);
+            set.put(name, values.size());
+            values.add(value);
+        }
+
+        private void remove(String name) {
+            if (!containsKey(name)) {
+                return;
+            }
+            size--;
+            set.remove(name);
+            if (base.containsKey(name)) {
+                removed.add(name);
+            }
+        }
+
+        @Override
+        public String get(Object key) {
+            Integer value = set.get(key);
+            if (value != null) {
+                return values.get(value);
+            }
+            return removed.contains(key) ? null : base.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return set.containsKey(key) || (!removed.contains(key) && base.containsKey(key));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    Iterator<Entry<String, String>> baseEntries = base.entrySet().iterator();
+                    Iterator<Entry<String, Integer>> setEntries = set.entrySet().iterator();
+                    return new Iterator<>() {
+                        private Entry<String, String> next = advance();
+
+                        // the secrets of the base first, as they are now, then the ones that are not in the base
+                        private Entry<String, String> advance() {
+                            while (baseEntries.hasNext()) {
+                                Entry<String, String> entry = baseEntries.next();
+                                Integer value = set.get(entry.getKey());
+                                if (value != null) {
+                                    return new SimpleImmutableEntry<>(entry.getKey(), values.get(value));
+                                }
+                                if (!removed.contains(entry.getKey())) {
+                                    return entry;
+                                }
+                            }
+                            while (setEntries.hasNext()) {
+                                Entry<String, Integer> entry = setEntries.next();
+                                if (!base.containsKey(entry.getKey())) {
+                                    return new SimpleImmutableEntry<>(entry.getKey(), values.get(entry.getValue()));
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> current = next;
+                            next = advance();
+                            return current;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Journaled secrets over an encoded base, whose secrets are decrypted straight from the base unless they were set
+     * since. The entries of the base are its own, and those of the secrets that were set are told apart by a flag.
+     */
+    static final class EncodedJournaledSecrets extends JournaledSecrets implements EncodedSecrets {
+
+        private static final int SET = 1 << 30;
+
+        private final EncodedSecrets encodedBase;
+
+        private EncodedJournaledSecrets(EncodedSecrets base, LinkedHashMap<String, Integer> set, List<String> values, Set<String> removed, int size) {
+            super(base, set, values, removed, size);
+            this.encodedBase = base;
+        }
+
+        @Override
+        public int find(Object key) {
+            Integer value = set.get(key);
+            if (value != null) {
+                return SET | value;
+            }
+            return removed.contains(key) ? -1 : encodedBase.find(key);
+        }
+
+        @Override
+        public String decrypt(int entry, Cipher cipher) throws BadSecretException, GeneralSecurityException {
+            return (entry & SET) != 0 ? cipher.decrypt(values.get(entry & ~SET)) : encodedBase.decrypt(entry, cipher);
+        }
+
+        @Override
+        public String valueOf(int entry) {
+            return (entry & SET) != 0 ? values.get(entry & ~SET) : encodedBase.valueOf(entry);
+        }
+
+        @Override
+        public boolean sameValue(int entry, EncodedSecrets other, int otherEntry) {
+            if (other instanceof EncodedJournaledSecrets && (otherEntry & SET) == 0) {
+                return sameValue(entry, ((EncodedJournaledSecrets) other).encodedBase, otherEntry);
+            }
+            if ((entry & SET) == 0) {
+                return encodedBase.sameValue(entry, other, otherEntry);
+            }
+            return EncodedSecrets.super.sameValue(entry, other, otherEntry);
+        }
+    }
+
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Reads and writes the JSON representation of a {@link SecretsDatabase} as a stream of tokens, without reflection and
+ * without ever holding the whole document in memory.
+ */
+final class JsonFormat {
+
+    // pretty printed entries take up at least this many bytes, used to size the map when the file does not say
+    static final int MIN_ENTRY_LENGTH = 80;
+
+    // don't let a bogus count allocate an absurdly large map upfront
+    static final int MAX_INITIAL_CAPACITY = 1 << 22;
+
+    private JsonFormat() {
+    }
+
+    /**
+     * @param sizeHint the expected number of secrets, used unless the document itself has a count
+     */
+    static SecretsDatabase read(Reader in, int sizeHint) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(in);
+        DatabaseFormat format = detectFormat(bufferedReader);
+
+        long generation = 0;
+        String checksum = null;
+        int count = -1;
+        int shards = 0;
+        String secretKey = null;
+        PackedSecrets secrets = null;
+
+        JsonReader reader = new JsonReader(bufferedReader);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "generation":
+                        generation = reader.nextLong();
+                        break;
+                    case "checksum":
+                        checksum = nextNullableString(reader);
+                        break;
+                    case "count":
+                        count = reader.nextInt();
+                        break;
+                    case "shards":
+                        shards = reader.nextInt();
+                        break;
+                    case "secret_key":
+                        secretKey = nextNullableString(reader);
+                        break;
+                    case "secrets":
+                        secrets = readSecrets(reader, count >= 0 ? count : sizeHint);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed secrets database: " + e.getMessage(), e);
+        }
+
+        return new SecretsDatabase(secretKey, generation, checksum, secrets == null ? Collections.emptyMap() : secrets, format)
+                .shardedInto(shards);
+    }
+
+    /**
+     * @param shards the number of shards, if this is the manifest of a sharded database, otherwise 0
+     */
+    static void write(Writer out, long generation, String checksum, String secretKey, int shards, Map<String, String> secrets, DatabaseFormat format) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        if (format != DatabaseFormat.COMPACT_JSON) {
+            writer.setIndent("  ");
+        }
+
+        // the header goes first, so it can be read without reading the whole file, see DatabaseHeader
+        writer.beginObject();
+        writer.name("generation").value(generation);
+        writer.name("checksum").value(checksum);
+        writer.name("count").value(secrets.size());
+        if (shards > 0) {
+            writer.name("shards").value(shards);
+        }
+        writer.name("secret_key").value(secretKey);
+        writer.name("secrets").beginObject();
+        for (Map.Entry<String, String> secret : secrets.entrySet()) {
+            writer.name(secret.getKey()).value(secret.getValue());
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    // pretty printed documents start with a line break
+    private static DatabaseFormat detectFormat(BufferedReader reader) throws IOException {
+        reader.mark(2);
+        boolean pretty = reader.read() == '{' && reader.read() == '\n';
+        reader.reset();
+        return pretty ? DatabaseFormat.JSON : DatabaseFormat.COMPACT_JSON;
+    }
+
+    private static PackedSecrets readSecrets(JsonReader reader, int sizeHint) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        PackedSecrets secrets = new PackedSecrets(Math.min(Math.max(sizeHint, 0), MAX_INITIAL_CAPACITY));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            secrets.add(reader.nextName(), nextNullableString(reader));
+        }
+        reader.endObject();
+        return secrets.trim();
+    }
+
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
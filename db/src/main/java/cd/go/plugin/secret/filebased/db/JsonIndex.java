@@ -0,0 +1,462 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Indexes the JSON representation of a {@link SecretsDatabase} in place, recording only where each secret starts, so
+ * that the names and values stay in the buffer until they are looked up.
+ */
+final class JsonIndex {
+
+    private final ByteBuffer buffer;
+
+    private int position;
+
+    private JsonIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    static SecretsDatabase read(ByteBuffer buffer) throws IOException {
+        return new JsonIndex(buffer).readDatabase();
+    }
+
+    private SecretsDatabase readDatabase() throws IOException {
+        DatabaseFormat format = buffer.limit() > 1 && buffer.get(0) == '{' && buffer.get(1) == '\n' ? DatabaseFormat.JSON : DatabaseFormat.COMPACT_JSON;
+        long generation = 0;
+        String checksum = null;
+        int count = -1;
+        int shards = 0;
+        String secretKey = null;
+        IndexedSecrets secrets = null;
+
+        try {
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    String name = decodeString(stringAt(skipWhitespace()));
+                    expect(':');
+                    switch (name) {
+                        case "generation":
+                            generation = Long.parseLong(nextLiteral());
+                            break;
+                        case "checksum":
+                            checksum = nextNullableString();
+                            break;
+                        case "count":
+                            count = Integer.parseInt(nextLiteral());
+                            break;
+                        case "shards":
+                            shards = Integer.parseInt(nextLiteral());
+                            break;
+                        case "secret_key":
+                            secretKey = nextNullableString();
+                            break;
+                        case "secrets":
+                            secrets = nextSecrets(count);
+                            break;
+                        default:
+                            skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw malformed("unexpected value");
+        }
+
+        return new SecretsDatabase(secretKey, generation, checksum, secrets == null ? Collections.emptyMap() : secrets, format)
+                .shardedInto(shards);
+    }
+
+    private IndexedSecrets nextSecrets(int sizeHint) throws IOException {
+        if (peek() == 'n') {
+            nextLiteral();
+            return null;
+        }
+
+        // the count is only a hint, which must not allocate more than the rest of the file could hold
+        int maxSize = Math.min((buffer.limit() - position) / JsonFormat.MIN_ENTRY_LENGTH, JsonFormat.MAX_INITIAL_CAPACITY);
+        IndexedSecrets secrets = new IndexedSecrets(buffer, Math.max(Math.min(sizeHint, maxSize), 16));
+        expect('{');
+        if (!consume('}')) {
+            do {
+                int namePosition = stringAt(skipWhitespace());
+                expect(':');
+                int valuePosition = skipWhitespace();
+                if (peek() == '"') {
+                    stringAt(valuePosition);
+                } else if (!"null".equals(nextLiteral())) {
+                    throw malformed("a secret that is not a string");
+                }
+                secrets.add(namePosition, valuePosition);
+            } while (consume(','));
+            expect('}');
+        }
+        return secrets;
+    }
+
+    private String nextNullableString() throws IOException {
+        if (peek() == 'n') {
+            if (!"null".equals(nextLiteral())) {
+                throw malformed("unexpected value");
+            }
+            return null;
+        }
+        return decodeString(stringAt(position));
+    }
+
+    private void skipValue() throws IOException {
+        switch (peek()) {
+            case '"':
+                stringAt(position);
+                break;
+            case '{':
+            case '[':
+                int depth = 0;
+                do {
+                    byte b = buffer.get(skipWhitespace());
+                    if (b == '"') {
+                        stringAt(position);
+                        continue;
+                    }
+                    if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                    position++;
+                } while (depth > 0);
+                break;
+            default:
+                nextLiteral();
+        }
+    }
+
+    /**
+     * Moves past the string starting at the given position.
+     *
+     * @return the position of the string
+     */
+    private int stringAt(int start) throws IOException {
+        position = skipString(buffer, start);
+        return start;
+    }
+
+    // numbers, true, false and null
+    private String nextLiteral() throws IOException {
+        int start = skipWhitespace();
+        while (position < buffer.limit() && !isDelimiter(buffer.get(position))) {
+            position++;
+        }
+        if (position == start) {
+            throw malformed("missing value");
+        }
+        return readString(buffer, start, position - start);
+    }
+
+    private byte peek() throws IOException {
+        skipWhitespace();
+        if (position >= buffer.limit()) {
+            throw malformed("unexpected end of file");
+        }
+        return buffer.get(position);
+    }
+
+    private boolean consume(char c) throws IOException {
+        if (peek() == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws IOException {
+        if (!consume(c)) {
+            throw malformed("expected '" + c + "'");
+        }
+    }
+
+    private int skipWhitespace() {
+        while (position < buffer.limit() && isWhitespace(buffer.get(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private IOException malformed(String problem) {
+        return new IOException("Malformed secrets database: " + problem + " at offset " + position);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return isWhitespace(b) || b == ',' || b == ':' || b == '}' || b == ']';
+    }
+
+    /**
+     * @return the position just past the closing quote of the string that starts at the given position
+     */
+    private static int skipString(ByteBuffer buffer, int start) throws IOException {
+        if (start >= buffer.limit() || buffer.get(start) != '"') {
+            throw new IOException("Malformed secrets database: expected a string at offset " + start);
+        }
+        // multi-byte UTF-8 sequences never contain a quote or a backslash, so bytes can be scanned as they are
+        for (int i = start + 1; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i + 1;
+            }
+        }
+        throw new IOException("Malformed secrets database: unterminated string at offset " + start);
+    }
+
+    private static String decodeString(ByteBuffer buffer, int start) {
+        StringBuilder decoded = null;
+        int segmentStart = start + 1;
+        for (int i = segmentStart; ; i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                String segment = readString(buffer, segmentStart, i - segmentStart);
+                return decoded == null ? segment : decoded.append(segment).toString();
+            }
+            if (b != '\\') {
+                continue;
+            }
+            if (decoded == null) {
+                decoded = new StringBuilder();
+            }
+            decoded.append(readString(buffer, segmentStart, i - segmentStart));
+            byte escaped = buffer.get(++i);
+            switch (escaped) {
+                case 'b':
+                    decoded.append('\b');
+                    break;
+                case 'f':
+                    decoded.append('\f');
+                    break;
+                case 'n':
+                    decoded.append('\n');
+                    break;
+                case 'r':
+                    decoded.append('\r');
+                    break;
+                case 't':
+                    decoded.append('\t');
+                    break;
+                case 'u':
+                    decoded.append((char) Integer.parseInt(readString(buffer, i + 1, 4), 16));
+                    i += 4;
+                    break;
+                default:
+                    decoded.append((char) escaped);
+            }
+            segmentStart = i + 1;
+        }
+    }
+
+    private String decodeString(int start) {
+        return decodeString(buffer, start);
+    }
+
+    private static String readString(ByteBuffer buffer, int start, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The secrets of a JSON database, as an open addressing hash table of the positions of their names and values in
+     * the buffer. Safe for concurrent use once built, as the buffer is only ever read at absolute positions.
+     */
+    static final class IndexedSecrets extends AbstractMap<String, String> {
+
+        private final ByteBuffer buffer;
+
+        // the positions of the name and the value of each secret, in the order they were added
+        private int[] entries;
+
+        private int count;
+
+        // the hash code of the name and the index of the entry plus one (zero for an empty slot) of each slot
+        private int[] table;
+
+        private IndexedSecrets(ByteBuffer buffer, int expectedSize) {
+            this.buffer = buffer;
+            this.entries = new int[expectedSize * 2];
+            this.table = new int[BinaryFormat.slotsFor(expectedSize) * 2];
+        }
+
+        long estimatedSize() {
+            return HeapSize.OBJECT + HeapSize.of(buffer) + HeapSize.of(entries) + HeapSize.of(table);
+        }
+
+        private void add(int namePosition, int valuePosition) {
+            String name = decodeString(buffer, namePosition);
+            int existing = find(name);
+            if (existing >= 0) {
+                // like a map, the last value wins, in the position of the first
+                entries[existing * 2 + 1] = valuePosition;
+                return;
+            }
+
+            if (count * 2 == entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[count * 2] = namePosition;
+            entries[count * 2 + 1] = valuePosition;
+            count++;
+
+            if (BinaryFormat.slotsFor(count) * 2 > table.length) {
+                rehash();
+            }
+            insert(name.hashCode(), count);
+        }
+
+        private void rehash() {
+            int[] oldTable = table;
+            table = new int[BinaryFormat.slotsFor(count) * 2];
+            for (int slot = 0; slot < oldTable.length; slot += 2) {
+                if (oldTable[slot + 1] != 0) {
+                    insert(oldTable[slot], oldTable[slot + 1]);
+                }
+            }
+        }
+
+        private void insert(int hash, int entry) {
+            int mask = table.length / 2 - 1;
+            int slot = BinaryFormat.mix(hash) & mask;
+            while (table[slot * 2 + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot * 2] = hash;
+            table[slot * 2 + 1] = entry;
+        }
+
+        /**
+         * @return the index of the entry with the given name, or -1 if there is none
+         */
+        private int find(Object key) {
+            if (!(key instanceof String)) {
+                return -1;
+            }
+            int hash = key.hashCode();
+            int mask = table.length / 2 - 1;
+            for (int slot = BinaryFormat.mix(hash) & mask; table[slot * 2 + 1] != 0; slot = (slot + 1) & mask) {
+                int entry = table[slot * 2 + 1] - 1;
+                if (table[slot * 2] == hash && key.equals(decodeString(buffer, entries[entry * 2]))) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        private String valueOf(int entry) {
+            int position = entries[entry * 2 + 1];
+            return buffer.get(position) == '"' ? decodeString(buffer, position) : null;
+        }
+
+        @Override
+        public String get(Object key) {
+            int entry = find(key);
+            return entry < 0 ? null : valueOf(entry);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new EntryIterator<>() {
+                        @Override
+                        String read(int entry) {
+                            return decodeString(buffer, entries[entry * 2]);
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new EntryIterator<>() {
+                        @Override
+                        Entry<String, String> read(int entry) {
+                            return new SimpleImmutableEntry<>(decodeString(buffer, entries[entry * 2]), valueOf(entry));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        private abstract class EntryIterator<T> implements Iterator<T> {
+
+            private int next;
+
+            abstract T read(int entry);
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return read(next++);
+            }
+        }
+    }
+}
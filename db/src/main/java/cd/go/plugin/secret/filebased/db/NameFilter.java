@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+/**
+ * A Bloom filter of the hash codes of the names of secrets, which tells that there is no secret with a name without
+ * looking for it. With a byte per name, about 2% of the names that are not there get past it.
+ */
+final class NameFilter {
+
+    private static final int BITS_PER_NAME = 8;
+
+    private static final int HASHES = 4;
+
+    private final long[] words;
+
+    private final int mask;
+
+    NameFilter(int names) {
+        int bits = Integer.highestOneBit(Math.max(64, Math.min(names, 1 << 27) * BITS_PER_NAME - 1) << 1);
+        this.words = new long[bits / 64];
+        this.mask = bits - 1;
+    }
+
+    void add(int hashCode) {
+        int hash = BinaryFormat.mix(hashCode);
+        int step = stepOf(hash);
+        for (int i = 0; i < HASHES; i++, hash += step) {
+            words[(hash & mask) >>> 6] |= 1L << hash;
+        }
+    }
+
+    boolean mightContain(int hashCode) {
+        int hash = BinaryFormat.mix(hashCode);
+        int step = stepOf(hash);
+        for (int i = 0; i < HASHES; i++, hash += step) {
+            if ((words[(hash & mask) >>> 6] & (1L << hash)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long estimatedSize() {
+        return HeapSize.OBJECT + HeapSize.ARRAY + 8L * words.length;
+    }
+
+    // odd, so that the bits probed for a name are all different
+    private static int stepOf(int hash) {
+        return Integer.rotateLeft(hash, 16) | 1;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How much memory the decrypted secrets of any number of databases may take up outside the heap, between them. It is
+ * taken as the secrets are decrypted, and given back once they are wiped.
+ */
+public final class OffHeapBudget {
+
+    private final long maxSize;
+
+    private final AtomicLong reserved = new AtomicLong();
+
+    public OffHeapBudget(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return how many of the given number of bytes were taken, all of them unless the budget is nearly spent
+     */
+    int reserveUpTo(int bytes) {
+        while (true) {
+            long current = reserved.get();
+            int taken = (int) Math.max(0, Math.min(bytes, maxSize - current));
+            if (taken == 0 || reserved.compareAndSet(current, current + taken)) {
+                return taken;
+            }
+        }
+    }
+
+    void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * @return how many bytes are taken up now
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Decrypted values kept outside the heap, in chunks that are only allocated once values are put in them, as far as the
+ * budget allows. The chunks are filled one after the other and never reused, until they are all wiped at once, though
+ * single values can be wiped before then. Values are only turned into strings while they are being looked up, and
+ * cannot be read anymore once wiped. The budget is given back when they are all wiped, and the memory itself once the
+ * chunks are garbage collected.
+ * <p>
+ * Where a value was put is a slot: its chunk, its offset in the chunk and its length, packed into a long.
+ */
+final class OffHeapValues {
+
+    static final long NO_SLOT = -1;
+
+    // the largest value that can be kept, which larger secrets are very unlikely to be
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int BITS = 17;
+
+    private static final long MASK = (1 << BITS) - 1;
+
+    private final OffHeapBudget budget;
+
+    // values are put concurrently with the read lock, which only wiping them takes exclusively
+    private final StampedLock lock = new StampedLock();
+
+    // replaced by a longer copy whenever a chunk is allocated
+    volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    // where the next value goes in the last chunk
+    private int position;
+
+    private long allocated;
+
+    private int used;
+
+    private boolean wiped;
+
+    // the values wiped on their own, which read as zeros from then on
+    private final Set<Long> wipedSlots = new HashSet<>();
+
+    OffHeapValues(OffHeapBudget budget) {
+        this.budget = budget;
+    }
+
+    synchronized int used() {
+        return used;
+    }
+
+    /**
+     * @return the slot the value was put in, or {@link #NO_SLOT} if there is no room left for it, or the values were
+     * wiped
+     */
+    long put(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        try {
+            return put(bytes, 0, bytes.length);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Copies a value from other values, without turning it into a string.
+     *
+     * @return the slot it was put in, or {@link #NO_SLOT} as for {@link #put(String)}, or if it cannot be read anymore
+     */
+    long copy(OffHeapValues other, long slot) {
+        byte[] bytes = other.read(slot);
+        if (bytes == null) {
+            return NO_SLOT;
+        }
+        try {
+            return put(bytes, 0, bytes.length);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private long put(byte[] bytes, int offset, int length) {
+        if (length > CHUNK_SIZE) {
+            return NO_SLOT;
+        }
+        long stamp = lock.readLock();
+        try {
+            ByteBuffer chunk;
+            int chunkIndex;
+            int chunkOffset;
+            synchronized (this) {
+                if (wiped || !hasRoomFor(length)) {
+                    return NO_SLOT;
+                }
+                chunkIndex = chunks.length - 1;
+                chunk = chunks[chunkIndex];
+                chunkOffset = position;
+                position += length;
+                used += length;
+            }
+            // no one reads this part of the chunk until they are told the slot
+            chunk.put(chunkOffset, bytes, offset, length);
+            return (long) chunkIndex << 2 * BITS | (long) chunkOffset << BITS | length;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // in the last chunk, or in a new one if the budget allows, leaving the rest of the last one unused
+    private boolean hasRoomFor(int length) {
+        ByteBuffer[] chunks = this.chunks;
+        if (chunks.length > 0 && length <= chunks[chunks.length - 1].capacity() - position) {
+            return true;
+        }
+        int size = budget.reserveUpTo(CHUNK_SIZE);
+        if (size < length || size == 0) {
+            budget.release(size);
+            return false;
+        }
+        ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = ByteBuffer.allocateDirect(size);
+        this.chunks = grown;
+        allocated += size;
+        position = 0;
+        return true;
+    }
+
+    /**
+     * @return the value in the slot, or {@code null} if the values were wiped
+     */
+    String get(long slot) {
+        byte[] bytes = read(slot);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    // optimistically, as wiping values takes the lock exclusively, and is rare
+    private byte[] read(long slot) {
+        long stamp = lock.tryOptimisticRead();
+        ByteBuffer[] chunks = this.chunks;
+        int chunkIndex = (int) (slot >>> 2 * BITS);
+        byte[] bytes = new byte[(int) (slot & MASK)];
+        if (chunkIndex < chunks.length) {
+            chunks[chunkIndex].get((int) (slot >>> BITS & MASK), bytes);
+        }
+        if (chunkIndex >= chunks.length || stamp == 0 || !lock.validate(stamp) || isWiped(slot)) {
+            Arrays.fill(bytes, (byte) 0);
+            return null;
+        }
+        return bytes;
+    }
+
+    private synchronized boolean isWiped(long slot) {
+        return wiped || wipedSlots.contains(slot);
+    }
+
+    /**
+     * Overwrites the value in the slot with zeros, after which it cannot be read. Its room is not reused.
+     */
+    void wipe(long slot) {
+        long stamp = lock.writeLock();
+        try {
+            ByteBuffer chunk;
+            synchronized (this) {
+                int chunkIndex = (int) (slot >>> 2 * BITS);
+                if (wiped || chunkIndex >= chunks.length || !wipedSlots.add(slot)) {
+                    return;
+                }
+                chunk = chunks[chunkIndex];
+            }
+            chunk.put((int) (slot >>> BITS & MASK), new byte[(int) (slot & MASK)]);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Overwrites all the values with zeros, after which none can be read, or put, and gives back the budget.
+     */
+    void wipe() {
+        long stamp = lock.writeLock();
+        try {
+            ByteBuffer[] wiping;
+            long released;
+            synchronized (this) {
+                if (wiped) {
+                    return;
+                }
+                wiped = true;
+                wipedSlots.clear();
+                wiping = chunks;
+                released = allocated;
+                chunks = new ByteBuffer[0];
+            }
+            byte[] zeros = new byte[8192];
+            for (ByteBuffer chunk : wiping) {
+                for (int position = 0; position < chunk.capacity(); position += zeros.length) {
+                    chunk.put(position, zeros, 0, Math.min(zeros.length, chunk.capacity() - position));
+                }
+            }
+            budget.release(released);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * The secrets of a database read onto the heap, packed into a few arrays rather than a map of strings. The IV and the
+ * ciphertext of each secret are decoded once, as the database is read, and kept as raw bytes, from which they are
+ * decrypted. The names are found through an open addressing hash table of their positions. The values take up about
+ * half the heap they would in a {@link LinkedHashMap} of strings, and the whole is immutable once built.
+ * <p>
+ * Values that were not written by {@link Cipher} are kept as they are, so that they are saved back unchanged, and
+ * those that cannot be decrypted at all are told apart straight away, see {@link #getMalformed()}.
+ */
+final class PackedSecrets extends AbstractMap<String, String> implements EncodedSecrets {
+
+    // marks an entry whose value is kept as it is
+    private static final int VERBATIM = -1;
+
+    private static final int MAX_INITIAL_DATA_LENGTH = 1 << 24;
+
+    private String[] names;
+
+    // where the IV of each secret starts, where its ciphertext starts, and where that ends, in the data
+    private int[] entries;
+
+    private byte[] data;
+
+    private int dataLength;
+
+    private int count;
+
+    // the hash code of the name and the index of the entry plus one (zero for an empty slot) of each slot
+    private int[] table;
+
+    private final Map<String, String> verbatim = new HashMap<>();
+
+    private final List<String> malformed = new ArrayList<>();
+
+    // where decode() tells the ends of what it decoded
+    private final int[] ends = new int[2];
+
+    PackedSecrets(int expectedSize) {
+        int capacity = Math.max(expectedSize, 1);
+        this.names = new String[capacity];
+        this.entries = new int[capacity * 3];
+        // a 16 byte IV, and the ciphertext of a short secret, for each of them, up to a point
+        this.data = new byte[(int) Math.min(capacity * 48L, MAX_INITIAL_DATA_LENGTH)];
+        this.table = new int[BinaryFormat.slotsFor(capacity) * 2];
+    }
+
+    long estimatedSize() {
+        long size = HeapSize.OBJECT + HeapSize.ARRAY + HeapSize.REFERENCE * names.length + HeapSize.of(entries)
+                + HeapSize.ARRAY + data.length + HeapSize.of(table) + HeapSize.OBJECT * 2;
+        for (int entry = 0; entry < count; entry++) {
+            size += HeapSize.of(names[entry]);
+        }
+        for (Map.Entry<String, String> secret : verbatim.entrySet()) {
+            size += HeapSize.MAP_ENTRY + HeapSize.of(secret.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * @return the names of the secrets whose values cannot be decrypted, as read
+     */
+    List<String> getMalformed() {
+        return Collections.unmodifiableList(malformed);
+    }
+
+    void add(String name, String encryptedValue) {
+        int entry = find(name);
+        if (entry < 0) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                entries = Arrays.copyOf(entries, count * 2 * 3);
+            }
+            entry = count++;
+            names[entry] = name;
+            if (BinaryFormat.slotsFor(count) * 2 > table.length) {
+                rehash();
+            }
+            insert(name.hashCode(), count);
+        } else {
+            // like a map, the last value wins, in the position of the first
+            verbatim.remove(name);
+            malformed.remove(name);
+        }
+
+        int maxLength = Cipher.maxDecodedLength(encryptedValue);
+        if (dataLength + maxLength > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + maxLength));
+        }
+        try {
+            Cipher.decode(encryptedValue, data, dataLength, ends);
+            if (Cipher.encode(data, dataLength, ends[0], ends[1]).equals(encryptedValue)) {
+                entries[entry * 3] = dataLength;
+                entries[entry * 3 + 1] = ends[0];
+                entries[entry * 3 + 2] = ends[1];
+                dataLength = ends[1];
+                return;
+            }
+        } catch (BadSecretException e) {
+            malformed.add(name);
+        }
+        entries[entry * 3] = VERBATIM;
+        verbatim.put(name, encryptedValue);
+    }
+
+    /**
+     * Gives back the room that was set aside for more secrets than there turned out to be.
+     */
+    PackedSecrets trim() {
+        names = Arrays.copyOf(names, count);
+        entries = Arrays.copyOf(entries, count * 3);
+        data = Arrays.copyOf(data, dataLength);
+        if (BinaryFormat.slotsFor(count) * 2 < table.length) {
+            rehash();
+        }
+        return this;
+    }
+
+    private void rehash() {
+        int[] oldTable = table;
+        table = new int[BinaryFormat.slotsFor(count) * 2];
+        for (int slot = 0; slot < oldTable.length; slot += 2) {
+            if (oldTable[slot + 1] != 0) {
+                insert(oldTable[slot], oldTable[slot + 1]);
+            }
+        }
+    }
+
+    private void insert(int hash, int entry) {
+        int mask = table.length / 2 - 1;
+        int slot = BinaryFormat.mix(hash) & mask;
+        while (table[slot * 2 + 1] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot * 2] = hash;
+        table[slot * 2 + 1] = entry;
+    }
+
+    @Override
+    public int find(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int hash = key.hashCode();
+        int mask = table.length / 2 - 1;
+        for (int slot = BinaryFormat.mix(hash) & mask; table[slot * 2 + 1] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot * 2 + 1] - 1;
+            if (table[slot * 2] == hash && key.equals(names[entry])) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String decrypt(int entry, Cipher cipher) throws BadSecretException, GeneralSecurityException {
+        int ivStart = entries[entry * 3];
+        if (ivStart == VERBATIM) {
+            String encryptedValue = verbatim.get(names[entry]);
+            return encryptedValue == null ? null : cipher.decrypt(encryptedValue);
+        }
+        return cipher.decrypt(data, ivStart, entries[entry * 3 + 1], entries[entry * 3 + 2]);
+    }
+
+    @Override
+    public boolean sameValue(int entry, EncodedSecrets secrets, int otherEntry) {
+        if (!(secrets instanceof PackedSecrets)) {
+            return EncodedSecrets.super.sameValue(entry, secrets, otherEntry);
+        }
+        PackedSecrets other = (PackedSecrets) secrets;
+        int start = entries[entry * 3];
+        int otherStart = other.entries[otherEntry * 3];
+        if (start == VERBATIM || otherStart == VERBATIM) {
+            return Objects.equals(valueOf(entry), other.valueOf(otherEntry));
+        }
+        return entries[entry * 3 + 1] - start == other.entries[otherEntry * 3 + 1] - otherStart
+                && Arrays.equals(data, start, entries[entry * 3 + 2], other.data, otherStart, other.entries[otherEntry * 3 + 2]);
+    }
+
+    @Override
+    public String valueOf(int entry) {
+        int ivStart = entries[entry * 3];
+        return ivStart == VERBATIM ? verbatim.get(names[entry]) : Cipher.encode(data, ivStart, entries[entry * 3 + 1], entries[entry * 3 + 2]);
+    }
+
+    @Override
+    public String get(Object key) {
+        int entry = find(key);
+        return entry < 0 ? null : valueOf(entry);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new EntryIterator<>() {
+                    @Override
+                    String read(int entry) {
+                        return names[entry];
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator<>() {
+                    @Override
+                    Entry<String, String> read(int entry) {
+                        return new SimpleImmutableEntry<>(names[entry], valueOf(entry));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    private abstract class EntryIterator<T> implements Iterator<T> {
+
+        private int next;
+
+        abstract T read(int entry);
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return read(next++);
+        }
+    }
+}
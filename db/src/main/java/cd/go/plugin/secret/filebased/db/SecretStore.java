@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where secrets are looked up, whatever they are stored in: a {@link SecretsDatabase} file, a
+ * {@link SecretsDirectory}, or an {@link InMemorySecretStore}. Implementations are safe for concurrent lookups.
+ */
+public interface SecretStore extends Closeable {
+
+    /**
+     * @return the decrypted value of the secret, or {@code null} if there is no such secret
+     */
+    String getSecret(String name) throws IOException;
+
+    /**
+     * @return the decrypted values of the secrets that exist, in the order they were asked for
+     */
+    default Map<String, String> getSecrets(Collection<String> names) throws IOException {
+        Map<String, String> secrets = new LinkedHashMap<>();
+        for (String name : names) {
+            String secret = getSecret(name);
+            if (secret != null) {
+                secrets.put(name, secret);
+            }
+        }
+        return secrets;
+    }
+
+    Set<String> getAllSecretKeys() throws IOException;
+
+    /**
+     * @return a number that changes whenever the secrets do
+     */
+    long getGeneration();
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -16,102 +16,944 @@
 
 package cd.go.plugin.secret.filebased.db;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.annotations.Expose;
-import com.google.gson.annotations.SerializedName;
-
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.LinkedHashMap;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+public class SecretsDatabase implements SecretStore {
 
-public class SecretsDatabase {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
 
-    private static final Gson GSON = new GsonBuilder()
-            .excludeFieldsWithoutExposeAnnotation()
-            .serializeNulls()
-            .setPrettyPrinting()
-            .create();
+    private long generation;
+
+    private String checksum;
 
-    @Expose
-    @SerializedName("secret_key")
     private final String secretKey;
 
-    @Expose
-    @SerializedName("secrets")
-    private final LinkedHashMap<String, String> secrets = new LinkedHashMap<>();
+    // bound to the secret key the first time a secret is encrypted or decrypted, as the key is only checked then
+    private volatile Cipher cipher;
+
+    // an immutable snapshot, replaced (copy-on-write) whenever a secret is added or removed, so that reads need no lock
+    private volatile Map<String, String> secrets = Collections.emptyMap();
+
+    // the format this database was read in, and is saved in unless told otherwise
+    private DatabaseFormat format = DatabaseFormat.JSON;
+
+    // views keep as little as possible on the heap, so decrypt secrets every time they are looked up
+    private boolean cacheDecryptions = true;
+
+    final ConcurrentHashMap<String, DecryptedSecret> decryptedSecrets = new ConcurrentHashMap<>();
+
+    // the estimated size of the decrypted secrets, counted as they are added and removed rather than every time the
+    // database is weighed
+    private final LongAdder decryptedSize = new LongAdder();
 
-    final LinkedHashMap<String, String> decryptedSecrets = new LinkedHashMap<>();
+    // where the decrypted values are kept instead of on the heap, if they are
+    OffHeapValues offHeapValues;
+
+    // set once a copy of this database with the changes appended to its journal keeps using the same values, after
+    // which this one no longer puts any in them
+    private volatile boolean offHeapValuesHandedOn;
+
+    // where the journal of the file this database was read from ends, or null if it is not journaled
+    private JournalFormat.Journal journal;
+
+    // the changes made since, to append to the journal
+    private final List<byte[]> pendingRecords = new ArrayList<>();
+
+    // the number of files the secrets are spread across, if this is the manifest of a sharded database
+    private int shards;
+
+    // the estimated size of the secrets, worked out once for each snapshot of them
+    private Map<String, String> sizedSecrets;
+
+    private long secretsSize;
+
+    // what was kept of the decryptions of the database this one was read after, if any
+    private volatile CarriedOver carriedOver;
 
     public SecretsDatabase(String secretKey) {
         this.secretKey = secretKey;
     }
 
+    // the secrets must not be modified afterwards
+    SecretsDatabase(String secretKey, long generation, String checksum, Map<String, String> secrets, DatabaseFormat format) {
+        this.secretKey = secretKey;
+        this.generation = generation;
+        this.checksum = checksum;
+        this.secrets = secrets;
+        this.format = format;
+    }
+
     public SecretsDatabase() throws NoSuchAlgorithmException {
         this(Base64.getEncoder().encodeToString(Cipher.generateKey()));
     }
 
+    /**
+     * Creates the manifest of a database whose secrets are spread across the given number of files by the hash of
+     * their names, so that changing a secret only rewrites the file it is in. The manifest holds no secrets itself,
+     * only the key they are all encrypted with, see {@link #newShard()}.
+     */
+    public static SecretsDatabase sharded(int shards) throws NoSuchAlgorithmException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A sharded database needs at least one shard, not " + shards);
+        }
+        return new SecretsDatabase().shardedInto(shards);
+    }
+
+    SecretsDatabase shardedInto(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
     public SecretsDatabase addSecret(String name, String value) throws GeneralSecurityException {
+        if (shards > 0) {
+            throw new IllegalStateException("The secrets of a sharded database are kept in its shards, not in its manifest");
+        }
+        String encryptedValue = getCipher().encrypt(value);
         synchronized (this) {
-            secrets.put(name, Cipher.encrypt(secretKey, value));
-            decryptedSecrets.remove(name);
+            LinkedHashMap<String, String> copy = copyOfSecrets();
+            copy.put(name, encryptedValue);
+            secrets = Collections.unmodifiableMap(copy);
+            forget(name);
+            if (journal != null) {
+                pendingRecords.add(JournalFormat.set(name, encryptedValue));
+            }
         }
         return this;
     }
 
+    // the secrets as read are encoded, which a map of strings replaces once they change
+    private LinkedHashMap<String, String> copyOfSecrets() {
+        if (secrets instanceof EncodedSecrets) {
+            // which the decryptions refer to, and would otherwise keep in memory
+            forgetAll();
+        }
+        return new LinkedHashMap<>(secrets);
+    }
+
+    @Override
     public String getSecret(String name) {
-        synchronized (this) {
-            return decryptedSecrets.computeIfAbsent(name, key -> {
-                if (secrets.containsKey(name)) {
-                    try {
-                        return Cipher.decrypt(secretKey, secrets.get(name));
-                    } catch (BadSecretException | GeneralSecurityException e) {
-                        throw new RuntimeException(e);
-                    }
+        Map<String, String> secrets = this.secrets;
+        if (secrets instanceof EncodedSecrets) {
+            return getSecret((EncodedSecrets) secrets, name);
+        }
+
+        String encryptedValue = secrets.get(name);
+        if (encryptedValue == null) {
+            return null;
+        }
+
+        if (!cacheDecryptions) {
+            return decrypt(encryptedValue);
+        }
+
+        DecryptedSecret decryptedSecret = decryptedSecrets.get(name);
+        if (decryptedSecret == null || !decryptedSecret.isDecryptionOf(encryptedValue)) {
+            // only blocks other threads decrypting the same secret
+            decryptedSecret = decryptedSecrets.compute(name, (key, existing) -> {
+                if (existing != null && existing.isDecryptionOf(encryptedValue)) {
+                    return existing;
                 }
-                return null;
+                return counted(key, existing, keep(new DecryptedSecret(encryptedValue, decrypt(encryptedValue))));
             });
         }
+        return valueOf(decryptedSecret, () -> decrypt(encryptedValue));
+    }
+
+    // decrypted straight from the bytes the secret was read into
+    private String getSecret(EncodedSecrets secrets, String name) {
+        int entry = secrets.find(name);
+        if (entry < 0) {
+            return null;
+        }
+
+        if (!cacheDecryptions) {
+            return decrypt(secrets, entry);
+        }
+
+        DecryptedSecret decryptedSecret = decryptedSecrets.get(name);
+        if (decryptedSecret == null || !decryptedSecret.isDecryptionOf(secrets, entry)) {
+            decryptedSecret = decryptedSecrets.compute(name, (key, existing) -> {
+                if (existing != null && existing.isDecryptionOf(secrets, entry)) {
+                    return existing;
+                }
+                return counted(key, existing, keep(new DecryptedSecret(secrets, entry, decrypt(secrets, entry))));
+            });
+        }
+        return valueOf(decryptedSecret, () -> decrypt(secrets, entry));
+    }
+
+    // only within a computation of the decrypted secret, so that it is counted once
+    private DecryptedSecret counted(String name, DecryptedSecret replaced, DecryptedSecret decryptedSecret) {
+        decryptedSize.add(sizeOf(name, decryptedSecret) - (replaced == null ? 0 : sizeOf(name, replaced)));
+        return decryptedSecret;
+    }
+
+    private void forget(String name) {
+        decryptedSecrets.computeIfPresent(name, (key, existing) -> {
+            decryptedSize.add(-sizeOf(key, existing));
+            return null;
+        });
+    }
+
+    // one at a time, so that what is decrypted meanwhile is still counted
+    private void forgetAll() {
+        for (String name : decryptedSecrets.keySet()) {
+            forget(name);
+        }
+    }
+
+    private static long sizeOf(String name, DecryptedSecret decryptedSecret) {
+        // the encrypted value is the one held by the secrets
+        return HeapSize.MAP_ENTRY + HeapSize.of(name) + HeapSize.OBJECT + HeapSize.REFERENCE * 3 + 12 + HeapSize.of(decryptedSecret.value);
+    }
+
+    // off the heap, if that is where decrypted values are kept
+    private DecryptedSecret keep(DecryptedSecret decryptedSecret) {
+        if (offHeapValues == null || decryptedSecret.value == null) {
+            return decryptedSecret;
+        }
+        if (offHeapValuesHandedOn) {
+            return decryptedSecret.withValue(null, DecryptedSecret.NOT_KEPT);
+        }
+        long slot = offHeapValues.put(decryptedSecret.value);
+        return decryptedSecret.withValue(null, slot == OffHeapValues.NO_SLOT ? DecryptedSecret.NOT_KEPT : slot);
+    }
+
+    // decrypting the secret again if its value was not kept, or was wiped since
+    private String valueOf(DecryptedSecret decryptedSecret, Supplier<String> decrypt) {
+        if (decryptedSecret.slot == OffHeapValues.NO_SLOT) {
+            return decryptedSecret.value;
+        }
+        String value = decryptedSecret.slot == DecryptedSecret.NOT_KEPT ? null : offHeapValues.get(decryptedSecret.slot);
+        return value != null ? value : decrypt.get();
     }
 
+    /**
+     * Keeps the secrets decrypted from now on outside the heap, in the given number of bytes at most.
+     *
+     * @see #keepDecryptionsOffHeap(OffHeapBudget)
+     */
+    public SecretsDatabase keepDecryptionsOffHeap(int maxSize) {
+        return keepDecryptionsOffHeap(new OffHeapBudget(maxSize));
+    }
+
+    /**
+     * Keeps the secrets decrypted from now on outside the heap, in memory taken from the given budget as they are
+     * decrypted, which is wiped and given back when this database is closed. The secrets that do not fit in the budget
+     * are decrypted every time they are looked up. Must be called before this database is looked up in.
+     */
+    public SecretsDatabase keepDecryptionsOffHeap(OffHeapBudget budget) {
+        offHeapValues = new OffHeapValues(budget);
+        return this;
+    }
+
+    /**
+     * Forgets the secrets decrypted so far, and wipes those kept off the heap. Secrets can still be looked up.
+     */
+    @Override
+    public void close() {
+        if (offHeapValues != null && !offHeapValuesHandedOn) {
+            offHeapValues.wipe();
+        }
+        forgetAll();
+    }
+
+    private String decrypt(EncodedSecrets secrets, int entry) {
+        try {
+            return secrets.decrypt(entry, getCipher());
+        } catch (BadSecretException | GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String decrypt(String encryptedValue) {
+        try {
+            return getCipher().decrypt(encryptedValue);
+        } catch (BadSecretException | GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Cipher getCipher() {
+        Cipher localRef = cipher;
+        if (localRef == null) {
+            // racing threads each bind one, and all but the last are dropped
+            cipher = localRef = new Cipher(secretKey);
+        }
+        return localRef;
+    }
+
+    @Override
     public Set<String> getAllSecretKeys() {
         return secrets.keySet();
     }
 
     public SecretsDatabase removeSecret(String name) {
         synchronized (this) {
-            secrets.remove(name);
-            decryptedSecrets.remove(name);
+            LinkedHashMap<String, String> copy = copyOfSecrets();
+            copy.remove(name);
+            secrets = Collections.unmodifiableMap(copy);
+            forget(name);
+            if (journal != null) {
+                pendingRecords.add(JournalFormat.remove(name));
+            }
         }
         return this;
     }
 
     public static SecretsDatabase readFrom(File secretFile) throws IOException {
-        return GSON.fromJson(Files.readString(secretFile.toPath(), StandardCharsets.UTF_8), SecretsDatabase.class);
+        try (FileChannel channel = FileChannel.open(secretFile.toPath(), StandardOpenOption.READ)) {
+            if (JournalFormat.hasMagic(channel)) {
+                return JournalFormat.read(channel);
+            }
+            if (BinaryFormat.hasMagic(channel)) {
+                return BinaryFormat.read(channel);
+            }
+            int sizeHint = (int) Math.min(channel.size() / JsonFormat.MIN_ENTRY_LENGTH, Integer.MAX_VALUE);
+            return JsonFormat.read(Channels.newReader(channel, StandardCharsets.UTF_8), sizeHint);
+        }
+    }
+
+    public static SecretsDatabase readFrom(InputStream in) throws IOException {
+        BufferedInputStream bufferedIn = new BufferedInputStream(in);
+        if (JournalFormat.hasMagic(bufferedIn)) {
+            return JournalFormat.read(ByteBuffer.wrap(bufferedIn.readAllBytes()), false);
+        }
+        if (BinaryFormat.hasMagic(bufferedIn)) {
+            return BinaryFormat.read(ByteBuffer.wrap(bufferedIn.readAllBytes()));
+        }
+        return JsonFormat.read(new InputStreamReader(bufferedIn, StandardCharsets.UTF_8), 0);
+    }
+
+    /**
+     * Reads a database from a buffer holding the contents of a file, typically one mapped into memory, without copying
+     * the secrets out of it. Only the positions of the secrets are kept on the heap, and they are decrypted every time
+     * they are looked up. The buffer must not change while the database is in use, so a mapped file must be replaced
+     * rather than written to, as {@link #saveTo(File)} does.
+     */
+    public static SecretsDatabase view(ByteBuffer contents) throws IOException {
+        if (JournalFormat.hasMagic(contents)) {
+            return JournalFormat.read(contents, true);
+        }
+        SecretsDatabase secretsDatabase = BinaryFormat.hasMagic(contents) ? BinaryFormat.read(contents) : JsonIndex.read(contents);
+        secretsDatabase.cacheDecryptions = false;
+        return secretsDatabase;
     }
 
     public SecretsDatabase saveTo(File secretFile) throws IOException {
-        Files.writeString(secretFile.toPath(), toJSON(), StandardCharsets.UTF_8);
+        return saveTo(secretFile, getFormat());
+    }
+
+    public SecretsDatabase saveTo(File secretFile, DatabaseFormat format) throws IOException {
+        return saveTo(secretFile, format, isJournaled());
+    }
+
+    /**
+     * Saves the secrets to the file. A journaled file that is still the one this database was read from, in the same
+     * format, only has the changes made since appended to it, until the journal has grown large enough to be worth
+     * compacting. Every other save rewrites the whole file, see {@link #compact(File)}.
+     *
+     * @param journaled whether to append later changes to the file, rather than rewrite it every time
+     */
+    public SecretsDatabase saveTo(File secretFile, DatabaseFormat format, boolean journaled) throws IOException {
+        if (shards > 0 && (format == DatabaseFormat.BINARY || journaled)) {
+            throw new IllegalArgumentException("The manifest of a sharded database can only be saved as JSON");
+        }
+        if (journaled && append(secretFile, format)) {
+            return this;
+        }
+        return rewrite(secretFile, format, journaled);
+    }
+
+    /**
+     * Rewrites the whole file, replacing a journal with a base that has all its changes applied.
+     */
+    public SecretsDatabase compact(File secretFile) throws IOException {
+        return rewrite(secretFile, getFormat(), isJournaled());
+    }
+
+    private boolean append(File secretFile, DatabaseFormat format) throws IOException {
+        JournalFormat.Journal journal;
+        List<byte[]> records;
+        synchronized (this) {
+            if (this.journal == null || this.format != format) {
+                return false;
+            }
+            journal = this.journal;
+            records = new ArrayList<>(pendingRecords);
+        }
+
+        JournalFormat.Journal appended = JournalFormat.append(secretFile.toPath(), journal, records);
+        if (appended == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            this.journal = appended;
+            this.generation += records.size();
+            // only the base has a checksum
+            this.checksum = null;
+            pendingRecords.subList(0, records.size()).clear();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the secrets to the file one at a time, so that saving takes no more memory however many there are. They
+     * are written to a temporary file that then replaces the file (or the target of the symbolic link), keeping its
+     * owner and permissions, so that readers only ever see the complete old or new contents. The file is never written
+     * in place, so saving fails if its directory is not writable. The file is locked as
+     * appends are, so that none are lost by being appended to it while it is rewritten.
+     */
+    private SecretsDatabase rewrite(File secretFile, DatabaseFormat format, boolean journaled) throws IOException {
+        Path target = secretFile.toPath();
+        if (Files.isSymbolicLink(target)) {
+            target = target.toRealPath();
+        }
+        try (FileChannel locked = Files.exists(target) ? Util.lock(target) : null) {
+            if (locked != null) {
+                catchUpWith(locked);
+            }
+
+            long generation;
+            String checksum;
+            Map<String, String> secrets;
+            synchronized (this) {
+                this.format = format;
+                generation = ++this.generation;
+                checksum = this.checksum = computeChecksum();
+                secrets = this.secrets;
+                pendingRecords.clear();
+            }
+
+            Path temporary = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            JournalFormat.Journal journal;
+            try {
+                journal = write(temporary, generation, checksum, secrets, format, journaled);
+                copyOwnerAndPermissions(target, temporary);
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AccessDeniedException e) {
+                // rather than writing the file in place, which readers, and mapped views above all, cannot cope with
+                throw new AccessDeniedException(target.toString(), temporary.toString(),
+                        "The directory of the secrets file must be writable, for the file to be replaced");
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+
+            synchronized (this) {
+                this.journal = journal;
+            }
+        }
         return this;
     }
 
+    /**
+     * Takes in what others saved to the journaled file this database was read from since, with the changes made to
+     * this database laid over it, so that rewriting the file does not undo theirs. A file that was rewritten since,
+     * typically by a compaction that took in everything appended until then, is read again as a whole, if its secrets
+     * are still encrypted with the same key.
+     */
+    private synchronized void catchUpWith(FileChannel channel) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        Map<String, String> caughtUp = JournalFormat.catchUp(secrets, journal, channel, pendingRecords);
+        if (caughtUp == null && JournalFormat.hasMagic(channel)) {
+            SecretsDatabase current = JournalFormat.read(channel);
+            if (current.secretKey.equals(secretKey)) {
+                caughtUp = JournalFormat.apply(current.getSecrets(), pendingRecords);
+            }
+        }
+        if (caughtUp == null || caughtUp == secrets) {
+            return;
+        }
+
+        Map<String, String> previous = secrets;
+        secrets = caughtUp;
+        for (String name : decryptedSecrets.keySet()) {
+            if (!Objects.equals(previous.get(name), caughtUp.get(name))) {
+                forget(name);
+            }
+        }
+    }
+
+    /**
+     * @return the journal of the file, or {@code null} if it is not journaled
+     */
+    private JournalFormat.Journal write(Path path, long generation, String checksum, Map<String, String> secrets, DatabaseFormat format, boolean journaled) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long baseOffset = journaled ? JournalFormat.BASE_OFFSET : 0;
+            channel.position(baseOffset);
+            if (format == DatabaseFormat.BINARY) {
+                BinaryFormat.write(new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE), generation, checksum, secretKey, secrets);
+            } else {
+                JsonFormat.write(new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE), generation, checksum, secretKey, shards, secrets, format);
+            }
+            JournalFormat.Journal journal = journaled ? JournalFormat.writeHeader(channel, channel.size() - baseOffset) : null;
+            channel.force(true);
+            return journal;
+        }
+    }
+
+    private static void copyOwnerAndPermissions(Path from, Path to) throws IOException {
+        PosixFileAttributeView fromView = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        if (fromView == null || !Files.exists(from)) {
+            return;
+        }
+        PosixFileAttributes attributes = fromView.readAttributes();
+        PosixFileAttributeView toView = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        toView.setPermissions(attributes.permissions());
+        try {
+            toView.setGroup(attributes.group());
+            toView.setOwner(attributes.owner());
+        } catch (IOException e) {
+            // only privileged users can give files away, and the file is theirs anyway otherwise
+        }
+    }
+
+    /**
+     * @return roughly how many bytes of heap this database holds on to, including the secrets decrypted so far. The
+     * contents of a database that is a view of a mapped file are not counted, as they are not on the heap.
+     */
+    public long getEstimatedSize() {
+        Map<String, String> secrets = this.secrets;
+        long size;
+        synchronized (this) {
+            if (sizedSecrets != secrets) {
+                secretsSize = HeapSize.of(secrets);
+                sizedSecrets = secrets;
+            }
+            size = secretsSize;
+        }
+
+        return size + HeapSize.OBJECT * 4 + HeapSize.of(secretKey) + HeapSize.of(checksum) + decryptedSize.sum();
+    }
+
+    /**
+     * @return the header that was read along with this database, or {@code null} if there was none, or if it does not
+     * match the secrets it was read with
+     */
+    public DatabaseHeader getHeader() {
+        synchronized (this) {
+            if (secrets instanceof BinaryFormat.IndexedSecrets) {
+                // as read from a binary file, which is only ever written by saveTo(), so there is no need to decode
+                // every secret to verify the checksum
+                return checksum == null ? null : new DatabaseHeader(generation, checksum);
+            }
+            if (checksum == null || !checksum.equals(computeChecksum())) {
+                return null;
+            }
+            return new DatabaseHeader(generation, checksum);
+        }
+    }
+
+    private String computeChecksum() {
+        CRC32C crc = new CRC32C();
+        update(crc, secretKey);
+        secrets.forEach((name, value) -> {
+            update(crc, name);
+            update(crc, value);
+        });
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static void update(Checksum checksum, String value) {
+        checksum.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        // separates the values, so that moving characters from one to the next changes the checksum
+        checksum.update(0);
+    }
+
     public String toJSON() {
-        return GSON.toJson(this);
+        StringWriter writer = new StringWriter();
+        try {
+            synchronized (this) {
+                JsonFormat.write(writer, generation, checksum, secretKey, shards, secrets, DatabaseFormat.JSON);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Applies the changes appended to the journal of the file since this database was read from it, without reading
+     * the rest of the file again.
+     *
+     * @return the database as it is in the file now, or {@code null} if this database is not journaled, or if the file
+     * was rewritten since it was read, in which case it has to be read again as a whole
+     */
+    public SecretsDatabase readAppended(FileChannel channel) throws IOException {
+        JournalFormat.Journal journal;
+        synchronized (this) {
+            journal = this.journal;
+        }
+        return journal == null ? null : JournalFormat.readAppended(this, journal, channel);
+    }
+
+    // a copy of this database with the records that were replayed from its journal
+    synchronized SecretsDatabase withJournal(Map<String, String> secrets, int records, JournalFormat.Journal journal) {
+        SecretsDatabase journaled = new SecretsDatabase(secretKey, generation + records, null, secrets, format);
+        journaled.journal = journal;
+        journaled.cacheDecryptions = cacheDecryptions;
+        if (offHeapValues != null) {
+            // none are copied, and the values of the secrets that changed are wiped as they are not carried over
+            journaled.offHeapValues = offHeapValues;
+            offHeapValuesHandedOn = true;
+        }
+        journaled.carryOverDecryptionsFrom(this);
+        return journaled;
+    }
+
+    /**
+     * Keeps the secrets that the given database, read from the same file before this one, has decrypted, where they
+     * are encrypted with the same key and to the same value in this one, so that they are not decrypted again. Only
+     * the secrets that were decrypted are compared, however many others there are.
+     * <p>
+     * Must be called before this database is looked up in.
+     *
+     * @return how many decrypted secrets were kept, and how many were dropped as changed or removed
+     */
+    public CarriedOver carryOverDecryptionsFrom(SecretsDatabase previous) {
+        boolean sameKey = cacheDecryptions && secretKey.equals(previous.secretKey);
+        if (sameKey && cipher == null) {
+            cipher = previous.cipher;
+        }
+        Map<String, String> secrets = this.secrets;
+        int kept = 0;
+        int dropped = 0;
+        for (Map.Entry<String, DecryptedSecret> decryptedSecret : previous.decryptedSecrets.entrySet()) {
+            DecryptedSecret sameValue = sameKey ? decryptedSecret.getValue().carriedOverTo(secrets, decryptedSecret.getKey()) : null;
+            DecryptedSecret carried = sameValue == null ? null : moveFrom(previous, sameValue);
+            if (carried != null) {
+                decryptedSecrets.computeIfAbsent(decryptedSecret.getKey(), key -> counted(key, null, carried));
+                kept++;
+            } else {
+                wipeIfShared(previous, decryptedSecret.getKey(), decryptedSecret.getValue());
+                dropped++;
+            }
+        }
+        carriedOver = new CarriedOver(kept, dropped);
+        return carriedOver;
+    }
+
+    // as the previous database would otherwise only wipe it with all the values it handed on to this one
+    private void wipeIfShared(SecretsDatabase previous, String name, DecryptedSecret decryptedSecret) {
+        if (offHeapValues == null || offHeapValues != previous.offHeapValues || decryptedSecret.slot < 0) {
+            return;
+        }
+        previous.forget(name);
+        offHeapValues.wipe(decryptedSecret.slot);
     }
 
+    // to where this database keeps decrypted values, or null if it cannot
+    private DecryptedSecret moveFrom(SecretsDatabase previous, DecryptedSecret decryptedSecret) {
+        if (decryptedSecret.slot == DecryptedSecret.NOT_KEPT) {
+            return null;
+        }
+        if (decryptedSecret.slot == OffHeapValues.NO_SLOT) {
+            DecryptedSecret kept = keep(decryptedSecret);
+            return kept.slot == DecryptedSecret.NOT_KEPT ? null : kept;
+        }
+        if (offHeapValues != null && offHeapValues == previous.offHeapValues) {
+            return decryptedSecret;
+        }
+        if (offHeapValues != null) {
+            long slot = offHeapValues.copy(previous.offHeapValues, decryptedSecret.slot);
+            return slot == OffHeapValues.NO_SLOT ? null : decryptedSecret.withValue(null, slot);
+        }
+        String value = previous.offHeapValues.get(decryptedSecret.slot);
+        return value == null ? null : decryptedSecret.withValue(value, OffHeapValues.NO_SLOT);
+    }
+
+    /**
+     * @return what {@link #carryOverDecryptionsFrom(SecretsDatabase)} kept, or {@code null} if it was not called
+     */
+    public CarriedOver getCarriedOver() {
+        return carriedOver;
+    }
+
+    /**
+     * Decrypts all the secrets that were not decrypted yet, split across the threads of the given pool, so that none
+     * of them are decrypted when they are first looked up. Secrets that cannot be decrypted are left to fail when they
+     * are looked up, as they would otherwise. Does nothing for views, which never keep secrets decrypted.
+     *
+     * @return how many secrets were decrypted, how long that took, and how much more memory this database takes up
+     */
+    public PreDecrypted preDecrypt(ForkJoinPool pool) throws InterruptedException {
+        if (!cacheDecryptions) {
+            return new PreDecrypted(0, 0, 0, 0, 0);
+        }
+        List<String> names = new ArrayList<>(secrets.keySet());
+        int decryptedBefore = decryptedSecrets.size();
+        long sizeBefore = getEstimatedSize();
+        int offHeapBefore = offHeapValues == null ? 0 : offHeapValues.used();
+        LongAdder failed = new LongAdder();
+
+        long start = System.nanoTime();
+        try {
+            // the parallel stream is split across the threads of the pool it is run in
+            pool.submit(() -> names.parallelStream().forEach(name -> {
+                try {
+                    getSecret(name);
+                } catch (RuntimeException e) {
+                    failed.increment();
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return new PreDecrypted(decryptedSecrets.size() - decryptedBefore, failed.intValue(), elapsed,
+                getEstimatedSize() - sizeBefore, offHeapValues == null ? 0 : offHeapValues.used() - offHeapBefore);
+    }
+
+    /**
+     * @return the names of the secrets, as read, whose values are not encrypted the way they should be, and so cannot
+     * be decrypted when they are looked up
+     */
+    public List<String> getMalformedSecrets() {
+        Map<String, String> secrets = this.secrets;
+        return secrets instanceof PackedSecrets ? ((PackedSecrets) secrets).getMalformed() : Collections.emptyList();
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    public synchronized boolean isJournaled() {
+        return journal != null;
+    }
+
+    public boolean isSharded() {
+        return shards > 0;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the shard the secret with the given name belongs in, if this is the manifest of a sharded database
+     */
+    public int shardOf(String name) {
+        if (shards == 0) {
+            throw new IllegalStateException("Not a sharded database");
+        }
+        return Math.floorMod(BinaryFormat.mix(name.hashCode()), shards);
+    }
+
+    /**
+     * @return the file holding the given shard, which sits next to the manifest
+     */
+    public File shardFile(File manifestFile, int shard) {
+        if (shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("No shard " + shard + " in a database with " + shards + " shards");
+        }
+        return new File(manifestFile.getPath() + "." + shard);
+    }
+
+    /**
+     * @return an empty shard of this sharded database, encrypting secrets with the same key
+     */
+    public SecretsDatabase newShard() {
+        if (shards == 0) {
+            throw new IllegalStateException("Not a sharded database");
+        }
+        return new SecretsDatabase(secretKey);
+    }
+
+    public synchronized DatabaseFormat getFormat() {
+        return format;
+    }
 
     // for testing
     String getSecretKey() {
         return secretKey;
     }
 
-    LinkedHashMap<String, String> getSecrets() {
+    Map<String, String> getSecrets() {
         return secrets;
     }
+
+    /**
+     * How many of the secrets decrypted by a database were kept, when it was read again.
+     */
+    public static final class CarriedOver {
+
+        private final int kept;
+
+        private final int dropped;
+
+        private CarriedOver(int kept, int dropped) {
+            this.kept = kept;
+            this.dropped = dropped;
+        }
+
+        public int getKept() {
+            return kept;
+        }
+
+        public int getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("kept %d decrypted secrets, and dropped %d that were changed or removed", kept, dropped);
+        }
+    }
+
+    /**
+     * What {@link #preDecrypt(ForkJoinPool)} decrypted, and what that cost.
+     */
+    public static final class PreDecrypted {
+
+        private final int decrypted;
+
+        private final int failed;
+
+        private final long elapsedNanos;
+
+        private final long heapSize;
+
+        private final long offHeapSize;
+
+        private PreDecrypted(int decrypted, int failed, long elapsedNanos, long heapSize, long offHeapSize) {
+            this.decrypted = decrypted;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.heapSize = heapSize;
+            this.offHeapSize = offHeapSize;
+        }
+
+        public int getDecrypted() {
+            return decrypted;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return roughly how many more bytes of heap the database takes up for the secrets that were decrypted
+         */
+        public long getHeapSize() {
+            return heapSize;
+        }
+
+        /**
+         * @return how many more bytes the database keeps off the heap for the secrets that were decrypted
+         */
+        public long getOffHeapSize() {
+            return offHeapSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("decrypted %d secrets in %d ms, taking up about %d KiB more of heap and %d KiB off it%s",
+                    decrypted, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), heapSize / 1024, offHeapSize / 1024,
+                    failed == 0 ? "" : ", and failed to decrypt " + failed);
+        }
+    }
+
+    static final class DecryptedSecret {
+
+        // the value did not fit off the heap, so the secret is decrypted every time
+        private static final long NOT_KEPT = -2;
+
+        // either the encrypted value, or the encoded secrets and the entry of the secret in them
+        private final String encryptedValue;
+
+        private final EncodedSecrets encodedSecrets;
+
+        private final int entry;
+
+        // or where it is kept off the heap
+        private final String value;
+
+        private final long slot;
+
+        private DecryptedSecret(String encryptedValue, String value) {
+            this(encryptedValue, null, -1, value, OffHeapValues.NO_SLOT);
+        }
+
+        private DecryptedSecret(EncodedSecrets encodedSecrets, int entry, String value) {
+            this(null, encodedSecrets, entry, value, OffHeapValues.NO_SLOT);
+        }
+
+        private DecryptedSecret(String encryptedValue, EncodedSecrets encodedSecrets, int entry, String value, long slot) {
+            this.encryptedValue = encryptedValue;
+            this.encodedSecrets = encodedSecrets;
+            this.entry = entry;
+            this.value = value;
+            this.slot = slot;
+        }
+
+        private DecryptedSecret withValue(String value, long slot) {
+            return new DecryptedSecret(encryptedValue, encodedSecrets, entry, value, slot);
+        }
+
+        // the secret may have been replaced since it was decrypted
+        private boolean isDecryptionOf(String encryptedValue) {
+            return this.encryptedValue != null && this.encryptedValue.equals(encryptedValue);
+        }
+
+        // encoded secrets never change
+        private boolean isDecryptionOf(EncodedSecrets encodedSecrets, int entry) {
+            return this.encodedSecrets == encodedSecrets && this.entry == entry;
+        }
+
+        /**
+         * @return this decryption of the secret with the given name, for the given secrets, or {@code null} if it is
+         * not encrypted to the same value in them
+         */
+        private DecryptedSecret carriedOverTo(Map<String, String> secrets, String name) {
+            if (secrets instanceof EncodedSecrets) {
+                EncodedSecrets encoded = (EncodedSecrets) secrets;
+                int encodedEntry = encoded.find(name);
+                boolean same = encodedEntry >= 0 && (encodedSecrets != null
+                        ? encoded.sameValue(encodedEntry, encodedSecrets, entry)
+                        : encryptedValue.equals(encoded.valueOf(encodedEntry)));
+                return same ? new DecryptedSecret(null, encoded, encodedEntry, value, slot) : null;
+            }
+            String newEncryptedValue = secrets.get(name);
+            boolean same = newEncryptedValue != null && newEncryptedValue.equals(encodedSecrets != null ? encodedSecrets.valueOf(entry) : encryptedValue);
+            return same ? new DecryptedSecret(newEncryptedValue, null, -1, value, slot) : null;
+        }
+    }
 }
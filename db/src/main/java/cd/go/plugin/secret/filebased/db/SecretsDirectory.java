@@ -0,0 +1,285 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Secrets kept as a directory of files, one per secret, named after it and holding its encrypted value, along with a
+ * file holding the key they are encrypted with. This is how secrets mounted into Kubernetes pods are laid out, so that
+ * a secret can be rotated by replacing its file alone.
+ * <p>
+ * Only the names of the secrets are listed upfront. A file is read and decrypted the first time its secret is looked
+ * up, and only read again when {@link #refresh()} finds that it changed.
+ */
+public final class SecretsDirectory implements SecretStore {
+
+    // hidden, like the bookkeeping entries (..data and the like) Kubernetes puts next to mounted secrets
+    public static final String KEY_FILE_NAME = ".secret_key";
+
+    private final Path directory;
+
+    // built once from the key file, and again once the file changes
+    private volatile Key secretKey;
+
+    // every secret in the directory, with its value once it has been looked up
+    private final ConcurrentHashMap<String, Optional<Loaded>> secrets = new ConcurrentHashMap<>();
+
+    // bumped whenever a secret is found to have been added, changed or removed
+    private final AtomicLong generation = new AtomicLong();
+
+    public SecretsDirectory(File directory) throws IOException {
+        this.directory = directory.toPath();
+        refresh();
+    }
+
+    /**
+     * Creates the directory, with a new key to encrypt its secrets with.
+     */
+    public static SecretsDirectory init(File directory) throws IOException, NoSuchAlgorithmException {
+        Files.createDirectories(directory.toPath());
+        write(directory.toPath().resolve(KEY_FILE_NAME), Base64.getEncoder().encodeToString(Cipher.generateKey()));
+        return new SecretsDirectory(directory);
+    }
+
+    @Override
+    public String getSecret(String name) throws IOException {
+        Optional<Loaded> secret = secrets.get(name);
+        if (secret == null) {
+            return null;
+        }
+        if (secret.isPresent()) {
+            return secret.get().value;
+        }
+
+        Cipher cipher = getSecretKey().cipher;
+        Loaded loaded = Loaded.read(fileOf(name), encryptedValue -> decrypt(cipher, encryptedValue));
+        if (loaded == null) {
+            // removed since the directory was listed
+            return null;
+        }
+        // unless it was refreshed or removed in the meantime
+        secrets.replace(name, secret, Optional.of(loaded));
+        return loaded.value;
+    }
+
+    @Override
+    public Set<String> getAllSecretKeys() {
+        return Collections.unmodifiableSet(new TreeSet<>(secrets.keySet()));
+    }
+
+    public SecretsDirectory addSecret(String name, String value) throws IOException, GeneralSecurityException {
+        write(fileOf(name), getSecretKey().cipher.encrypt(value));
+        secrets.put(name, Optional.empty());
+        generation.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * @return whether there was a secret to remove
+     */
+    public boolean removeSecret(String name) throws IOException {
+        boolean removed = Files.deleteIfExists(fileOf(name));
+        secrets.remove(name);
+        generation.incrementAndGet();
+        return removed;
+    }
+
+    /**
+     * Lists the secrets in the directory again, and forgets the values of the secrets whose files changed since they
+     * were read, so that they are read again the next time they are looked up. Only the files that were read are
+     * looked at, so this takes no longer however many secrets are never looked up.
+     */
+    public void refresh() throws IOException {
+        Key key = secretKey;
+        if (key != null && key.file.isStale()) {
+            // everything was decrypted with the old key
+            secretKey = null;
+            secrets.replaceAll((name, secret) -> Optional.empty());
+            generation.incrementAndGet();
+        }
+
+        Set<String> names = new HashSet<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> !file.getFileName().toString().startsWith(".") && Files.isRegularFile(file))
+                    .forEach(file -> names.add(file.getFileName().toString()));
+        }
+
+        boolean changed = secrets.keySet().retainAll(names);
+        for (String name : names) {
+            changed |= secrets.putIfAbsent(name, Optional.empty()) == null;
+        }
+        for (Map.Entry<String, Optional<Loaded>> secret : secrets.entrySet()) {
+            Optional<Loaded> loaded = secret.getValue();
+            if (loaded.isPresent() && loaded.get().isStale()) {
+                changed |= secrets.replace(secret.getKey(), loaded, Optional.empty());
+            }
+        }
+        if (changed) {
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return a number that changes whenever {@link #refresh()} finds that secrets were added, changed or removed. The
+     * files of secrets that were never looked up are not looked at, so changes to them alone do not count.
+     */
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return roughly how many bytes of heap the names of the secrets, and the values of those that were looked up,
+     * take up
+     */
+    public long getEstimatedSize() {
+        long size = HeapSize.OBJECT * 4;
+        for (Map.Entry<String, Optional<Loaded>> secret : secrets.entrySet()) {
+            size += HeapSize.MAP_ENTRY + HeapSize.of(secret.getKey()) + HeapSize.OBJECT;
+            if (secret.getValue().isPresent()) {
+                size += secret.getValue().get().estimatedSize();
+            }
+        }
+        return size;
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    private Key getSecretKey() throws IOException {
+        Key key = secretKey;
+        if (key == null) {
+            Loaded file = Loaded.read(directory.resolve(KEY_FILE_NAME), String::trim);
+            if (file == null) {
+                throw new NoSuchFileException(directory.resolve(KEY_FILE_NAME).toString(), null, "The secrets directory has no key");
+            }
+            key = new Key(file, new Cipher(file.value));
+            secretKey = key;
+        }
+        return key;
+    }
+
+    private Path fileOf(String name) {
+        if (name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains(File.separator)) {
+            throw new IllegalArgumentException("Secrets kept in a directory cannot be named '" + name + "'");
+        }
+        return directory.resolve(name);
+    }
+
+    private static String decrypt(Cipher cipher, String encryptedValue) {
+        try {
+            return cipher.decrypt(encryptedValue.trim());
+        } catch (BadSecretException | GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // replaces the file, so that readers never see it half written
+    private static void write(Path file, String contents) throws IOException {
+        Path temporary = file.resolveSibling("." + file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.writeString(temporary, contents, StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * The key file as it was read, and a cipher bound to the key in it.
+     */
+    private static final class Key {
+
+        private final Loaded file;
+
+        private final Cipher cipher;
+
+        private Key(Loaded file, Cipher cipher) {
+            this.file = file;
+            this.cipher = cipher;
+        }
+    }
+
+    /**
+     * What was made of the contents of a file, along with the attributes the file had when it was read.
+     */
+    private static final class Loaded {
+
+        private final Path file;
+
+        private final List<Object> attributes;
+
+        private final String value;
+
+        private Loaded(Path file, List<Object> attributes, String value) {
+            this.file = file;
+            this.attributes = attributes;
+            this.value = value;
+        }
+
+        /**
+         * @return what was made of the file, or {@code null} if there is no such file
+         */
+        private static Loaded read(Path file, UnaryOperator<String> parser) throws IOException {
+            List<Object> attributes = attributesOf(file);
+            if (attributes == null) {
+                return null;
+            }
+            try {
+                return new Loaded(file, attributes, parser.apply(Files.readString(file, StandardCharsets.UTF_8)));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        // the path is the directory's, and the attributes are a few small objects
+        private long estimatedSize() {
+            return HeapSize.OBJECT * 2 + HeapSize.ARRAY + HeapSize.OBJECT * 4 + HeapSize.of(value);
+        }
+
+        // the attributes were read before the contents, so a change made while reading is picked up next time
+        private boolean isStale() throws IOException {
+            return !attributes.equals(attributesOf(file));
+        }
+
+        // a mounted secret is updated by swapping a symbolic link, which these follow to the file it now points at
+        private static List<Object> attributesOf(Path file) throws IOException {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -17,6 +17,13 @@
 package cd.go.plugin.secret.filebased.db;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
 
 public class Util {
 
@@ -24,6 +31,67 @@ public class Util {
         return text == null || text.trim().length() == 0;
     }
 
+    static boolean startsWith(ByteBuffer contents, byte[] prefix) {
+        if (contents.limit() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (contents.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean startsWith(FileChannel channel, byte[] prefix) throws IOException {
+        return startsWith(readFully(channel, 0, prefix.length), prefix);
+    }
+
+    /**
+     * Checks the first bytes without consuming them; the stream must support {@link InputStream#mark(int)}.
+     */
+    static boolean startsWith(InputStream in, byte[] prefix) throws IOException {
+        in.mark(prefix.length);
+        byte[] bytes = in.readNBytes(prefix.length);
+        in.reset();
+        return startsWith(ByteBuffer.wrap(bytes), prefix);
+    }
+
+    /**
+     * Reads from the given position without moving the position of the channel.
+     *
+     * @return a buffer with up to {@code length} bytes, fewer if the file ends first
+     */
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // keep reading until the buffer is full, or the file ends
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Opens the file for reading and writing, and locks it against other processes, until the channel is closed. A
+     * file that was replaced while waiting for the lock is opened again, so that the lock is always on the file that
+     * is at the path.
+     */
+    static FileChannel lock(Path path) throws IOException {
+        while (true) {
+            Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                channel.lock();
+                if (fileKey == null || Objects.equals(fileKey, Files.readAttributes(path, BasicFileAttributes.class).fileKey())) {
+                    return channel;
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+        }
+    }
+
     public static void withCapturedSysOut(ThrowingBiConsumer<String, String> throwingBiConsumer) throws Exception {
         PrintStream originalSystemOutStream = System.out;
         PrintStream originalSystemErrorStream = System.err;
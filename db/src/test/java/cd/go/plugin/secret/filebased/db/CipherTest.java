@@ -89,5 +89,43 @@ class CipherTest {
             assertThatCode(() -> Cipher.decrypt(key, "junk")).hasMessage("Bad cipher text")
                     .isInstanceOf(BadSecretException.class);
         }
+
+        @Test
+        void shouldDecryptValuesOfAnyLengthWithTheSameCipher() throws GeneralSecurityException, BadSecretException {
+            String key = Base64.getEncoder().encodeToString(Cipher.generateKey());
+            Cipher cipher = new Cipher(key);
+
+            for (String clearText : new String[]{"", "foo", "b\u00e4r \u2713", "x".repeat(1000), "y"}) {
+                assertThat(cipher.decrypt(Cipher.encrypt(key, clearText))).isEqualTo(clearText);
+                assertThat(Cipher.decrypt(key, cipher.encrypt(clearText))).isEqualTo(clearText);
+            }
+        }
+
+        @Test
+        void shouldDecryptWithCiphersOfDifferentKeysTakingTurnsOnTheSameThread() throws GeneralSecurityException, BadSecretException {
+            String key = Base64.getEncoder().encodeToString(Cipher.generateKey());
+            String otherKey = Base64.getEncoder().encodeToString(Cipher.generateKey());
+            Cipher cipher = new Cipher(key);
+            Cipher otherCipher = new Cipher(otherKey);
+
+            for (int i = 0; i < 3; i++) {
+                assertThat(cipher.decrypt(Cipher.encrypt(key, "foo"))).isEqualTo("foo");
+                assertThat(otherCipher.decrypt(Cipher.encrypt(otherKey, "bar"))).isEqualTo("bar");
+            }
+        }
+
+        @Test
+        void shouldFailIfEncryptedValueIsNotAnAesEnvelope() throws GeneralSecurityException {
+            String key = Base64.getEncoder().encodeToString(Cipher.generateKey());
+            Cipher cipher = new Cipher(key);
+            String encryptedValue = Cipher.encrypt(key, "foo");
+
+            for (String junk : new String[]{"", "AES", "AES:", "AES::", "DES" + encryptedValue.substring(3), encryptedValue + ":extra",
+                    encryptedValue.replaceFirst(":", ": "), encryptedValue.substring(0, encryptedValue.lastIndexOf(':') + 1) + " ",
+                    encryptedValue.replace('A', '*')}) {
+                assertThatCode(() -> cipher.decrypt(junk)).hasMessage("Bad cipher text")
+                        .isInstanceOf(BadSecretException.class);
+            }
+        }
     }
 }
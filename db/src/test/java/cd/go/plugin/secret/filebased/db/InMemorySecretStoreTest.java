@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InMemorySecretStoreTest {
+
+    @Test
+    void shouldBumpTheGenerationOnEveryChange() {
+        InMemorySecretStore secretStore = new InMemorySecretStore().addSecret("username", "admin");
+        long generation = secretStore.getGeneration();
+
+        secretStore.addSecret("password", "p@ssw0rd");
+        assertThat(secretStore.getGeneration()).isGreaterThan(generation);
+        generation = secretStore.getGeneration();
+
+        secretStore.removeSecret("foo");
+        assertThat(secretStore.getGeneration()).isEqualTo(generation);
+
+        secretStore.removeSecret("password");
+        assertThat(secretStore.getGeneration()).isGreaterThan(generation);
+        assertThat(secretStore.getSecret("password")).isNull();
+        assertThat(secretStore.getAllSecretKeys()).containsExactly("username");
+    }
+
+    @Test
+    void shouldLookUpSecretsInTheOrderTheyWereAskedFor() throws IOException {
+        InMemorySecretStore secretStore = new InMemorySecretStore()
+                .addSecret("a", "1")
+                .addSecret("b", "2")
+                .addSecret("c", "3");
+
+        assertThat(secretStore.getSecrets(Arrays.asList("c", "foo", "a")).keySet()).containsExactly("c", "a");
+        assertThat(secretStore.getSecrets(Arrays.asList("c", "foo", "a")).values()).containsExactly("3", "1");
+    }
+
+    @Test
+    void shouldCopyTheDecryptedSecretsOfAnotherStore(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File databaseFile = new File(tempDir, "secrets.json");
+        new SecretsDatabase().addSecret("username", "admin").addSecret("password", "p@ssw0rd").saveTo(databaseFile);
+        SecretStore secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+
+        InMemorySecretStore copy = InMemorySecretStore.copyOf(secretsDatabase);
+
+        assertThat(copy.getSecret("password")).isEqualTo("p@ssw0rd");
+        assertThat(copy.getAllSecretKeys()).containsExactlyInAnyOrder("username", "password");
+        assertThat(copy.getGeneration()).isEqualTo(secretsDatabase.getGeneration());
+    }
+}
@@ -22,9 +22,31 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 class SecretsDatabaseTest {
 
@@ -77,6 +99,94 @@ class SecretsDatabaseTest {
         assertThat(secretsDatabase.decryptedSecrets).doesNotContainKeys("foo");
     }
 
+    @Test
+    void allSecretKeysShouldBeASnapshotThatIsNotAffectedByLaterChanges() throws GeneralSecurityException {
+        SecretsDatabase secretsDatabase = new SecretsDatabase();
+        secretsDatabase.addSecret("foo", "bar");
+
+        Set<String> keys = secretsDatabase.getAllSecretKeys();
+        secretsDatabase.addSecret("baz", "quux");
+        secretsDatabase.removeSecret("foo");
+
+        assertThat(keys).containsExactly("foo");
+        assertThat(secretsDatabase.getAllSecretKeys()).containsExactly("baz");
+    }
+
+    @Test
+    void shouldLookupSecretsConcurrently() throws Exception {
+        SecretsDatabase secretsDatabase = new SecretsDatabase();
+        for (int i = 0; i < 64; i++) {
+            secretsDatabase.addSecret("secret-" + i, "value-" + i);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<String>> lookups = new ArrayList<>();
+            for (int i = 0; i < 1024; i++) {
+                String name = "secret-" + (i % 64);
+                lookups.add(executorService.submit(() -> secretsDatabase.getSecret(name)));
+            }
+            for (int i = 0; i < lookups.size(); i++) {
+                assertThat(lookups.get(i).get()).isEqualTo("value-" + (i % 64));
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldNotReturnAStaleDecryptionOfAReplacedSecret() throws GeneralSecurityException {
+        SecretsDatabase secretsDatabase = new SecretsDatabase();
+
+        secretsDatabase.addSecret("foo", "bar");
+        assertThat(secretsDatabase.getSecret("foo")).isEqualTo("bar");
+
+        secretsDatabase.addSecret("foo", "baz");
+        assertThat(secretsDatabase.getSecret("foo")).isEqualTo("baz");
+    }
+
+    @Test
+    void shouldEstimateTheHeapItTakesUpIncludingDecryptedSecrets(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File databaseFile = new File(tempDir, "db.json");
+        SecretsDatabase secretsDatabase = new SecretsDatabase();
+        for (int i = 0; i < 1000; i++) {
+            secretsDatabase.addSecret("secret-" + i, "value-" + i);
+        }
+        secretsDatabase.saveTo(databaseFile);
+
+        SecretsDatabase read = SecretsDatabase.readFrom(databaseFile);
+        long size = read.getEstimatedSize();
+        assertThat(size).isGreaterThan(Files.size(databaseFile.toPath()));
+
+        read.getSecret("secret-42");
+        assertThat(read.getEstimatedSize()).isGreaterThan(size);
+
+        try (FileChannel channel = FileChannel.open(databaseFile.toPath(), StandardOpenOption.READ)) {
+            SecretsDatabase view = SecretsDatabase.view(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            assertThat(view.getEstimatedSize()).isLessThan(size);
+        }
+    }
+
+    @Test
+    void shouldCountDecryptedSecretsAsTheyAreAddedAndRemoved(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File databaseFile = new File(tempDir, "db.json");
+        new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile);
+        SecretsDatabase read = SecretsDatabase.readFrom(databaseFile);
+        long size = read.getEstimatedSize();
+
+        read.getSecret("foo");
+        read.getSecret("baz");
+        long decrypted = read.getEstimatedSize() - size;
+        assertThat(decrypted).isGreaterThan(0);
+
+        SecretsDatabase reread = SecretsDatabase.readFrom(databaseFile);
+        reread.carryOverDecryptionsFrom(read);
+        assertThat(reread.getEstimatedSize()).isEqualTo(size + decrypted);
+
+        read.close();
+        assertThat(read.getEstimatedSize()).isEqualTo(size);
+    }
+
     @Nested
     class Persistance {
 
@@ -97,5 +207,939 @@ class SecretsDatabaseTest {
             assertThat(secretsDatabase.getSecretKey()).isEqualTo(loadedDB.getSecretKey());
             assertThat(secretsDatabase.getSecrets()).isEqualTo(loadedDB.getSecrets());
         }
+
+        @Test
+        void shouldKeepTheDecryptionsOfSecretsThatDidNotChangeWhenReadAgain(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").addSecret("gone", "soon").saveTo(databaseFile);
+            SecretsDatabase previous = SecretsDatabase.readFrom(databaseFile);
+            previous.getAllSecretKeys().forEach(previous::getSecret);
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "changed").removeSecret("gone").addSecret("new", "secret").saveTo(databaseFile);
+            SecretsDatabase reread = SecretsDatabase.readFrom(databaseFile);
+            SecretsDatabase.CarriedOver carriedOver = reread.carryOverDecryptionsFrom(previous);
+
+            assertThat(carriedOver.getKept()).isEqualTo(1);
+            assertThat(carriedOver.getDropped()).isEqualTo(2);
+            assertThat(reread.getCarriedOver()).isSameAs(carriedOver);
+            assertThat(reread.decryptedSecrets).containsOnlyKeys("foo");
+            assertThat(reread.getSecret("foo")).isEqualTo("bar");
+            assertThat(reread.getSecret("baz")).isEqualTo("changed");
+            assertThat(reread.getSecret("new")).isEqualTo("secret");
+        }
+
+        @Test
+        void shouldNotKeepDecryptionsMadeWithAnotherKey() throws GeneralSecurityException {
+            SecretsDatabase previous = new SecretsDatabase().addSecret("foo", "bar");
+            previous.getSecret("foo");
+            SecretsDatabase rekeyed = new SecretsDatabase(new SecretsDatabase().getSecretKey(), 1, null, previous.getSecrets(), DatabaseFormat.JSON);
+
+            SecretsDatabase.CarriedOver carriedOver = rekeyed.carryOverDecryptionsFrom(previous);
+
+            assertThat(carriedOver.getKept()).isZero();
+            assertThat(carriedOver.getDropped()).isEqualTo(1);
+            assertThat(rekeyed.decryptedSecrets).isEmpty();
+        }
+
+        @Test
+        void shouldPreDecryptTheSecretsThatWereNotDecryptedYet(@TempDir File tempDir) throws GeneralSecurityException, IOException, InterruptedException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 100; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            readDB.getSecret("secret-42");
+
+            ForkJoinPool pool = new ForkJoinPool(2);
+            try {
+                SecretsDatabase.PreDecrypted preDecrypted = readDB.preDecrypt(pool);
+
+                assertThat(preDecrypted.getDecrypted()).isEqualTo(99);
+                assertThat(preDecrypted.getFailed()).isZero();
+                assertThat(preDecrypted.getHeapSize()).isGreaterThan(0);
+                assertThat(preDecrypted.getOffHeapSize()).isZero();
+                assertThat(readDB.decryptedSecrets).hasSize(100);
+                assertThat(readDB.getSecret("secret-7")).isEqualTo("value-7");
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @Test
+        void shouldIgnoreUnknownFieldsWhenReading(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar");
+            File databaseFile = new File(tempDir, "db.json");
+            Files.writeString(databaseFile.toPath(), "{\"comment\": {\"nested\": [1, 2]}, " +
+                    "\"secret_key\": \"" + secretsDatabase.getSecretKey() + "\", " +
+                    "\"secrets\": {\"foo\": \"" + secretsDatabase.getSecrets().get("foo") + "\"}, \"unknown\": null}");
+
+            assertThat(SecretsDatabase.readFrom(databaseFile).getSecret("foo")).isEqualTo("bar");
+        }
+
+        @Test
+        void shouldTellWhichSecretsAreMalformedWhenReading(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar");
+            String encryptedValue = secretsDatabase.getSecrets().get("foo");
+            String unpadded = encryptedValue.replace("=", "");
+            File databaseFile = new File(tempDir, "db.json");
+            Files.writeString(databaseFile.toPath(), "{\"secret_key\": \"" + secretsDatabase.getSecretKey() + "\", " +
+                    "\"secrets\": {\"foo\": \"" + encryptedValue + "\", \"junk\": \"AES:???:!!!\", \"unpadded\": \"" + unpadded + "\", \"empty\": null}}");
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+
+            assertThat(readDB.getMalformedSecrets()).containsExactly("junk", "empty");
+            assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+            assertThat(readDB.getSecret("unpadded")).isEqualTo("bar");
+            assertThat(readDB.getSecret("empty")).isNull();
+            assertThatCode(() -> readDB.getSecret("junk")).isInstanceOf(RuntimeException.class);
+            // kept as they are
+            assertThat(readDB.getSecrets()).containsEntry("foo", encryptedValue).containsEntry("junk", "AES:???:!!!").containsEntry("unpadded", unpadded);
+        }
+
+        @Test
+        void shouldKeepReadSecretsInLessHeapThanAMapOfStrings(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 1000; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            File databaseFile = new File(tempDir, "db.json");
+            secretsDatabase.saveTo(databaseFile);
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+
+            assertThat(readDB.getSecrets()).isEqualTo(secretsDatabase.getSecrets());
+            assertThat(HeapSize.of(readDB.getSecrets())).isLessThan(HeapSize.of(new LinkedHashMap<>(readDB.getSecrets())) * 2 / 3);
+            assertThat(readDB.getSecret("secret-999")).isEqualTo("value-999");
+        }
+
+        @Test
+        void shouldFailToReadMalformedDatabase(@TempDir File tempDir) throws IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            Files.writeString(databaseFile.toPath(), "{\"secret_key\": \"foo\", \"secrets\": [");
+
+            assertThatCode(() -> SecretsDatabase.readFrom(databaseFile)).isInstanceOf(IOException.class);
+        }
+
+        @Test
+        void shouldPersistDBToDiskInCompactFormat(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux");
+            File prettyFile = new File(tempDir, "pretty.json");
+            File compactFile = new File(tempDir, "compact.json");
+
+            secretsDatabase.saveTo(prettyFile);
+            secretsDatabase.saveTo(compactFile, DatabaseFormat.COMPACT_JSON);
+
+            assertThat(Files.readString(compactFile.toPath())).doesNotContain("\n", " ");
+            assertThat(compactFile.length()).isLessThan(prettyFile.length());
+
+            SecretsDatabase loadedDB = SecretsDatabase.readFrom(compactFile);
+            assertThat(loadedDB.getFormat()).isEqualTo(DatabaseFormat.COMPACT_JSON);
+            assertThat(loadedDB.getSecret("foo")).isEqualTo("bar");
+            assertThat(loadedDB.getSecret("baz")).isEqualTo("quux");
+            assertThat(SecretsDatabase.readFrom(prettyFile).getFormat()).isEqualTo(DatabaseFormat.JSON);
+        }
+
+        @Test
+        void shouldKeepTheFormatTheDatabaseWasReadIn(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().saveTo(databaseFile, DatabaseFormat.COMPACT_JSON);
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("foo", "bar").saveTo(databaseFile);
+
+            assertThat(SecretsDatabase.readFrom(databaseFile).getFormat()).isEqualTo(DatabaseFormat.COMPACT_JSON);
+        }
+
+        @Test
+        void shouldOverwriteALargerDatabaseCompletely(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 100; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile);
+
+            for (int i = 1; i < 100; i++) {
+                secretsDatabase.removeSecret("secret-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile);
+
+            assertThat(SecretsDatabase.readFrom(databaseFile).getAllSecretKeys()).containsExactly("secret-0");
+        }
+    }
+
+    @Nested
+    class Binary {
+
+        @Test
+        void shouldPersistDBToDiskInBinaryFormat(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 1000; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+
+            secretsDatabase.saveTo(databaseFile, DatabaseFormat.BINARY);
+
+            SecretsDatabase loadedDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(loadedDB.getFormat()).isEqualTo(DatabaseFormat.BINARY);
+            assertThat(loadedDB.getSecretKey()).isEqualTo(secretsDatabase.getSecretKey());
+            assertThat(loadedDB.getSecrets()).isEqualTo(secretsDatabase.getSecrets());
+            assertThat(new ArrayList<>(loadedDB.getAllSecretKeys())).isEqualTo(new ArrayList<>(secretsDatabase.getAllSecretKeys()));
+            for (int i = 0; i < 1000; i++) {
+                assertThat(loadedDB.getSecret("secret-" + i)).isEqualTo("value-" + i);
+            }
+            assertThat(loadedDB.getSecret("secret-1000")).isNull();
+            assertThat(loadedDB.getSecret("")).isNull();
+        }
+
+        @Test
+        void shouldDecryptBinarySecretsFromTheBufferAndKeepThoseThatDidNotChange(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile, DatabaseFormat.BINARY);
+            SecretsDatabase previous = SecretsDatabase.readFrom(databaseFile);
+            assertThat(previous.getSecret("foo")).isEqualTo("bar");
+            assertThat(previous.getSecret("baz")).isEqualTo("quux");
+            SecretsDatabase.DecryptedSecret decrypted = previous.decryptedSecrets.get("foo");
+            assertThat(previous.getSecret("foo")).isEqualTo("bar");
+            assertThat(previous.decryptedSecrets.get("foo")).isSameAs(decrypted);
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "changed").saveTo(databaseFile, DatabaseFormat.BINARY);
+            SecretsDatabase reread = SecretsDatabase.readFrom(databaseFile);
+            SecretsDatabase.CarriedOver carriedOver = reread.carryOverDecryptionsFrom(previous);
+
+            assertThat(carriedOver.getKept()).isEqualTo(1);
+            assertThat(reread.decryptedSecrets).containsOnlyKeys("foo");
+            assertThat(reread.getSecret("foo")).isEqualTo("bar");
+            assertThat(reread.getSecret("baz")).isEqualTo("changed");
+        }
+
+        @Test
+        void shouldReadBinaryDatabaseFromAStream(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.BINARY);
+
+            try (InputStream in = Files.newInputStream(databaseFile.toPath())) {
+                assertThat(SecretsDatabase.readFrom(in).getSecret("foo")).isEqualTo("bar");
+            }
+        }
+
+        @Test
+        void shouldKeepValuesThatWereNotEncryptedByTheCliAsTheyAre(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar");
+            File jsonFile = new File(tempDir, "db.json");
+            File binaryFile = new File(tempDir, "db.bin");
+            Files.writeString(jsonFile.toPath(), "{\"secret_key\": \"" + secretsDatabase.getSecretKey() + "\", \"secrets\": {" +
+                    "\"foo\": \"" + secretsDatabase.getSecrets().get("foo") + "\", " +
+                    "\"plain\": \"not encrypted\", \"bad\": \"AES:not base64:AAAA\", \"unpadded\": \"AES:AAA:AAA\", \"null\": null}}");
+
+            SecretsDatabase.readFrom(jsonFile).saveTo(binaryFile, DatabaseFormat.BINARY);
+
+            SecretsDatabase loadedDB = SecretsDatabase.readFrom(binaryFile);
+            assertThat(loadedDB.getSecrets()).isEqualTo(SecretsDatabase.readFrom(jsonFile).getSecrets());
+            assertThat(loadedDB.getSecret("foo")).isEqualTo("bar");
+            assertThat(loadedDB.getSecrets().get("null")).isNull();
+            assertThat(loadedDB.getAllSecretKeys()).contains("null");
+        }
+
+        @Test
+        void shouldReadHeaderOfBinaryDatabase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File jsonFile = new File(tempDir, "db.json");
+            File binaryFile = new File(tempDir, "db.bin");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(jsonFile);
+
+            SecretsDatabase.readFrom(jsonFile).saveTo(binaryFile, DatabaseFormat.BINARY);
+
+            DatabaseHeader jsonHeader = SecretsDatabase.readFrom(jsonFile).getHeader();
+            try (FileChannel channel = FileChannel.open(binaryFile.toPath())) {
+                DatabaseHeader header = DatabaseHeader.read(channel);
+
+                assertThat(header).isEqualTo(SecretsDatabase.readFrom(binaryFile).getHeader());
+                // same secrets, one generation on
+                assertThat(header.getGeneration()).isEqualTo(jsonHeader.getGeneration() + 1);
+                assertThat(header.getChecksum()).isEqualTo(jsonHeader.getChecksum());
+            }
+        }
+
+        @Test
+        void shouldFailToReadTruncatedBinaryDatabase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 100; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile, DatabaseFormat.BINARY);
+
+            byte[] bytes = Files.readAllBytes(databaseFile.toPath());
+            Files.write(databaseFile.toPath(), Arrays.copyOf(bytes, 100));
+            assertThatCode(() -> SecretsDatabase.readFrom(databaseFile)).isInstanceOf(IOException.class);
+
+            Files.write(databaseFile.toPath(), Arrays.copyOf(bytes, bytes.length - 10));
+            SecretsDatabase truncated = SecretsDatabase.readFrom(databaseFile);
+            assertThat(truncated.getSecret("secret-0")).isEqualTo("value-0");
+            assertThatCode(() -> truncated.getAllSecretKeys().forEach(name -> truncated.getSecret(name))).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Nested
+    class View {
+
+        @Test
+        void shouldViewJsonDatabaseWithoutCachingDecryptedSecrets(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 1000; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile);
+
+            SecretsDatabase view = map(databaseFile);
+
+            assertThat(view.getSecrets()).isEqualTo(secretsDatabase.getSecrets());
+            assertThat(new ArrayList<>(view.getAllSecretKeys())).isEqualTo(new ArrayList<>(secretsDatabase.getAllSecretKeys()));
+            assertThat(view.getSecret("secret-42")).isEqualTo("value-42");
+            assertThat(view.getSecret("secret-1000")).isNull();
+            assertThat(view.decryptedSecrets).isEmpty();
+            assertThat(view.getHeader()).isEqualTo(SecretsDatabase.readFrom(databaseFile).getHeader());
+        }
+
+        @Test
+        void shouldNotPreDecryptTheSecretsOfAView(@TempDir File tempDir) throws GeneralSecurityException, IOException, InterruptedException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+            SecretsDatabase view = map(databaseFile);
+
+            SecretsDatabase.PreDecrypted preDecrypted = view.preDecrypt(ForkJoinPool.commonPool());
+
+            assertThat(preDecrypted.getDecrypted()).isZero();
+            assertThat(view.decryptedSecrets).isEmpty();
+        }
+
+        @Test
+        void shouldViewJsonDatabaseLikeItIsRead(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar");
+            String encrypted = secretsDatabase.getSecrets().get("foo");
+            File databaseFile = new File(tempDir, "db.json");
+            // escaped the way older versions of the CLI did, along with everything else JSON allows
+            Files.writeString(databaseFile.toPath(), "{\"comment\": {\"nested\": [1, {\"a\": \"}\"}], \"s\": \"\\\"\"}, \"count\": 4,\n" +
+                    "\t\"secret_key\": \"" + secretsDatabase.getSecretKey().replace("=", "\\u003d") + "\",\r\n" +
+                    "\"secrets\": {\"foo\": \"" + encrypted.replace("=", "\\u003d") + "\", \"with \\\"quotes\\\"\": \"\\u00e9\\n\", " +
+                    "\"caf\u00e9\": \"x\", \"null\": null, \"foo\": \"" + encrypted + "\"}, \"unknown\": true}");
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            SecretsDatabase view = map(databaseFile);
+
+            assertThat(view.getSecrets()).isEqualTo(readDB.getSecrets());
+            assertThat(new ArrayList<>(view.getAllSecretKeys())).isEqualTo(new ArrayList<>(readDB.getAllSecretKeys()));
+            assertThat(view.getSecret("foo")).isEqualTo("bar");
+            assertThat(view.getSecrets().get("with \"quotes\"")).isEqualTo("\u00e9\n");
+            assertThat(view.getSecrets().get("caf\u00e9")).isEqualTo("x");
+            assertThat(view.getSecrets().containsKey("null")).isTrue();
+        }
+
+        @Test
+        void shouldViewBinaryDatabase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.BINARY);
+
+            SecretsDatabase view = map(databaseFile);
+
+            assertThat(view.getFormat()).isEqualTo(DatabaseFormat.BINARY);
+            assertThat(view.getSecret("foo")).isEqualTo("bar");
+            assertThat(view.decryptedSecrets).isEmpty();
+        }
+
+        @Test
+        void shouldTellThatSecretsAreMissingFromBinaryDatabase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 500; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile, DatabaseFormat.BINARY);
+
+            SecretsDatabase view = map(databaseFile);
+
+            for (int i = 0; i < 500; i++) {
+                assertThat(view.getSecret("secret-" + i)).isEqualTo("value-" + i);
+                assertThat(view.getSecret("missing-" + i)).isNull();
+            }
+            assertThat(view.getSecret("")).isNull();
+        }
+
+        @Test
+        void shouldFailToViewMalformedDatabase(@TempDir File tempDir) throws IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            for (String malformed : List.of("", "{", "{\"secrets\": {\"foo\": 1}}", "{\"secrets\": {\"foo\" \"bar\"}}", "{\"generation\": x}", "{\"secrets\": {\"foo\": \"bar")) {
+                Files.writeString(databaseFile.toPath(), malformed);
+
+                assertThatCode(() -> map(databaseFile)).isInstanceOf(IOException.class);
+            }
+        }
+
+        @Test
+        void shouldKeepViewingTheOldContentsOfAFileThatIsSavedOver(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+            SecretsDatabase view = map(databaseFile);
+
+            secretsDatabase.removeSecret("foo").addSecret("a-much-longer-name", "baz").saveTo(databaseFile);
+
+            assertThat(view.getSecret("foo")).isEqualTo("bar");
+            assertThat(map(databaseFile).getSecret("a-much-longer-name")).isEqualTo("baz");
+        }
+
+        @Test
+        void shouldNotTrustTheCountOfAJsonDatabaseToSizeItsIndex(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar");
+            File databaseFile = new File(tempDir, "db.json");
+            Files.writeString(databaseFile.toPath(), "{\"count\": 2147483647, \"secret_key\": \"" + secretsDatabase.getSecretKey() + "\", " +
+                    "\"secrets\": {\"foo\": \"" + secretsDatabase.getSecrets().get("foo") + "\"}}");
+
+            assertThat(map(databaseFile).getSecret("foo")).isEqualTo("bar");
+            assertThatThrownBy(() -> BinaryFormat.slotsFor(Integer.MAX_VALUE)).isInstanceOf(IllegalArgumentException.class);
+        }
+
+        private SecretsDatabase map(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                return SecretsDatabase.view(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+    }
+
+    @Nested
+    class Journal {
+
+        @Test
+        void shouldAppendChangesInsteadOfRewritingTheFile(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            byte[] base = Files.readAllBytes(databaseFile.toPath());
+
+            SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+            secretsDatabase.addSecret("foo", "changed").addSecret("new", "secret").removeSecret("baz").saveTo(databaseFile);
+
+            byte[] journaled = Files.readAllBytes(databaseFile.toPath());
+            assertThat(Arrays.copyOf(journaled, base.length)).isEqualTo(base);
+            assertThat(journaled.length).isGreaterThan(base.length);
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.isJournaled()).isTrue();
+            assertThat(readDB.getFormat()).isEqualTo(DatabaseFormat.JSON);
+            assertThat(readDB.getGeneration()).isEqualTo(secretsDatabase.getGeneration()).isEqualTo(4);
+            assertThat(readDB.getSecrets()).isEqualTo(secretsDatabase.getSecrets());
+            assertThat(new ArrayList<>(readDB.getAllSecretKeys())).containsExactly("foo", "new");
+            assertThat(readDB.getSecret("foo")).isEqualTo("changed");
+            assertThat(readDB.getHeader()).isNull();
+            try (InputStream in = Files.newInputStream(databaseFile.toPath())) {
+                assertThat(SecretsDatabase.readFrom(in).getSecrets()).isEqualTo(secretsDatabase.getSecrets());
+            }
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                assertThat(DatabaseHeader.read(channel)).isNull();
+            }
+        }
+
+        @Test
+        void shouldViewJournaledDatabase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.bin");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.BINARY, true);
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "quux").saveTo(databaseFile);
+
+            SecretsDatabase view;
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                view = SecretsDatabase.view(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+
+            assertThat(view.getFormat()).isEqualTo(DatabaseFormat.BINARY);
+            assertThat(view.getSecret("foo")).isEqualTo("bar");
+            assertThat(view.getSecret("baz")).isEqualTo("quux");
+            assertThat(view.decryptedSecrets).isEmpty();
+        }
+
+        @Test
+        void shouldReadOnlyTheChangesAppendedSinceTheDatabaseWasRead(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.COMPACT_JSON, true);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "quux").saveTo(databaseFile);
+
+            SecretsDatabase appended;
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                appended = readDB.readAppended(channel);
+            }
+            assertThat(appended.getSecrets()).isEqualTo(SecretsDatabase.readFrom(databaseFile).getSecrets());
+            assertThat(appended.getGeneration()).isEqualTo(2);
+            assertThat(appended.decryptedSecrets).containsKey("foo");
+            assertThat(appended.getSecret("baz")).isEqualTo("quux");
+
+            SecretsDatabase.readFrom(databaseFile).compact(databaseFile);
+
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                assertThat(appended.readAppended(channel)).isNull();
+            }
+        }
+
+        @Test
+        void shouldDecryptJournaledSecretsStraightFromWhatTheyWereReadInto(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            for (DatabaseFormat format : Arrays.asList(DatabaseFormat.JSON, DatabaseFormat.BINARY)) {
+                File databaseFile = new File(tempDir, "db." + format);
+                new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile, format, true);
+                SecretsDatabase.readFrom(databaseFile).addSecret("baz", "changed").addSecret("new", "secret").saveTo(databaseFile);
+
+                SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+                assertThat(readDB.getSecrets()).isInstanceOf(EncodedSecrets.class);
+                assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+                assertThat(readDB.getSecret("baz")).isEqualTo("changed");
+                assertThat(readDB.getSecret("new")).isEqualTo("secret");
+                assertThat(readDB.getSecret("missing")).isNull();
+
+                SecretsDatabase.readFrom(databaseFile).removeSecret("new").saveTo(databaseFile);
+                SecretsDatabase appended;
+                try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                    appended = readDB.readAppended(channel);
+                }
+                assertThat(appended.getSecrets()).isInstanceOf(EncodedSecrets.class);
+                assertThat(appended.getCarriedOver().getKept()).isEqualTo(2);
+                assertThat(appended.decryptedSecrets).containsOnlyKeys("foo", "baz");
+                assertThat(appended.getSecret("baz")).isEqualTo("changed");
+                assertThat(appended.getSecret("new")).isNull();
+            }
+        }
+
+        @Test
+        void shouldNotReadAppendedChangesOfADatabaseThatIsNotJournaled(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                assertThat(secretsDatabase.readAppended(channel)).isNull();
+            }
+        }
+
+        @Test
+        void shouldIgnoreAndThenDropAChangeThatWasCutShort(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "quux").saveTo(databaseFile);
+            long length = databaseFile.length();
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(length - 1);
+            }
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.getAllSecretKeys()).containsExactly("foo");
+
+            readDB.addSecret("new", "secret").saveTo(databaseFile);
+
+            assertThat(SecretsDatabase.readFrom(databaseFile).getAllSecretKeys()).containsExactly("foo", "new");
+            assertThat(databaseFile.length()).isLessThan(length * 2);
+        }
+
+        @Test
+        void shouldCompactOnceTheJournalIsAsLargeAsTheBase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            SecretsDatabase secretsDatabase = SecretsDatabase.readFrom(databaseFile);
+            for (int i = 0; i < 1000; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile);
+            long compacted = databaseFile.length();
+
+            // the base now holds all the secrets, so appending to it again is cheap
+            secretsDatabase.addSecret("foo", "changed").saveTo(databaseFile);
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.isJournaled()).isTrue();
+            assertThat(readDB.getSecrets()).isEqualTo(secretsDatabase.getSecrets());
+            assertThat(readDB.getSecret("foo")).isEqualTo("changed");
+            assertThat(databaseFile.length()).isGreaterThan(compacted).isLessThan(compacted + 1024);
+        }
+
+        @Test
+        void shouldKeepChangesAppendedByOthersWhenCompacting(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            SecretsDatabase compacting = SecretsDatabase.readFrom(databaseFile);
+            compacting.getSecret("foo");
+            compacting.getSecret("baz");
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("foo", "appended").addSecret("new", "value").saveTo(databaseFile);
+            compacting.addSecret("baz", "mine").compact(databaseFile);
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.getAllSecretKeys()).containsExactly("foo", "baz", "new");
+            assertThat(readDB.getSecret("foo")).isEqualTo("appended");
+            assertThat(readDB.getSecret("baz")).isEqualTo("mine");
+            assertThat(readDB.getSecret("new")).isEqualTo("value");
+            assertThat(compacting.getSecret("foo")).isEqualTo("appended");
+        }
+
+        @Test
+        void shouldKeepChangesOfADatabaseThatWasCompactedByOthersWhenAppending(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            SecretsDatabase appending = SecretsDatabase.readFrom(databaseFile);
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("new", "value").compact(databaseFile);
+            appending.addSecret("foo", "mine").saveTo(databaseFile);
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.getAllSecretKeys()).containsExactly("foo", "new");
+            assertThat(readDB.getSecret("foo")).isEqualTo("mine");
+            assertThat(readDB.getSecret("new")).isEqualTo("value");
+        }
+
+        @Test
+        void shouldStopJournalingWhenToldTo(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.JSON, true);
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "quux").saveTo(databaseFile, DatabaseFormat.JSON, false);
+
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(readDB.isJournaled()).isFalse();
+            assertThat(readDB.getAllSecretKeys()).containsExactly("foo", "baz");
+            assertThat(Files.readString(databaseFile.toPath())).startsWith("{\n");
+        }
+    }
+
+    @Nested
+    class OffHeap {
+
+        @Test
+        void shouldKeepDecryptedSecretsOffTheHeapUntilClosed(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            String large = "x".repeat(10_000);
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("large", large).saveTo(databaseFile);
+            SecretsDatabase onHeap = SecretsDatabase.readFrom(databaseFile);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(64 * 1024);
+
+            for (SecretsDatabase secretsDatabase : Arrays.asList(onHeap, readDB, readDB)) {
+                assertThat(secretsDatabase.getSecret("foo")).isEqualTo("bar");
+                assertThat(secretsDatabase.getSecret("large")).isEqualTo(large);
+            }
+            assertThat(readDB.decryptedSecrets).containsOnlyKeys("foo", "large");
+            assertThat(readDB.getEstimatedSize()).isLessThan(onHeap.getEstimatedSize() - large.length());
+
+            readDB.close();
+
+            assertThat(readDB.decryptedSecrets).isEmpty();
+            assertThat(readDB.getSecret("large")).isEqualTo(large);
+        }
+
+        @Test
+        void shouldDecryptSecretsThatDoNotFitEveryTime(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(4);
+
+            for (int i = 0; i < 3; i++) {
+                assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+                assertThat(readDB.getSecret("baz")).isEqualTo("quux");
+            }
+        }
+
+        @Test
+        void shouldMoveDecryptedSecretsThatDidNotChangeOffTheHeapOfTheNextDatabase(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").addSecret("baz", "quux").saveTo(databaseFile);
+            SecretsDatabase previous = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(1024);
+            previous.getSecret("foo");
+            previous.getSecret("baz");
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "changed").saveTo(databaseFile);
+            SecretsDatabase reread = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(1024);
+            SecretsDatabase.CarriedOver carriedOver = reread.carryOverDecryptionsFrom(previous);
+            previous.close();
+
+            assertThat(carriedOver.getKept()).isEqualTo(1);
+            assertThat(reread.decryptedSecrets).containsOnlyKeys("foo");
+            assertThat(reread.getSecret("foo")).isEqualTo("bar");
+            assertThat(reread.getSecret("baz")).isEqualTo("changed");
+        }
+
+        @Test
+        void shouldOnlyTakeUpTheBudgetOnceSecretsAreDecrypted(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+            OffHeapBudget budget = new OffHeapBudget(1024 * 1024);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(budget);
+
+            assertThat(budget.getReserved()).isZero();
+
+            assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+            assertThat(budget.getReserved()).isEqualTo(OffHeapValues.CHUNK_SIZE);
+
+            readDB.close();
+            assertThat(budget.getReserved()).isZero();
+        }
+
+        @Test
+        void shouldShareTheBudgetBetweenDatabases(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            File otherFile = new File(tempDir, "other.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+            new SecretsDatabase().addSecret("baz", "quux").saveTo(otherFile);
+            OffHeapBudget budget = new OffHeapBudget(OffHeapValues.CHUNK_SIZE);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(budget);
+            SecretsDatabase otherDB = SecretsDatabase.readFrom(otherFile).keepDecryptionsOffHeap(budget);
+
+            assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+            assertThat(otherDB.getSecret("baz")).isEqualTo("quux");
+            assertThat(otherDB.getSecret("baz")).isEqualTo("quux");
+            assertThat(budget.getReserved()).isEqualTo(budget.getMaxSize());
+
+            readDB.close();
+            assertThat(budget.getReserved()).isZero();
+            otherDB.close();
+            SecretsDatabase reread = SecretsDatabase.readFrom(otherFile).keepDecryptionsOffHeap(budget);
+            assertThat(reread.getSecret("baz")).isEqualTo("quux");
+            assertThat(budget.getReserved()).isEqualTo(budget.getMaxSize());
+        }
+
+        @Test
+        void shouldKeepTheSameValuesWhenChangesAreAppended(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile, DatabaseFormat.JSON, true);
+            OffHeapBudget budget = new OffHeapBudget(1024 * 1024);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(budget);
+            assertThat(readDB.getSecret("foo")).isEqualTo("bar");
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("baz", "quux").saveTo(databaseFile);
+            SecretsDatabase appended;
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                appended = readDB.readAppended(channel);
+            }
+            readDB.close();
+
+            // not copied to memory of its own, nor wiped with the database it was appended to
+            assertThat(appended.decryptedSecrets).containsKey("foo");
+            assertThat(appended.getSecret("foo")).isEqualTo("bar");
+            assertThat(appended.getSecret("baz")).isEqualTo("quux");
+            assertThat(budget.getReserved()).isEqualTo(OffHeapValues.CHUNK_SIZE);
+
+            appended.close();
+            assertThat(budget.getReserved()).isZero();
+        }
+
+        @Test
+        void shouldWipeTheValuesOfSecretsThatAppendedChangesChangeOrRemove(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().addSecret("foo", "first-value").addSecret("baz", "second-value").addSecret("kept", "third-value")
+                    .saveTo(databaseFile, DatabaseFormat.JSON, true);
+            SecretsDatabase readDB = SecretsDatabase.readFrom(databaseFile).keepDecryptionsOffHeap(1024 * 1024);
+            for (String name : Arrays.asList("foo", "baz", "kept")) {
+                readDB.getSecret(name);
+            }
+            OffHeapValues offHeapValues = readDB.offHeapValues;
+            assertThat(offHeapHolds(offHeapValues, "first-value")).isTrue();
+            assertThat(offHeapHolds(offHeapValues, "second-value")).isTrue();
+
+            SecretsDatabase.readFrom(databaseFile).addSecret("foo", "changed").removeSecret("baz").saveTo(databaseFile);
+            SecretsDatabase appended;
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                appended = readDB.readAppended(channel);
+            }
+
+            assertThat(offHeapHolds(offHeapValues, "first-value")).isFalse();
+            assertThat(offHeapHolds(offHeapValues, "second-value")).isFalse();
+            assertThat(offHeapHolds(offHeapValues, "third-value")).isTrue();
+            assertThat(readDB.getSecret("foo")).isEqualTo("first-value");
+            assertThat(readDB.getSecret("baz")).isEqualTo("second-value");
+            assertThat(offHeapHolds(offHeapValues, "first-value")).isFalse();
+            assertThat(appended.getSecret("foo")).isEqualTo("changed");
+            assertThat(appended.getSecret("baz")).isNull();
+            assertThat(appended.getSecret("kept")).isEqualTo("third-value");
+        }
+
+        private boolean offHeapHolds(OffHeapValues offHeapValues, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            for (ByteBuffer chunk : offHeapValues.chunks) {
+                for (int position = 0; position + bytes.length <= chunk.capacity(); position++) {
+                    byte[] candidate = new byte[bytes.length];
+                    chunk.get(position, candidate);
+                    if (Arrays.equals(candidate, bytes)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    @Nested
+    class Sharding {
+
+        @Test
+        void shouldSpreadSecretsAcrossShardsThatShareTheKeyOfTheManifest(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File manifestFile = new File(tempDir, "db.json");
+            SecretsDatabase manifest = SecretsDatabase.sharded(4);
+            for (int shard = 0; shard < 4; shard++) {
+                manifest.newShard().saveTo(manifest.shardFile(manifestFile, shard));
+            }
+            manifest.saveTo(manifestFile);
+
+            SecretsDatabase readManifest = SecretsDatabase.readFrom(manifestFile);
+            assertThat(readManifest.isSharded()).isTrue();
+            assertThat(readManifest.getShards()).isEqualTo(4);
+            assertThat(readManifest.getSecretKey()).isEqualTo(manifest.getSecretKey());
+            assertThat(readManifest.getAllSecretKeys()).isEmpty();
+            assertThat(readManifest.shardFile(manifestFile, 3)).isEqualTo(new File(tempDir, "db.json.3"));
+
+            for (int i = 0; i < 100; i++) {
+                File shardFile = readManifest.shardFile(manifestFile, readManifest.shardOf("secret-" + i));
+                SecretsDatabase.readFrom(shardFile).addSecret("secret-" + i, "value-" + i).saveTo(shardFile);
+            }
+
+            int total = 0;
+            for (int shard = 0; shard < 4; shard++) {
+                SecretsDatabase shardDB = SecretsDatabase.readFrom(manifest.shardFile(manifestFile, shard));
+                assertThat(shardDB.getSecretKey()).isEqualTo(manifest.getSecretKey());
+                assertThat(shardDB.getAllSecretKeys()).isNotEmpty();
+                for (String name : shardDB.getAllSecretKeys()) {
+                    assertThat(manifest.shardOf(name)).isEqualTo(shard);
+                }
+                assertThat(shardDB.getSecret(shardDB.getAllSecretKeys().iterator().next())).startsWith("value-");
+                total += shardDB.getAllSecretKeys().size();
+            }
+            assertThat(total).isEqualTo(100);
+        }
+
+        @Test
+        void shouldViewManifest(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File manifestFile = new File(tempDir, "db.json");
+            SecretsDatabase.sharded(8).saveTo(manifestFile);
+
+            try (FileChannel channel = FileChannel.open(manifestFile.toPath())) {
+                SecretsDatabase view = SecretsDatabase.view(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                assertThat(view.getShards()).isEqualTo(8);
+            }
+        }
+
+        @Test
+        void shouldNotKeepSecretsInTheManifest(@TempDir File tempDir) throws GeneralSecurityException {
+            SecretsDatabase manifest = SecretsDatabase.sharded(2);
+
+            assertThatCode(() -> manifest.addSecret("foo", "bar")).isInstanceOf(IllegalStateException.class);
+            assertThatCode(() -> manifest.saveTo(new File(tempDir, "db.bin"), DatabaseFormat.BINARY)).isInstanceOf(IllegalArgumentException.class);
+            assertThatCode(() -> manifest.shardFile(new File(tempDir, "db.json"), 2)).isInstanceOf(IllegalArgumentException.class);
+            assertThatCode(() -> new SecretsDatabase().shardOf("foo")).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Nested
+    class Saving {
+
+        @Test
+        void shouldKeepThePermissionsOfTheFile(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase().saveTo(databaseFile);
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+            Files.setPosixFilePermissions(databaseFile.toPath(), permissions);
+
+            secretsDatabase.addSecret("foo", "bar").saveTo(databaseFile);
+
+            assertThat(Files.getPosixFilePermissions(databaseFile.toPath())).isEqualTo(permissions);
+            assertThat(tempDir.list()).containsExactly("db.json");
+        }
+
+        @Test
+        void shouldSaveToTheTargetOfASymbolicLink(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            Path target = tempDir.toPath().resolve("target.json");
+            Path link = Files.createSymbolicLink(tempDir.toPath().resolve("db.json"), target.getFileName());
+            SecretsDatabase secretsDatabase = new SecretsDatabase().saveTo(target.toFile());
+
+            secretsDatabase.addSecret("foo", "bar").saveTo(link.toFile());
+
+            assertThat(Files.isSymbolicLink(link)).isTrue();
+            assertThat(SecretsDatabase.readFrom(target.toFile()).getSecret("foo")).isEqualTo("bar");
+        }
+
+        @Test
+        void shouldFailRatherThanWriteTheFileInPlaceWhenItsDirectoryIsNotWritable(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            Path directory = Files.createDirectory(tempDir.toPath().resolve("secrets"));
+            File databaseFile = directory.resolve("db.json").toFile();
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+            byte[] saved = Files.readAllBytes(databaseFile.toPath());
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("r-xr-xr-x"));
+            try {
+                assumeFalse(Files.isWritable(directory), "the directory is writable anyway, as it is to root");
+
+                assertThatThrownBy(() -> secretsDatabase.addSecret("foo", "changed").saveTo(databaseFile))
+                        .isInstanceOf(AccessDeniedException.class)
+                        .hasMessageContaining("must be writable");
+
+                assertThat(Files.readAllBytes(databaseFile.toPath())).isEqualTo(saved);
+                assertThat(directory.toFile().list()).containsExactly("db.json");
+            } finally {
+                Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxr-xr-x"));
+            }
+        }
+    }
+
+    @Nested
+    class Header {
+
+        @Test
+        void shouldBumpGenerationEverytimeTheDatabaseIsSaved(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            new SecretsDatabase().saveTo(databaseFile);
+
+            SecretsDatabase loadedDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(loadedDB.getGeneration()).isEqualTo(1L);
+
+            loadedDB.addSecret("foo", "bar").saveTo(databaseFile);
+            assertThat(SecretsDatabase.readFrom(databaseFile).getGeneration()).isEqualTo(2L);
+        }
+
+        @Test
+        void shouldReadHeaderFromTheStartOfTheFile(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase();
+            for (int i = 0; i < 100; i++) {
+                secretsDatabase.addSecret("secret-" + i, "value-" + i);
+            }
+            secretsDatabase.saveTo(databaseFile);
+
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                DatabaseHeader header = DatabaseHeader.read(channel);
+
+                assertThat(header).isNotNull();
+                assertThat(header).isEqualTo(SecretsDatabase.readFrom(databaseFile).getHeader());
+                assertThat(channel.position()).isEqualTo(0L);
+            }
+        }
+
+        @Test
+        void shouldNotTrustHeaderOfADatabaseEditedWithoutUpdatingIt(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            File databaseFile = new File(tempDir, "db.json");
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar").saveTo(databaseFile);
+
+            String edited = Files.readString(databaseFile.toPath()).replace("\"foo\"", "\"baz\"");
+            Files.writeString(databaseFile.toPath(), edited);
+
+            assertThat(secretsDatabase.getHeader()).isNotNull();
+            assertThat(SecretsDatabase.readFrom(databaseFile).getHeader()).isNull();
+        }
+
+        @Test
+        void shouldReadDatabaseWithoutHeader(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+            SecretsDatabase secretsDatabase = new SecretsDatabase().addSecret("foo", "bar");
+            File databaseFile = new File(tempDir, "db.json");
+            Files.writeString(databaseFile.toPath(), "{\"secret_key\": \"" + secretsDatabase.getSecretKey() + "\", " +
+                    "\"secrets\": {\"foo\": \"" + secretsDatabase.getSecrets().get("foo") + "\"}}");
+
+            SecretsDatabase loadedDB = SecretsDatabase.readFrom(databaseFile);
+            assertThat(loadedDB.getSecret("foo")).isEqualTo("bar");
+            assertThat(loadedDB.getHeader()).isNull();
+
+            try (FileChannel channel = FileChannel.open(databaseFile.toPath())) {
+                assertThat(DatabaseHeader.read(channel)).isNull();
+            }
+        }
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+
+class SecretsDirectoryTest {
+
+    @Test
+    void shouldKeepEachSecretInAFileOfItsOwn(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File directory = new File(tempDir, "secrets");
+        SecretsDirectory.init(directory).addSecret("username", "admin").addSecret("password", "p@ssw0rd");
+
+        assertThat(new File(directory, SecretsDirectory.KEY_FILE_NAME)).exists();
+        assertThat(Files.readString(new File(directory, "password").toPath())).startsWith("AES:").doesNotContain("p@ssw0rd");
+
+        SecretsDirectory secretsDirectory = new SecretsDirectory(directory);
+        assertThat(secretsDirectory.getAllSecretKeys()).containsExactly("password", "username");
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("p@ssw0rd");
+        assertThat(secretsDirectory.getSecret("foo")).isNull();
+        assertThat(secretsDirectory.getSecret(SecretsDirectory.KEY_FILE_NAME)).isNull();
+
+        assertThat(secretsDirectory.removeSecret("password")).isTrue();
+        assertThat(secretsDirectory.removeSecret("password")).isFalse();
+        assertThat(new SecretsDirectory(directory).getAllSecretKeys()).containsExactly("username");
+    }
+
+    @Test
+    void shouldOnlyReadTheFilesOfSecretsThatAreLookedUp(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File directory = new File(tempDir, "secrets");
+        SecretsDirectory.init(directory).addSecret("username", "admin");
+        Files.writeString(new File(directory, "garbage").toPath(), "not encrypted");
+
+        SecretsDirectory secretsDirectory = new SecretsDirectory(directory);
+
+        assertThat(secretsDirectory.getSecret("username")).isEqualTo("admin");
+        assertThat(secretsDirectory.getAllSecretKeys()).containsExactly("garbage", "username");
+        assertThatCode(() -> secretsDirectory.getSecret("garbage")).isInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    void shouldReadAgainOnlyTheFilesThatChanged(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File directory = new File(tempDir, "secrets");
+        SecretsDirectory.init(directory).addSecret("username", "admin").addSecret("password", "p@ssw0rd");
+        SecretsDirectory secretsDirectory = new SecretsDirectory(directory);
+        assertThat(secretsDirectory.getSecret("username")).isEqualTo("admin");
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("p@ssw0rd");
+
+        new SecretsDirectory(directory).addSecret("password", "changed").addSecret("token", "t0ken").removeSecret("username");
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("p@ssw0rd");
+
+        secretsDirectory.refresh();
+
+        assertThat(secretsDirectory.getAllSecretKeys()).containsExactly("password", "token");
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("changed");
+        assertThat(secretsDirectory.getSecret("token")).isEqualTo("t0ken");
+        assertThat(secretsDirectory.getSecret("username")).isNull();
+    }
+
+    @Test
+    void shouldReadSecretsMountedByKubernetes(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        // the files are links into a hidden directory, which is swapped for another one when the secrets are updated
+        Path directory = tempDir.toPath().resolve("secrets");
+        Path staging = tempDir.toPath().resolve("staging");
+        SecretsDirectory.init(staging.toFile()).addSecret("password", "p@ssw0rd");
+        Files.createDirectories(directory.resolve("..v1"));
+        Files.copy(staging.resolve(SecretsDirectory.KEY_FILE_NAME), directory.resolve("..v1").resolve(SecretsDirectory.KEY_FILE_NAME));
+        Files.copy(staging.resolve("password"), directory.resolve("..v1").resolve("password"));
+        Files.createSymbolicLink(directory.resolve("..data"), Path.of("..v1"));
+        Files.createSymbolicLink(directory.resolve(SecretsDirectory.KEY_FILE_NAME), Path.of("..data", SecretsDirectory.KEY_FILE_NAME));
+        Files.createSymbolicLink(directory.resolve("password"), Path.of("..data", "password"));
+
+        SecretsDirectory secretsDirectory = new SecretsDirectory(directory.toFile());
+        assertThat(secretsDirectory.getAllSecretKeys()).containsExactly("password");
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("p@ssw0rd");
+
+        new SecretsDirectory(staging.toFile()).addSecret("password", "rotated");
+        Files.createDirectories(directory.resolve("..v2"));
+        Files.copy(staging.resolve(SecretsDirectory.KEY_FILE_NAME), directory.resolve("..v2").resolve(SecretsDirectory.KEY_FILE_NAME));
+        Files.copy(staging.resolve("password"), directory.resolve("..v2").resolve("password"));
+        Files.createSymbolicLink(directory.resolve("..data_tmp"), Path.of("..v2"));
+        Files.move(directory.resolve("..data_tmp"), directory.resolve("..data"), StandardCopyOption.ATOMIC_MOVE);
+
+        secretsDirectory.refresh();
+
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("rotated");
+    }
+
+    @Test
+    void shouldDecryptEverythingAgainWhenTheKeyChanges(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File directory = new File(tempDir, "secrets");
+        SecretsDirectory.init(directory).addSecret("password", "p@ssw0rd");
+        SecretsDirectory secretsDirectory = new SecretsDirectory(directory);
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("p@ssw0rd");
+
+        Files.delete(new File(directory, "password").toPath());
+        SecretsDirectory.init(directory).addSecret("password", "p@ssw0rd").addSecret("token", "t0ken");
+        secretsDirectory.refresh();
+
+        assertThat(secretsDirectory.getSecret("token")).isEqualTo("t0ken");
+        assertThat(secretsDirectory.getSecret("password")).isEqualTo("p@ssw0rd");
+    }
+
+    @Test
+    void shouldNotNameSecretsLikeFilesTheyCannotBeKeptIn(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        SecretsDirectory secretsDirectory = SecretsDirectory.init(new File(tempDir, "secrets"));
+
+        assertThatCode(() -> secretsDirectory.addSecret("../escape", "foo")).isInstanceOf(IllegalArgumentException.class);
+        assertThatCode(() -> secretsDirectory.addSecret(".hidden", "foo")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import static cd.go.plugin.secret.filebased.db.Util.isBlank;
+
+/**
+ * Decrypts a secret from scratch every time, as {@link PreviousCipher} did before ciphers were bound to a key, and with
+ * a {@link Cipher} bound to the key, as {@link SecretsDatabase} does. Run with {@code -t} set to the number of cores to
+ * see how it scales, as each thread decrypts on its own.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xms512m", "-Xmx512m"})
+@Warmup(iterations = 2, time = 10, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+public class CipherBenchmark {
+
+    @Param({"16", "256"})
+    public int valueLength;
+
+    private String secretKey;
+
+    private Cipher cipher;
+
+    private String encryptedValue;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        secretKey = Base64.getEncoder().encodeToString(Cipher.generateKey());
+        cipher = new Cipher(secretKey);
+        encryptedValue = Cipher.encrypt(secretKey, "x".repeat(valueLength));
+    }
+
+    @Benchmark
+    public String decryptFromScratch() throws GeneralSecurityException, BadSecretException {
+        return PreviousCipher.decrypt(secretKey, encryptedValue);
+    }
+
+    @Benchmark
+    public String decryptWithBoundCipher() throws GeneralSecurityException, BadSecretException {
+        return cipher.decrypt(encryptedValue);
+    }
+
+    /**
+     * {@link Cipher} as it was before it was bound to a key, kept as it was to compare against.
+     */
+    public static class PreviousCipher {
+        public static String decrypt(String cipherKey, String encryptedValue) throws BadSecretException, GeneralSecurityException {
+            byte[] keyBytes = Base64.getDecoder().decode(cipherKey);
+
+            if (!canDecrypt(encryptedValue)) {
+                throw new BadSecretException("Bad cipher text");
+            }
+
+            String[] splits = encryptedValue.split(":");
+
+            String encodedIV = splits[1];
+            String encodedCipherText = splits[2];
+
+            byte[] initializationVector = Base64.getDecoder().decode(encodedIV);
+            javax.crypto.Cipher decryptCipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding");
+            decryptCipher.init(javax.crypto.Cipher.DECRYPT_MODE, createSecretKeySpec(keyBytes), new IvParameterSpec(initializationVector));
+
+            byte[] decryptedBytes = decryptCipher.doFinal(Base64.getDecoder().decode(encodedCipherText));
+            return new String(decryptedBytes, StandardCharsets.UTF_8);
+        }
+
+        public static byte[] generateKey() throws NoSuchAlgorithmException {
+            KeyGenerator keygen = KeyGenerator.getInstance("AES");
+            keygen.init(128);
+            return keygen.generateKey().getEncoded();
+        }
+
+        public static String encrypt(String cipherKey, String value) throws GeneralSecurityException {
+            byte[] keyBytes = Base64.getDecoder().decode(cipherKey);
+            byte[] initializationVector = generateKey();
+            byte[] bytesToEncrypt = value.getBytes(StandardCharsets.UTF_8);
+
+            javax.crypto.Cipher encryptCipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding");
+            encryptCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, createSecretKeySpec(keyBytes), new IvParameterSpec(initializationVector));
+
+            byte[] encryptedBytes = encryptCipher.doFinal(bytesToEncrypt);
+
+            return String.join(":", "AES", encode(initializationVector), encode(encryptedBytes));
+        }
+
+        private static String encode(byte[] initializationVector) {
+            return Base64.getEncoder().encodeToString(initializationVector);
+        }
+
+        private static SecretKeySpec createSecretKeySpec(byte[] key) {
+            return new SecretKeySpec(key, "AES");
+        }
+
+        private static boolean canDecrypt(String cipherText) {
+            if (isBlank(cipherText)) {
+                return false;
+            }
+            String[] splits = cipherText.split(":");
+            return splits.length == 3 && "AES".equals(splits[0]) && (!isBlank(splits[1])) && (!isBlank(splits[2]));
+        }
+    }
+}
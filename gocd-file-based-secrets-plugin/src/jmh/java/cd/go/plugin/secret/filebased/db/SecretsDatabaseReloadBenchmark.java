@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.db;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to load a secrets database file, comparing the reflective Gson parsing that used to be
+ * done (reading the whole file into a String first) with the streaming reader, and with the binary format. Run with
+ * {@code -prof gc} to see the allocation per reload ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 2, time = 10, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+public class SecretsDatabaseReloadBenchmark {
+
+    private static final Gson GSON = new Gson();
+
+    @Param({"1000", "200000"})
+    public int secretsCount;
+
+    private File databaseFile;
+
+    private File binaryDatabaseFile;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+        databaseFile = File.createTempFile("reload", ".secrets.db");
+        databaseFile.deleteOnExit();
+
+        String secretKey = Base64.getEncoder().encodeToString(Cipher.generateKey());
+        try (Writer out = Files.newBufferedWriter(databaseFile.toPath(), StandardCharsets.UTF_8);
+             JsonWriter writer = new JsonWriter(out)) {
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("secret_key").value(secretKey);
+            writer.name("secrets").beginObject();
+            for (int i = 0; i < secretsCount; i++) {
+                writer.name("secret-" + i).value(Cipher.encrypt(secretKey, "value-" + i));
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+
+        binaryDatabaseFile = File.createTempFile("reload", ".secrets.bin");
+        binaryDatabaseFile.deleteOnExit();
+        SecretsDatabase.readFrom(databaseFile).saveTo(binaryDatabaseFile, DatabaseFormat.BINARY);
+    }
+
+    @TearDown
+    public void tearDown() {
+        databaseFile.delete();
+        binaryDatabaseFile.delete();
+    }
+
+    @Benchmark
+    public void reflectiveGson(Blackhole bh) throws IOException {
+        bh.consume(GSON.fromJson(Files.readString(databaseFile.toPath(), StandardCharsets.UTF_8), ReflectiveSecretsDatabase.class));
+    }
+
+    @Benchmark
+    public void streaming(Blackhole bh) throws IOException {
+        bh.consume(SecretsDatabase.readFrom(databaseFile));
+    }
+
+    // loading a binary database leaves the secrets undecoded, so this includes looking one up
+    @Benchmark
+    public void binary(Blackhole bh) throws IOException {
+        bh.consume(SecretsDatabase.readFrom(binaryDatabaseFile).getSecrets().get("secret-0"));
+    }
+
+    // the shape that used to be bound to by reflection
+    static class ReflectiveSecretsDatabase {
+        @SerializedName("secret_key")
+        String secretKey;
+
+        @SerializedName("secrets")
+        LinkedHashMap<String, String> secrets;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Looks up the same secrets, the way the plugin does, in each kind of {@link SecretStore}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xms512m", "-Xmx512m"})
+@Warmup(iterations = 2, time = 10, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+public class SecretStoreLookupBenchmark {
+
+    @Param({"json", "binary", "journal", "mmap", "sharded", "directory", "memory"})
+    public String store;
+
+    @Param({"1000"})
+    public int secrets;
+
+    @Param({"10"})
+    public int lookups;
+
+    private SecretStoreCache secretStoreCache;
+
+    private InMemorySecretStore inMemorySecretStore;
+
+    private File file;
+
+    private List<String> names;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+        file = Files.createTempDirectory("secrets").resolve("secrets.db").toFile();
+
+        SecretsDatabase secretsDatabase = store.equals("sharded") ? SecretsDatabase.sharded(16) : new SecretsDatabase();
+        InMemorySecretStore plaintext = new InMemorySecretStore();
+        for (int i = 0; i < secrets; i++) {
+            plaintext.addSecret("secret-" + i, "value-" + i);
+        }
+
+        switch (store) {
+            case "directory":
+                SecretsDirectory secretsDirectory = SecretsDirectory.init(file);
+                for (String name : plaintext.getAllSecretKeys()) {
+                    secretsDirectory.addSecret(name, plaintext.getSecret(name));
+                }
+                break;
+            case "sharded":
+                List<SecretsDatabase> shards = new ArrayList<>();
+                for (int shard = 0; shard < secretsDatabase.getShards(); shard++) {
+                    shards.add(secretsDatabase.newShard());
+                }
+                for (String name : plaintext.getAllSecretKeys()) {
+                    shards.get(secretsDatabase.shardOf(name)).addSecret(name, plaintext.getSecret(name));
+                }
+                for (int shard = 0; shard < shards.size(); shard++) {
+                    shards.get(shard).saveTo(secretsDatabase.shardFile(file, shard));
+                }
+                secretsDatabase.saveTo(file);
+                break;
+            default:
+                for (String name : plaintext.getAllSecretKeys()) {
+                    secretsDatabase.addSecret(name, plaintext.getSecret(name));
+                }
+                DatabaseFormat format = store.equals("binary") || store.equals("mmap") ? DatabaseFormat.BINARY : DatabaseFormat.JSON;
+                secretsDatabase.saveTo(file, format, store.equals("journal"));
+        }
+
+        inMemorySecretStore = InMemorySecretStore.copyOf(plaintext);
+        secretStoreCache = new SecretStoreCache(64, store.equals("mmap")
+                ? new LookupSecretsRequestExecutor.CacheEntryFactory(null, true)
+                : new LookupSecretsRequestExecutor.CacheEntryFactory(null, false));
+
+        names = new ArrayList<>();
+        for (int i = 0; i < lookups; i++) {
+            names.add("secret-" + (i * (secrets / lookups)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<File> files = Files.walk(file.toPath().getParent()).map(Path::toFile)) {
+            files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> lookup() throws IOException {
+        SecretStore secretStore = store.equals("memory") ? inMemorySecretStore : secretStoreCache.get(file);
+        return secretStore.getSecrets(names);
+    }
+}
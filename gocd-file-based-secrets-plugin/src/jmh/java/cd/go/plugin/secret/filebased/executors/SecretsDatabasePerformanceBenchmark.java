@@ -17,7 +17,6 @@
 package cd.go.plugin.secret.filebased.executors;
 
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
-import cd.go.plugin.secret.filebased.util.LRUCache;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
 
@@ -25,11 +24,8 @@ import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-import static java.util.Collections.synchronizedMap;
-
 @BenchmarkMode(Mode.Throughput)
 @OutputTimeUnit(TimeUnit.MILLISECONDS)
 @State(Scope.Benchmark)
@@ -38,7 +34,7 @@ import static java.util.Collections.synchronizedMap;
 @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
 public class SecretsDatabasePerformanceBenchmark {
 
-    private final Map<File, CacheEntry> fileStatCache = synchronizedMap(new LRUCache<>(3));
+    private final SecretStoreCache secretStoreCache = new SecretStoreCache(3, new LookupSecretsRequestExecutor.CacheEntryFactory(null, false));
 
     private SecretsDatabase secretsDatabase;
 
@@ -68,9 +64,6 @@ public class SecretsDatabasePerformanceBenchmark {
 
     @Benchmark
     public void readDatabaseThroughFileStatCache(Blackhole bh) throws IOException {
-        bh.consume(fileStatCache
-                .compute(tempFile, LookupSecretsRequestExecutor.FileCacheEntryCacheEntryBiFunction.INSTANCE)
-                .getSecretsDatabase()
-                .getSecret("foo"));
+        bh.consume(secretStoreCache.get(tempFile).getSecret("foo"));
     }
 }
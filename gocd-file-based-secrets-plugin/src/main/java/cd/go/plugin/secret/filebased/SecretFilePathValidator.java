@@ -18,11 +18,13 @@ package cd.go.plugin.secret.filebased;
 
 import cd.go.plugin.base.validation.ValidationResult;
 import cd.go.plugin.base.validation.Validator;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 
 import java.io.File;
 import java.util.Map;
 
 import static cd.go.plugin.secret.filebased.model.SecretsConfiguration.SECRETS_FILE_PATH_PROPERTY;
+import static cd.go.plugin.secret.filebased.model.SecretsConfiguration.splitSecretsFilePath;
 
 public class SecretFilePathValidator implements Validator {
 
@@ -30,25 +32,38 @@ public class SecretFilePathValidator implements Validator {
     public ValidationResult validate(Map<String, String> requestBody) {
         ValidationResult validationResult = new ValidationResult();
         String filePath = requestBody.get(SECRETS_FILE_PATH_PROPERTY);
-        if (filePath == null || filePath.isBlank()) {
+        if (filePath == null || splitSecretsFilePath(filePath).isEmpty()) {
             return addErrorAndReturn(validationResult, "SecretsFilePath must not be blank.");
         }
 
+        // the first file that is not right is reported
+        for (String path : splitSecretsFilePath(filePath)) {
+            String error = validateFile(path);
+            if (error != null) {
+                return addErrorAndReturn(validationResult, error);
+            }
+        }
+
+        return validationResult;
+    }
+
+    private String validateFile(String filePath) {
         File secretFile = new File(filePath);
 
         if (!secretFile.exists()) {
-            return addErrorAndReturn(validationResult, String.format("No secret config file at path '%s'.", filePath));
+            return String.format("No secret config file at path '%s'.", filePath);
         }
 
-        if (secretFile.isDirectory()) {
-            return addErrorAndReturn(validationResult, String.format("Secret config file path '%s' is not a normal file.", filePath));
+        // a directory of secrets is told apart from any other directory by its key
+        if (secretFile.isDirectory() && !new File(secretFile, SecretsDirectory.KEY_FILE_NAME).isFile()) {
+            return String.format("Secret config file path '%s' is not a normal file, or a directory with a '%s' file.", filePath, SecretsDirectory.KEY_FILE_NAME);
         }
 
         if (!secretFile.canRead()) {
-            return addErrorAndReturn(validationResult, String.format("Unable to read secret config file '%s', check permissions.", filePath));
+            return String.format("Unable to read secret config file '%s', check permissions.", filePath);
         }
 
-        return validationResult;
+        return null;
     }
 
     private ValidationResult addErrorAndReturn(ValidationResult validationResult, String message) {
@@ -16,25 +16,241 @@
 
 package cd.go.plugin.secret.filebased.executors;
 
+import cd.go.plugin.secret.filebased.db.DatabaseHeader;
+import cd.go.plugin.secret.filebased.db.OffHeapBudget;
+import cd.go.plugin.secret.filebased.db.SecretStore;
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import cd.go.plugin.secret.filebased.util.FileStat;
+import cd.go.plugin.secret.filebased.util.FileWatcher;
+import com.thoughtworks.go.plugin.api.logging.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * A secrets file, with the secrets last read from it. Lookups are always served from those, while the file is checked
+ * for changes, and read again, in the background. Only the first lookup waits for the file to be read.
+ */
 class CacheEntry {
 
+    private static final Logger LOG = Logger.getLoggerFor(CacheEntry.class);
+
     private final FileStat fileStat;
 
+    private final FileWatcher.Registration registration;
+
+    private final boolean mapFile;
+
+    private final Executor reloader;
+
+    // where decrypted secrets are kept off the heap, shared with the other files, or null to keep them on it
+    private final OffHeapBudget offHeapBudget;
+
+    // decrypts all the secrets of the file once it is read, if any secret config looking them up asks for that
+    private final ForkJoinPool preDecryptionPool;
+
+    private volatile boolean preDecrypt;
+
+    // replaced as a whole once the file has been read again, and kept if it cannot be
     private volatile SecretsDatabase secretsDatabase;
 
+    // the last database read, if its file is journaled, so that only the changes appended since need to be read
+    private SecretsDatabase journaledDatabase;
+
+    // set by the watcher thread, cleared once the file has been checked again
+    private volatile boolean possiblyChanged = true;
+
+    // changes noticed while the file is being read again are read by the same reload, once it is done
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    private volatile boolean reloadRequested;
+
+    // if the file is a directory of secrets, which is polled for changes to the files that were read
+    private final boolean directory;
+
+    private SecretsDirectory secretsDirectory;
+
     CacheEntry(File file) {
-        this.fileStat = new FileStat(file);
+        this(file, null, false, Runnable::run);
+    }
+
+    CacheEntry(File file, FileWatcher fileWatcher, boolean mapFile, Executor reloader) {
+        this(file, fileWatcher, mapFile, null, reloader);
+    }
+
+    CacheEntry(File file, FileWatcher fileWatcher, boolean mapFile, OffHeapBudget offHeapBudget, Executor reloader) {
+        this(file, fileWatcher, mapFile, offHeapBudget, ForkJoinPool.commonPool(), reloader);
+    }
+
+    /**
+     * @param fileWatcher       watches the file for changes, or {@code null} to poll it instead
+     * @param mapFile           whether to map the file into memory, rather than read all of it onto the heap
+     * @param offHeapBudget     the memory to keep decrypted secrets in off the heap, and wipe once the secrets are read
+     *                          again or evicted, or {@code null} to keep them on the heap
+     * @param preDecryptionPool decrypts all the secrets once the file is read, see {@link #preDecryptSecrets()}
+     * @param reloader          reads the file again when it changed
+     */
+    CacheEntry(File file, FileWatcher fileWatcher, boolean mapFile, OffHeapBudget offHeapBudget, ForkJoinPool preDecryptionPool, Executor reloader) {
+        this.fileStat = new FileStat(file, DatabaseHeader::read);
+        this.directory = file.isDirectory();
+        this.offHeapBudget = offHeapBudget;
+        this.preDecryptionPool = preDecryptionPool;
+        this.reloader = reloader;
+        this.registration = fileWatcher == null || directory ? null : watch(file, fileWatcher);
+        this.mapFile = mapFile;
     }
 
-    void refresh() throws IOException {
-        if (this.fileStat.changed(5000)) {
-            this.secretsDatabase = null;
+    private FileWatcher.Registration watch(File file, FileWatcher fileWatcher) {
+        try {
+            return fileWatcher.watch(file, this::onWatchEvent);
+        } catch (IOException e) {
+            // the directory cannot be watched, so poll instead
+            return null;
+        }
+    }
+
+    // changes are picked up as soon as they are seen, rather than at the next check
+    private void onWatchEvent() {
+        possiblyChanged = true;
+        reloader.execute(() -> {
+            try {
+                checkForChanges();
+            } catch (IOException e) {
+                LOG.warn("Unable to check " + fileStat.getFile() + " for changes.", e);
+            }
+        });
+    }
+
+    /**
+     * Checks whether the file changed since it was read, and if so reads it again in the background. Called
+     * periodically for every file in the cache, and never by lookups.
+     */
+    void checkForChanges() throws IOException {
+        if (directory) {
+            refreshDirectory();
+            return;
+        }
+        if (registration != null && registration.isValid()) {
+            // without any events from the watcher, there is nothing to check
+            if (!possiblyChanged) {
+                return;
+            }
+            possiblyChanged = false;
+        }
+        if (this.fileStat.changed(0)) {
+            reload();
+        }
+    }
+
+    private synchronized void refreshDirectory() throws IOException {
+        if (secretsDirectory != null) {
+            secretsDirectory.refresh();
+        }
+    }
+
+    /**
+     * Reads the file again, unless it is already being read, in which case it is read once more after that.
+     */
+    private void reload() {
+        if (secretsDatabase == null) {
+            // never read, so the next lookup reads it
+            return;
+        }
+        reloadRequested = true;
+        if (reloading.compareAndSet(false, true)) {
+            reloader.execute(this::runReloads);
+        }
+    }
+
+    private void runReloads() {
+        try {
+            while (reloadRequested) {
+                reloadRequested = false;
+                try {
+                    SecretsDatabase replaced = secretsDatabase;
+                    SecretsDatabase reloaded = load();
+                    secretsDatabase = reloaded;
+                    // lookups that still hold on to it decrypt what they need again
+                    replaced.close();
+                    LOG.info("Read secrets from " + fileStat.getFile() + " again, and " + reloaded.getCarriedOver() + ".");
+                } catch (IOException | RuntimeException e) {
+                    // the file is read again once it changes again
+                    LOG.warn("Unable to read secrets from " + fileStat.getFile() + ", still looking up the secrets read from it before.", e);
+                }
+            }
+        } finally {
+            reloading.set(false);
+        }
+        // requested after the loop ended, but before it could be told
+        if (reloadRequested) {
+            reload();
+        }
+    }
+
+    /**
+     * Decrypts all the secrets every time the file is read from now on, before lookups are served from them, rather
+     * than each secret the first time it is looked up. The secrets already read are decrypted in the background. Does
+     * nothing for mapped files, whose secrets are never kept decrypted, or for directories of secrets.
+     */
+    void preDecryptSecrets() {
+        if (preDecrypt || mapFile || directory) {
+            return;
+        }
+        preDecrypt = true;
+        SecretsDatabase localRef = secretsDatabase;
+        // a file being read for the first time meanwhile may be left to be decrypted as its secrets are looked up
+        if (localRef != null) {
+            reloader.execute(() -> preDecrypt(localRef));
+        }
+    }
+
+    SecretStore getSecretStore() throws IOException {
+        return directory ? getSecretsDirectory() : getSecretsDatabase();
+    }
+
+    /**
+     * @return the secret store, if the file was read already, or {@code null} rather than reading it
+     */
+    SecretStore getSecretStoreIfRead() {
+        if (directory) {
+            synchronized (this) {
+                return secretsDirectory;
+            }
+        }
+        return secretsDatabase;
+    }
+
+    private synchronized SecretsDirectory getSecretsDirectory() throws IOException {
+        if (secretsDirectory == null) {
+            secretsDirectory = new SecretsDirectory(fileStat.getFile());
+        }
+        return secretsDirectory;
+    }
+
+    /**
+     * @return roughly how many bytes of heap the secrets read from the file take up, or zero if it was never read
+     */
+    long getEstimatedSize() {
+        if (directory) {
+            synchronized (this) {
+                return secretsDirectory == null ? 0 : secretsDirectory.getEstimatedSize();
+            }
+        }
+        SecretsDatabase localRef = secretsDatabase;
+        return localRef == null ? 0 : localRef.getEstimatedSize();
+    }
+
+    void close() {
+        if (registration != null) {
+            registration.cancel();
+        }
+        SecretsDatabase localRef = secretsDatabase;
+        if (localRef != null) {
+            localRef.close();
         }
     }
 
@@ -45,11 +261,52 @@ class CacheEntry {
             synchronized (this) {
                 localRef = secretsDatabase;
                 if (localRef == null) {
-                    secretsDatabase = localRef = SecretsDatabase.readFrom(this.fileStat.getFile());
+                    secretsDatabase = localRef = load();
                 }
             }
         }
         return localRef;
     }
 
+    private synchronized SecretsDatabase load() throws IOException {
+        SecretsDatabase loaded = null;
+        if (journaledDatabase != null) {
+            // which keeps what was decrypted
+            loaded = this.fileStat.open(journaledDatabase::readAppended, SecretsDatabase::getHeader);
+        }
+        if (loaded == null) {
+            loaded = mapFile
+                    ? this.fileStat.map(SecretsDatabase::view, SecretsDatabase::getHeader)
+                    : this.fileStat.read(SecretsDatabase::readFrom, SecretsDatabase::getHeader);
+            if (offHeapBudget != null) {
+                loaded.keepDecryptionsOffHeap(offHeapBudget);
+            }
+            SecretsDatabase previous = secretsDatabase;
+            if (previous != null) {
+                // the secrets that did not change need not be decrypted again
+                loaded.carryOverDecryptionsFrom(previous);
+            }
+        }
+        journaledDatabase = loaded.isJournaled() ? loaded : null;
+        if (!loaded.getMalformedSecrets().isEmpty()) {
+            LOG.warn("Secrets " + loaded.getMalformedSecrets() + " in " + fileStat.getFile() + " are not encrypted the way they should be, and cannot be looked up.");
+        }
+        if (preDecrypt) {
+            preDecrypt(loaded);
+        }
+        return loaded;
+    }
+
+    private void preDecrypt(SecretsDatabase secretsDatabase) {
+        try {
+            LOG.info("Pre-" + secretsDatabase.preDecrypt(preDecryptionPool) + " from " + fileStat.getFile() + ".");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the rest are decrypted as they are looked up
+            LOG.warn("Interrupted while decrypting the secrets read from " + fileStat.getFile() + ".");
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to decrypt the secrets read from " + fileStat.getFile() + " upfront, decrypting them as they are looked up instead.", e);
+        }
+    }
+
 }
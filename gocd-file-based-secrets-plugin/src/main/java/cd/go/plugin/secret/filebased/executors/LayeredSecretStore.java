@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.SecretStore;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The secrets of several stores, or layers, where a secret is taken from the first layer that has it, so that the
+ * layers after the first can hold shared secrets, and the ones before them override some of those.
+ * <p>
+ * An index of which layer each secret is taken from is kept, so that a secret is found with one lookup in the index
+ * however many layers there are. When a layer changes, only the secrets that were added to it or removed from it are
+ * indexed again. A layer has changed when it is another store than before, as it is once its file was read again, or
+ * when the store has a new generation, as a directory of secrets does.
+ */
+final class LayeredSecretStore implements SecretStore {
+
+    // the stores the layers were last refreshed with, which the index refers to by position, and their generations
+    private volatile Layers layers;
+
+    // the names of the secrets in each layer, as of the last time it changed
+    private final List<Set<String>> names;
+
+    // the layer each secret is taken from
+    private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<>();
+
+    private volatile long generation;
+
+    LayeredSecretStore(int layers) {
+        this.layers = new Layers(new SecretStore[layers], new long[layers]);
+        this.names = new ArrayList<>(Collections.nCopies(layers, Collections.emptySet()));
+    }
+
+    /**
+     * Takes the layers as they are now, and indexes the secrets of those that changed since the last time. Layers
+     * that did not change are told apart without taking any lock.
+     */
+    LayeredSecretStore refresh(List<SecretStore> layers) throws IOException {
+        if (layers.size() != this.layers.stores.length) {
+            throw new IllegalArgumentException("Expected " + this.layers.stores.length + " layers, got " + layers.size());
+        }
+        if (!this.layers.changedIn(layers)) {
+            return this;
+        }
+
+        synchronized (this) {
+            Layers indexed = this.layers;
+            SecretStore[] stores = layers.toArray(new SecretStore[0]);
+            long[] generations = new long[stores.length];
+            boolean changed = false;
+            for (int layer = 0; layer < stores.length; layer++) {
+                generations[layer] = stores[layer].getGeneration();
+                if (stores[layer] != indexed.stores[layer] || generations[layer] != indexed.generations[layer]) {
+                    reindex(layer, new HashSet<>(stores[layer].getAllSecretKeys()));
+                    changed = true;
+                }
+            }
+
+            this.layers = new Layers(stores, generations);
+            if (changed) {
+                generation++;
+            }
+        }
+        return this;
+    }
+
+    // only the secrets added to or removed from the layer can be taken from another layer than they were before
+    private void reindex(int layer, Set<String> layerNames) {
+        Set<String> affected = new HashSet<>(layerNames);
+        affected.removeAll(names.get(layer));
+        for (String name : names.get(layer)) {
+            if (!layerNames.contains(name)) {
+                affected.add(name);
+            }
+        }
+
+        names.set(layer, layerNames);
+        for (String name : affected) {
+            Integer owner = ownerOf(name);
+            if (owner == null) {
+                index.remove(name);
+            } else {
+                index.put(name, owner);
+            }
+        }
+    }
+
+    private Integer ownerOf(String name) {
+        for (int layer = 0; layer < names.size(); layer++) {
+            if (names.get(layer).contains(name)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getSecret(String name) throws IOException {
+        Integer layer = index.get(name);
+        return layer == null ? null : layers.stores[layer].getSecret(name);
+    }
+
+    @Override
+    public Set<String> getAllSecretKeys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    private static final class Layers {
+
+        private final SecretStore[] stores;
+
+        private final long[] generations;
+
+        private Layers(SecretStore[] stores, long[] generations) {
+            this.stores = stores;
+            this.generations = generations;
+        }
+
+        private boolean changedIn(List<SecretStore> layers) {
+            for (int layer = 0; layer < stores.length; layer++) {
+                SecretStore store = layers.get(layer);
+                if (store != stores[layer] || store.getGeneration() != generations[layer]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
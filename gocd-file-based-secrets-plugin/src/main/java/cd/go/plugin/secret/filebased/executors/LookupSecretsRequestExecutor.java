@@ -18,43 +18,94 @@ package cd.go.plugin.secret.filebased.executors;
 
 import cd.go.plugin.base.GsonTransformer;
 import cd.go.plugin.base.executors.secrets.LookupExecutor;
-import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.OffHeapBudget;
+import cd.go.plugin.secret.filebased.db.SecretStore;
 import cd.go.plugin.secret.filebased.model.LookupSecretRequest;
-import cd.go.plugin.secret.filebased.util.LRUCache;
+import cd.go.plugin.secret.filebased.util.ConcurrentLRUCache;
+import cd.go.plugin.secret.filebased.util.FileWatcher;
+import com.thoughtworks.go.plugin.api.logging.Logger;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.function.BiFunction;
-
-import static java.util.Collections.synchronizedMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class LookupSecretsRequestExecutor extends LookupExecutor<LookupSecretRequest> {
 
+    private static final Logger LOG = Logger.getLoggerFor(LookupSecretsRequestExecutor.class);
+
+    // watch secrets files for changes, instead of polling them
+    public static final String WATCH_FILES_PROPERTY = "cd.go.secrets.file-based-plugin.watch";
+
+    // map secrets files into memory, instead of reading them onto the heap
+    public static final String MAP_FILES_PROPERTY = "cd.go.secrets.file-based-plugin.mmap";
+
+    // how many megabytes of heap the secrets of all the cached files may take up, without limit by default
+    public static final String CACHE_SIZE_PROPERTY = "cd.go.secrets.file-based-plugin.cacheSize";
+
+    // how many minutes a cached file may go without being looked up, before it is evicted
+    public static final String CACHE_IDLE_TIME_PROPERTY = "cd.go.secrets.file-based-plugin.cacheIdleTime";
+
+    // how many megabytes of decrypted secrets to keep off the heap, instead of on it, in total across all cached files
+    public static final String OFF_HEAP_SIZE_PROPERTY = "cd.go.secrets.file-based-plugin.offHeapSize";
+
+    // how many secrets a lookup must be of for them to be decrypted in parallel, or zero to never do that
+    public static final String PARALLEL_LOOKUP_THRESHOLD_PROPERTY = "cd.go.secrets.file-based-plugin.parallelLookupThreshold";
+
+    private static final long DEFAULT_CACHE_IDLE_TIME = 60;
+
+    private static final int DEFAULT_PARALLEL_LOOKUP_THRESHOLD = 64;
+
+    // decryption is bound by the CPU, and the GoCD server has other work to do
+    private static final int MAX_PARALLEL_LOOKUP_THREADS = 3;
+
     private static final int NOT_FOUND_ERROR_CODE = 404;
 
     private static final int MAX_ENTRIES = 512;
 
-    // cheap cache implementation
-    private static final Map<File, CacheEntry> FILE_STAT_CACHE = synchronizedMap(new LRUCache<>(MAX_ENTRIES));
+    private static final int MAX_NOT_FOUND_RESPONSES = 256;
+
+    // decrypts all the secrets of the files of the secret configs that ask for it, as soon as they are read
+    private static final ForkJoinPool PRE_DECRYPTION_POOL = new ForkJoinPool(
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_PARALLEL_LOOKUP_THREADS)));
+
+    private static final FileWatcher FILE_WATCHER = Boolean.getBoolean(WATCH_FILES_PROPERTY) ? createFileWatcher() : null;
+
+    private static final SecretStoreCache SECRET_STORES = new SecretStoreCache(MAX_ENTRIES,
+            Long.getLong(CACHE_SIZE_PROPERTY, 0) * 1024 * 1024,
+            TimeUnit.MINUTES.toMillis(Long.getLong(CACHE_IDLE_TIME_PROPERTY, DEFAULT_CACHE_IDLE_TIME)),
+            new CacheEntryFactory(FILE_WATCHER, Boolean.getBoolean(MAP_FILES_PROPERTY), Long.getLong(OFF_HEAP_SIZE_PROPERTY, 0) * 1024 * 1024, PRE_DECRYPTION_POOL));
+
+    private static final ParallelSecretLookup PARALLEL_LOOKUP = new ParallelSecretLookup(
+            Integer.getInteger(PARALLEL_LOOKUP_THRESHOLD_PROPERTY, DEFAULT_PARALLEL_LOOKUP_THRESHOLD),
+            Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_PARALLEL_LOOKUP_THREADS));
+
+    // the same missing secrets are looked up over and over by the pipelines that refer to them. Which secrets are
+    // missing is always worked out again, so only the response, which depends on nothing else, is kept.
+    private static final ConcurrentLRUCache<List<String>, String> NOT_FOUND_RESPONSES = new ConcurrentLRUCache<>(MAX_NOT_FOUND_RESPONSES);
 
     @Override
     protected GoPluginApiResponse execute(LookupSecretRequest lookupSecretsRequest) {
         List<Map<String, String>> responseList = new ArrayList<>();
 
-        File secretsFile = new File(lookupSecretsRequest.getSecretsFilePath());
+        List<File> secretsFiles = new ArrayList<>();
+        for (String secretsFilePath : lookupSecretsRequest.getSecretsFilePaths()) {
+            secretsFiles.add(new File(secretsFilePath));
+        }
 
         List<String> unresolvedKeys = new ArrayList<>();
 
         try {
-            CacheEntry cacheEntry = FILE_STAT_CACHE.compute(secretsFile, FileCacheEntryCacheEntryBiFunction.INSTANCE);
-            SecretsDatabase secretsDatabase = cacheEntry.getSecretsDatabase();
+            SecretStore secretStore = SECRET_STORES.get(secretsFiles, lookupSecretsRequest.isPreDecryptSecrets());
+            Map<String, String> secrets = PARALLEL_LOOKUP.getSecrets(secretStore, lookupSecretsRequest.getKeys());
 
             for (String key : lookupSecretsRequest.getKeys()) {
-                String secret = secretsDatabase.getSecret(key);
+                String secret = secrets.get(key);
+
                 if (secret != null) {
                     Map<String, String> response = new HashMap<>();
                     response.put("key", key);
@@ -69,39 +120,77 @@ public class LookupSecretsRequestExecutor extends LookupExecutor<LookupSecretReq
                 return DefaultGoPluginApiResponse.success(GsonTransformer.toJson(responseList));
             }
 
-            Map<String, String> response = Collections.singletonMap("message", String.format("Secrets with keys %s not found.", unresolvedKeys));
-            return new DefaultGoPluginApiResponse(NOT_FOUND_ERROR_CODE, GsonTransformer.toJson(response));
+            return new DefaultGoPluginApiResponse(NOT_FOUND_ERROR_CODE, NOT_FOUND_RESPONSES.computeIfAbsent(unresolvedKeys, LookupSecretsRequestExecutor::notFoundResponse));
         } catch (IOException e) {
             Map<String, String> errorMessage = Collections.singletonMap("message", "Error while looking up secrets: " + e);
             return DefaultGoPluginApiResponse.error(GsonTransformer.toJson(errorMessage));
         }
     }
 
+    private static String notFoundResponse(List<String> unresolvedKeys) {
+        Map<String, String> response = Collections.singletonMap("message", String.format("Secrets with keys %s not found.", unresolvedKeys));
+        return GsonTransformer.toJson(response);
+    }
+
     @Override
     protected LookupSecretRequest parseRequest(String body) {
         return LookupSecretRequest.fromJSON(body);
     }
 
-    public static class FileCacheEntryCacheEntryBiFunction implements BiFunction<File, CacheEntry, CacheEntry> {
+    private static FileWatcher createFileWatcher() {
+        try {
+            return new FileWatcher();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Unable to watch secrets files for changes, falling back to polling.", e);
+            return null;
+        }
+    }
+
+    public static class CacheEntryFactory {
+
+        private final FileWatcher fileWatcher;
+
+        private final boolean mapFiles;
+
+        // shared by the decrypted secrets of all the files, or null to keep them on the heap
+        private final OffHeapBudget offHeapBudget;
 
-        public static FileCacheEntryCacheEntryBiFunction INSTANCE = new FileCacheEntryCacheEntryBiFunction();
+        private final ForkJoinPool preDecryptionPool;
 
-        private FileCacheEntryCacheEntryBiFunction() {
+        CacheEntryFactory(FileWatcher fileWatcher, boolean mapFiles) {
+            this(fileWatcher, mapFiles, 0);
         }
 
-        @Override
-        public CacheEntry apply(File file, CacheEntry existingCacheEntry) {
-            if (existingCacheEntry == null) {
-                existingCacheEntry = new CacheEntry(file);
-            }
+        CacheEntryFactory(FileWatcher fileWatcher, boolean mapFiles, long offHeapSize) {
+            this(fileWatcher, mapFiles, offHeapSize, ForkJoinPool.commonPool());
+        }
+
+        CacheEntryFactory(FileWatcher fileWatcher, boolean mapFiles, long offHeapSize, ForkJoinPool preDecryptionPool) {
+            this.fileWatcher = fileWatcher;
+            this.mapFiles = mapFiles;
+            this.offHeapBudget = offHeapSize > 0 ? new OffHeapBudget(offHeapSize) : null;
+            this.preDecryptionPool = preDecryptionPool;
+        }
 
+        CacheEntry create(File file, Executor reloader) {
+            return new CacheEntry(file, fileWatcher, mapFiles, offHeapBudget, preDecryptionPool, reloader);
+        }
+
+        /**
+         * Watches the file as spelled, and the links it is reached through, if files are watched.
+         *
+         * @return the registration, or {@code null} if files are polled instead
+         */
+        FileWatcher.Registration watch(File file, Runnable onChange) {
+            if (fileWatcher == null) {
+                return null;
+            }
             try {
-                existingCacheEntry.refresh();
+                return fileWatcher.watch(file, onChange);
             } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                // the directory cannot be watched, so the link is checked along with the files instead
+                return null;
             }
-
-            return existingCacheEntry;
         }
     }
 }
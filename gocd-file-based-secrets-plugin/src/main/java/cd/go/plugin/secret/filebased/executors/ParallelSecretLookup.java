@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.SecretStore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Looks up many secrets at once by splitting them across the threads of a shared pool, so that the secrets of a
+ * lookup of a few hundred of them, none of which were decrypted before, are not decrypted one after the other. The
+ * calling thread looks up a share of them too. Lookups of fewer secrets than the threshold are made on the calling
+ * thread alone, as before.
+ */
+class ParallelSecretLookup {
+
+    private final int threshold;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threshold   how many secrets a lookup must be of to be split, or zero to never split lookups
+     * @param parallelism how many threads, along with the calling one, to split lookups across
+     */
+    ParallelSecretLookup(int threshold, int parallelism) {
+        this.threshold = threshold;
+        // whose threads are daemons, and only started when needed
+        this.pool = threshold > 0 && parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * @return the decrypted values of the secrets that exist, in the order they were asked for
+     */
+    Map<String, String> getSecrets(SecretStore secretStore, List<String> names) throws IOException {
+        if (pool == null || names.size() < threshold) {
+            return secretStore.getSecrets(names);
+        }
+
+        int parts = pool.getParallelism() + 1;
+        int partSize = (names.size() + parts - 1) / parts;
+        List<Future<Map<String, String>>> lookups = new ArrayList<>();
+        for (int start = partSize; start < names.size(); start += partSize) {
+            List<String> part = names.subList(start, Math.min(start + partSize, names.size()));
+            lookups.add(pool.submit(() -> getSecrets(secretStore, part)));
+        }
+
+        Map<String, String> found = new HashMap<>(secretStore.getSecrets(names.subList(0, partSize)));
+        for (Future<Map<String, String>> lookup : lookups) {
+            found.putAll(join(lookup));
+        }
+
+        Map<String, String> secrets = new LinkedHashMap<>();
+        for (String name : names) {
+            String secret = found.get(name);
+            if (secret != null) {
+                secrets.put(name, secret);
+            }
+        }
+        return secrets;
+    }
+
+    private static Map<String, String> getSecrets(SecretStore secretStore, Collection<String> names) {
+        try {
+            return secretStore.getSecrets(names);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Map<String, String> join(Future<Map<String, String>> lookup) throws IOException {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while looking up secrets");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
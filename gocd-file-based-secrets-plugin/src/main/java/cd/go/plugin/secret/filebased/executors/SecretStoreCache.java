@@ -0,0 +1,350 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.SecretStore;
+import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.executors.LookupSecretsRequestExecutor.CacheEntryFactory;
+import cd.go.plugin.secret.filebased.util.ConcurrentLRUCache;
+import cd.go.plugin.secret.filebased.util.FileWatcher;
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The secret stores of the most recently used files. Lookups never wait on a file being checked for changes, or read
+ * again: one thread checks all the files in the cache every few seconds, and those that changed are read again on
+ * other threads, while lookups go on using the secrets read before. Only the first lookup of a file waits for it to
+ * be read, holding no lock but the one of the file's own entry.
+ * <p>
+ * Files are cached by their real path, so that all the ways of spelling a path to the same file, including through
+ * symbolic links, share the secrets read from it. The real path of each spelling is remembered, and worked out again
+ * along with the checks for changes, or as soon as a link along the way changes if files are watched, in case it now
+ * leads elsewhere. The file it led to before is evicted then, unless another spelling still leads to it.
+ * <p>
+ * The same thread evicts the files that were not looked up for a while, and then the least recently used ones until
+ * the secrets of the rest take up no more than the memory budget. Evicted files are read again when next looked up.
+ */
+class SecretStoreCache {
+
+    private static final Logger LOG = Logger.getLoggerFor(SecretStoreCache.class);
+
+    static final int CHECK_INTERVAL = 5000;
+
+    private static final int RELOAD_THREADS = 2;
+
+    private final ConcurrentLRUCache<File, CacheEntry> cacheEntries;
+
+    private final CacheEntryFactory cacheEntryFactory;
+
+    // the real path of each file, as it was spelled when it was looked up
+    private final ConcurrentLRUCache<File, RealFile> realFiles;
+
+    private final long maxSize;
+
+    private final long maxIdleNanos;
+
+    private volatile long estimatedSize;
+
+    private final LongAdder evictedForSize = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    private final Executor reloader;
+
+    // keeps the index of the secrets of each list of files, while the layers are cached like any other file
+    private final ConcurrentLRUCache<List<File>, LayeredSecretStore> layeredSecretStores;
+
+    // one for each manifest read, so that it only looks changed to the layers it is in when it or its shards did
+    private final ConcurrentLRUCache<File, ShardedSecretStore> shardedSecretStores;
+
+    SecretStoreCache(int maxEntries, CacheEntryFactory cacheEntryFactory) {
+        this(maxEntries, 0, 0, cacheEntryFactory);
+    }
+
+    /**
+     * @param maxSize     how many bytes of heap the secrets of all the files may take up, or zero for no limit
+     * @param maxIdleTime how many milliseconds a file may go without being looked up, or zero for no limit
+     */
+    SecretStoreCache(int maxEntries, long maxSize, long maxIdleTime, CacheEntryFactory cacheEntryFactory) {
+        this(maxEntries, maxSize, maxIdleTime, cacheEntryFactory, Executors.newFixedThreadPool(RELOAD_THREADS, daemon("file-based-secrets-reloader")));
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(daemon("file-based-secrets-checker"));
+        checker.scheduleWithFixedDelay(() -> {
+            checkRealFiles();
+            checkForChanges();
+            evict();
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Does not check the files for changes, or evict them, unless told to with {@link #checkForChanges()} and
+     * {@link #evict()}.
+     *
+     * @param reloader reads the files that changed again
+     */
+    SecretStoreCache(int maxEntries, long maxSize, long maxIdleTime, CacheEntryFactory cacheEntryFactory, Executor reloader) {
+        this.cacheEntries = new ConcurrentLRUCache<>(maxEntries, CacheEntry::close);
+        this.cacheEntryFactory = cacheEntryFactory;
+        this.maxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+        this.maxIdleNanos = maxIdleTime > 0 ? TimeUnit.MILLISECONDS.toNanos(maxIdleTime) : Long.MAX_VALUE;
+        this.reloader = reloader;
+        this.layeredSecretStores = new ConcurrentLRUCache<>(maxEntries);
+        this.shardedSecretStores = new ConcurrentLRUCache<>(maxEntries);
+        this.realFiles = new ConcurrentLRUCache<>(maxEntries, RealFile::cancel);
+    }
+
+    void checkRealFiles() {
+        realFiles.forEach(this::checkRealFile);
+    }
+
+    // a spelling that now leads to another file is worked out again the next time it is looked up
+    private void checkRealFile(File file, RealFile realFile) {
+        if (realFile.file.equals(realFileOf(file))) {
+            return;
+        }
+        RealFile removed = realFiles.remove(file);
+        if (removed != null) {
+            removed.cancel();
+        }
+
+        AtomicBoolean stillLedTo = new AtomicBoolean();
+        realFiles.forEach((otherFile, otherRealFile) -> {
+            if (otherRealFile.file.equals(realFile.file)) {
+                stillLedTo.set(true);
+            }
+        });
+        if (!stillLedTo.get()) {
+            CacheEntry orphaned = cacheEntries.remove(realFile.file);
+            if (orphaned != null) {
+                orphaned.close();
+            }
+        }
+    }
+
+    void checkForChanges() {
+        cacheEntries.forEach((file, cacheEntry) -> {
+            try {
+                cacheEntry.checkForChanges();
+            } catch (IOException | RuntimeException e) {
+                // and carry on checking the others, now and next time
+                LOG.warn("Unable to check " + file + " for changes.", e);
+            }
+        });
+    }
+
+    void evict() {
+        int expiredNow = cacheEntries.evictIdle(maxIdleNanos);
+        layeredSecretStores.evictIdle(maxIdleNanos);
+        shardedSecretStores.evictIdle(maxIdleNanos);
+
+        int entries = cacheEntries.size();
+        estimatedSize = cacheEntries.evictToWeight(CacheEntry::getEstimatedSize, maxSize);
+        // roughly, as files may be looked up for the first time meanwhile
+        int evictedForSizeNow = Math.max(0, entries - cacheEntries.size());
+
+        expired.add(expiredNow);
+        evictedForSize.add(evictedForSizeNow);
+        if (expiredNow > 0 || evictedForSizeNow > 0) {
+            LOG.info("Evicted " + expiredNow + " secrets files that were not looked up for a while, and " + evictedForSizeNow + " to stay within the memory budget. " + getStatistics());
+        } else {
+            LOG.debug(getStatistics().toString());
+        }
+    }
+
+    Statistics getStatistics() {
+        return new Statistics(cacheEntries.size(), estimatedSize, maxSize, evictedForSize.sum(), expired.sum());
+    }
+
+    /**
+     * @return the secrets of the given files, where a secret is taken from the first file that has it
+     */
+    SecretStore get(List<File> files) throws IOException {
+        return get(files, false);
+    }
+
+    /**
+     * @param preDecrypt whether to decrypt all the secrets of the files as soon as they are read, from now on, see
+     *                   {@link CacheEntry#preDecryptSecrets()}
+     * @return the secrets of the given files, where a secret is taken from the first file that has it
+     */
+    SecretStore get(List<File> files, boolean preDecrypt) throws IOException {
+        if (files.size() == 1) {
+            return get(files.get(0), preDecrypt);
+        }
+
+        List<File> layerFiles = new ArrayList<>();
+        List<SecretStore> layers = new ArrayList<>();
+        for (File file : files) {
+            File realFile = toRealFile(file);
+            layerFiles.add(realFile);
+            layers.add(getByRealFile(realFile, preDecrypt));
+        }
+        return layeredSecretStores.computeIfAbsent(layerFiles, key -> new LayeredSecretStore(key.size())).refresh(layers);
+    }
+
+    SecretStore get(File file) throws IOException {
+        return get(file, false);
+    }
+
+    SecretStore get(File file, boolean preDecrypt) throws IOException {
+        return getByRealFile(toRealFile(file), preDecrypt);
+    }
+
+    /**
+     * @return the secret store of the given file, if it was read and is still in the cache, without reading it
+     * otherwise
+     */
+    SecretStore getIfRead(File file) {
+        CacheEntry cacheEntry = cacheEntries.get(toRealFile(file));
+        return cacheEntry == null ? null : cacheEntry.getSecretStoreIfRead();
+    }
+
+    private File toRealFile(File file) {
+        RealFile realFile = realFiles.get(file);
+        if (realFile != null) {
+            return realFile.file;
+        }
+        File resolved = realFileOf(file);
+        if (resolved == null) {
+            // a file that cannot be found is looked up as spelled, which fails the same way, until it can be
+            return file;
+        }
+        return realFiles.computeIfAbsent(file, key -> new RealFile(resolved, cacheEntryFactory.watch(key, () -> onLinkEvent(key)))).file;
+    }
+
+    private void onLinkEvent(File file) {
+        RealFile realFile = realFiles.get(file);
+        if (realFile != null) {
+            checkRealFile(file, realFile);
+        }
+    }
+
+    private static File realFileOf(File file) {
+        try {
+            return file.toPath().toRealPath().toFile();
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private SecretStore getByRealFile(File file, boolean preDecrypt) throws IOException {
+        CacheEntry cacheEntry = cacheEntries.computeIfAbsent(file, key -> cacheEntryFactory.create(key, reloader));
+        if (preDecrypt) {
+            cacheEntry.preDecryptSecrets();
+        }
+        SecretStore secretStore = cacheEntry.getSecretStore();
+        if (secretStore instanceof SecretsDatabase && ((SecretsDatabase) secretStore).isSharded()) {
+            return shardedSecretStore((SecretsDatabase) secretStore, file, preDecrypt);
+        }
+        return secretStore;
+    }
+
+    private ShardedSecretStore shardedSecretStore(SecretsDatabase manifest, File file, boolean preDecrypt) {
+        ShardedSecretStore cached = shardedSecretStores.get(file);
+        if (cached != null && cached.isOf(manifest, preDecrypt)) {
+            return cached;
+        }
+        // racing threads may each create one, and the one cached first is used from the next lookup on
+        shardedSecretStores.remove(file);
+        return shardedSecretStores.computeIfAbsent(file, key -> new ShardedSecretStore(manifest, key, this, preDecrypt));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Where a spelling of a file leads, and the watch on the links it leads there through, if files are watched.
+     */
+    private static final class RealFile {
+
+        private final File file;
+
+        private final FileWatcher.Registration registration;
+
+        private RealFile(File file, FileWatcher.Registration registration) {
+            this.file = file;
+            this.registration = registration;
+        }
+
+        private void cancel() {
+            if (registration != null) {
+                registration.cancel();
+            }
+        }
+    }
+
+    /**
+     * How much memory the cached secrets take up, as of the last time files were evicted.
+     */
+    static final class Statistics {
+
+        private final int entries;
+
+        private final long estimatedSize;
+
+        private final long maxSize;
+
+        private final long evictedForSize;
+
+        private final long expired;
+
+        private Statistics(int entries, long estimatedSize, long maxSize, long evictedForSize, long expired) {
+            this.entries = entries;
+            this.estimatedSize = estimatedSize;
+            this.maxSize = maxSize;
+            this.evictedForSize = evictedForSize;
+            this.expired = expired;
+        }
+
+        int getEntries() {
+            return entries;
+        }
+
+        long getEstimatedSize() {
+            return estimatedSize;
+        }
+
+        long getEvictedForSize() {
+            return evictedForSize;
+        }
+
+        long getExpired() {
+            return expired;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Caching the secrets of %d files, taking up about %d KiB of heap%s. Evicted %d files to stay within the budget, and %d that were not looked up for a while, so far.",
+                    entries, estimatedSize / 1024, maxSize == Long.MAX_VALUE ? "" : " out of " + maxSize / 1024 + " KiB", evictedForSize, expired);
+        }
+    }
+}
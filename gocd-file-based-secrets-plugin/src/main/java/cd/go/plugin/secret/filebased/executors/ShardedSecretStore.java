@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.SecretStore;
+import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The secrets of a sharded database, looked up in the files of their shards. Each shard is cached, checked for changes
+ * and reloaded on its own, so only the shards that hold the secrets being looked up are read.
+ */
+final class ShardedSecretStore implements SecretStore {
+
+    private final SecretsDatabase manifest;
+
+    private final File manifestFile;
+
+    private final SecretStoreCache shards;
+
+    // whether the shards are decrypted as soon as they are read, like the manifest would be if it held any secrets
+    private final boolean preDecrypt;
+
+    // the generation of each shard as of the last time it was found in the cache
+    private final AtomicLongArray shardGenerations;
+
+    ShardedSecretStore(SecretsDatabase manifest, File manifestFile, SecretStoreCache shards, boolean preDecrypt) {
+        this.manifest = manifest;
+        this.manifestFile = manifestFile;
+        this.shards = shards;
+        this.preDecrypt = preDecrypt;
+        this.shardGenerations = new AtomicLongArray(manifest.getShards());
+    }
+
+    boolean isOf(SecretsDatabase manifest, boolean preDecrypt) {
+        return this.manifest == manifest && this.preDecrypt == preDecrypt;
+    }
+
+    @Override
+    public String getSecret(String name) throws IOException {
+        return shard(manifest.shardOf(name)).getSecret(name);
+    }
+
+    // each shard is asked for all of its secrets at once
+    @Override
+    public Map<String, String> getSecrets(Collection<String> names) throws IOException {
+        Map<Integer, List<String>> namesByShard = new HashMap<>();
+        for (String name : names) {
+            namesByShard.computeIfAbsent(manifest.shardOf(name), shard -> new ArrayList<>()).add(name);
+        }
+
+        Map<String, String> found = new HashMap<>();
+        for (Map.Entry<Integer, List<String>> shard : namesByShard.entrySet()) {
+            found.putAll(shard(shard.getKey()).getSecrets(shard.getValue()));
+        }
+
+        Map<String, String> secrets = new LinkedHashMap<>();
+        for (String name : names) {
+            String secret = found.get(name);
+            if (secret != null) {
+                secrets.put(name, secret);
+            }
+        }
+        return secrets;
+    }
+
+    @Override
+    public Set<String> getAllSecretKeys() throws IOException {
+        Set<String> names = new TreeSet<>();
+        for (int shard = 0; shard < manifest.getShards(); shard++) {
+            names.addAll(shard(shard).getAllSecretKeys());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Adds up the generations of the shards that were read, without reading the others, which count with the
+     * generation they had when they were last in the cache. A shard that changed meanwhile is read again when a
+     * secret is looked up in it, and counts with its new generation from then on.
+     */
+    @Override
+    public long getGeneration() {
+        long generation = manifest.getGeneration();
+        for (int shard = 0; shard < shardGenerations.length(); shard++) {
+            SecretStore read = shards.getIfRead(manifest.shardFile(manifestFile, shard));
+            if (read != null) {
+                shardGenerations.set(shard, read.getGeneration());
+            }
+            generation += shardGenerations.get(shard);
+        }
+        return generation;
+    }
+
+    private SecretStore shard(int shard) throws IOException {
+        return shards.get(manifest.shardFile(manifestFile, shard), preDecrypt);
+    }
+}
@@ -49,6 +49,14 @@ public class LookupSecretRequest {
         return configuration.getSecretsFilePath();
     }
 
+    public List<String> getSecretsFilePaths() {
+        return configuration.getSecretsFilePaths();
+    }
+
+    public boolean isPreDecryptSecrets() {
+        return configuration.isPreDecryptSecrets();
+    }
+
     public List<String> getKeys() {
         return keys;
     }
@@ -22,10 +22,17 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class SecretsConfiguration {
 
     public static final String SECRETS_FILE_PATH_PROPERTY = "SecretsFilePath";
 
+    public static final String PRE_DECRYPT_SECRETS_PROPERTY = "PreDecryptSecrets";
+
     private static final Gson GSON = new GsonBuilder().serializeNulls().create();
 
     @Expose
@@ -33,6 +40,11 @@ public class SecretsConfiguration {
     @Property(name = SECRETS_FILE_PATH_PROPERTY, required = true)
     private String secretsFilePath;
 
+    @Expose
+    @SerializedName(PRE_DECRYPT_SECRETS_PROPERTY)
+    @Property(name = PRE_DECRYPT_SECRETS_PROPERTY, required = false)
+    private String preDecryptSecrets;
+
     public SecretsConfiguration() {
     }
 
@@ -48,4 +60,38 @@ public class SecretsConfiguration {
         return secretsFilePath;
     }
 
+    /**
+     * @return whether to decrypt all the secrets of the files as soon as they are read, rather than each one the first
+     * time it is looked up. Decrypting them as they are looked up is the default.
+     */
+    public boolean isPreDecryptSecrets() {
+        return Boolean.parseBoolean(preDecryptSecrets == null ? null : preDecryptSecrets.trim());
+    }
+
+    /**
+     * @return the paths of the secrets files to look secrets up in, in order, since a secret is taken from the first file
+     * that has it
+     */
+    public List<String> getSecretsFilePaths() {
+        return splitSecretsFilePath(secretsFilePath);
+    }
+
+    /**
+     * Splits a {@value SECRETS_FILE_PATH_PROPERTY} listing several files, separated like the entries of a
+     * {@code PATH}: by {@code :}, or {@code ;} on Windows. A path that has the separator in it, and names a file or
+     * directory that exists as a whole, is still taken as that one path, as it was before several could be listed.
+     */
+    public static List<String> splitSecretsFilePath(String secretsFilePath) {
+        if (secretsFilePath.contains(File.pathSeparator) && new File(secretsFilePath).exists()) {
+            return Collections.singletonList(secretsFilePath);
+        }
+        List<String> paths = new ArrayList<>();
+        for (String path : secretsFilePath.split(File.pathSeparator)) {
+            if (!path.isBlank()) {
+                paths.add(path.trim());
+            }
+        }
+        return paths;
+    }
+
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache holding at most a given number of entries, which evicts a least recently used one to make room for a new
+ * one. Unlike a synchronized {@link java.util.LinkedHashMap}, lookups take no lock, and only record when the entry was
+ * last used, so that lookups of different keys never wait on each other. In exchange, the entry evicted is the least
+ * recently used of a sample of the entries, taken from each in turn, so that adding an entry to a full cache takes the
+ * same time however large the cache is. A cache no larger than the sample evicts the least recently used entry of all.
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    // how many entries are looked at to find one to evict
+    static final int SAMPLE_SIZE = 16;
+
+    private final ConcurrentHashMap<K, Node<V>> entries = new ConcurrentHashMap<>();
+
+    private final int capacity;
+
+    private final Consumer<? super V> evictionListener;
+
+    // where the last sample ended, so that the next one looks at the entries that follow
+    private Iterator<Map.Entry<K, Node<V>>> sampler;
+
+    public ConcurrentLRUCache(int capacity) {
+        this(capacity, value -> {
+        });
+    }
+
+    /**
+     * @param evictionListener is given the values that are evicted, so that it can release whatever they hold on to
+     */
+    public ConcurrentLRUCache(int capacity, Consumer<? super V> evictionListener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of a cache must be at least 1, not " + capacity);
+        }
+        this.capacity = capacity;
+        this.evictionListener = evictionListener;
+    }
+
+    public V get(K key) {
+        Node<V> node = entries.get(key);
+        if (node == null) {
+            return null;
+        }
+        node.touch();
+        return node.value;
+    }
+
+    /**
+     * Returns the value of the key, creating it if there is none. The value is created without holding any lock, so
+     * two threads may create one at the same time, in which case one of them is kept and the other is handed to the
+     * eviction listener.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        Node<V> created = new Node<>(mappingFunction.apply(key));
+        Node<V> existing = entries.putIfAbsent(key, created);
+        if (existing != null) {
+            evictionListener.accept(created.value);
+            existing.touch();
+            return existing.value;
+        }
+        evictIfFull();
+        return created.value;
+    }
+
+    public V remove(K key) {
+        Node<V> node = entries.remove(key);
+        return node == null ? null : node.value;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Goes through the entries without counting as using them.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        entries.forEach((key, node) -> action.accept(key, node.value));
+    }
+
+    /**
+     * Evicts the entries that were not used within the given time.
+     *
+     * @return how many entries were evicted
+     */
+    public int evictIdle(long idleNanos) {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Map.Entry<K, Node<V>> entry : entries.entrySet()) {
+            if (now - entry.getValue().lastUsed > idleNanos && evict(entry)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts the least recently used entries until the rest weigh no more than the given weight, but always keeps the
+     * most recently used one, however much it weighs. Each entry is weighed once.
+     *
+     * @return the weight of the entries that are left
+     */
+    public long evictToWeight(ToLongFunction<? super V> weigher, long maxWeight) {
+        // as they were last used when this started, since they may be used again meanwhile
+        List<Weighed<K, V>> leastRecentlyUsedFirst = new ArrayList<>();
+        long totalWeight = 0;
+        for (Map.Entry<K, Node<V>> entry : entries.entrySet()) {
+            Weighed<K, V> weighed = new Weighed<>(entry, weigher.applyAsLong(entry.getValue().value));
+            leastRecentlyUsedFirst.add(weighed);
+            totalWeight += weighed.weight;
+        }
+        leastRecentlyUsedFirst.sort((a, b) -> Long.signum(a.lastUsed - b.lastUsed));
+
+        for (int i = 0; i < leastRecentlyUsedFirst.size() - 1 && totalWeight > maxWeight; i++) {
+            Weighed<K, V> weighed = leastRecentlyUsedFirst.get(i);
+            if (evict(weighed.entry)) {
+                totalWeight -= weighed.weight;
+            }
+        }
+        return totalWeight;
+    }
+
+    // unless another thread evicted it, or replaced it, first
+    private boolean evict(Map.Entry<K, Node<V>> entry) {
+        if (entries.remove(entry.getKey(), entry.getValue())) {
+            evictionListener.accept(entry.getValue().value);
+            return true;
+        }
+        return false;
+    }
+
+    private void evictIfFull() {
+        while (entries.size() > capacity) {
+            Map.Entry<K, Node<V>> eldest = sampleLeastRecentlyUsed();
+            if (eldest != null) {
+                evict(eldest);
+            }
+        }
+    }
+
+    // only adding to a full cache takes this lock
+    private synchronized Map.Entry<K, Node<V>> sampleLeastRecentlyUsed() {
+        Map.Entry<K, Node<V>> eldest = null;
+        int sampleSize = Math.min(SAMPLE_SIZE, entries.size());
+        boolean restarted = false;
+        for (int sampled = 0; sampled < sampleSize; sampled++) {
+            if (sampler == null || !sampler.hasNext()) {
+                if (restarted) {
+                    break;
+                }
+                sampler = entries.entrySet().iterator();
+                restarted = true;
+                if (!sampler.hasNext()) {
+                    break;
+                }
+            }
+            Map.Entry<K, Node<V>> entry = sampler.next();
+            if (eldest == null || entry.getValue().lastUsed - eldest.getValue().lastUsed < 0) {
+                eldest = entry;
+            }
+        }
+        return eldest;
+    }
+
+    private static final class Node<V> {
+
+        private final V value;
+
+        private volatile long lastUsed = System.nanoTime();
+
+        private Node(V value) {
+            this.value = value;
+        }
+
+        private void touch() {
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    private static final class Weighed<K, V> {
+
+        private final Map.Entry<K, Node<V>> entry;
+
+        private final long lastUsed;
+
+        private final long weight;
+
+        private Weighed(Map.Entry<K, Node<V>> entry, long weight) {
+            this.entry = entry;
+            this.lastUsed = entry.getValue().lastUsed;
+            this.weight = weight;
+        }
+    }
+}
@@ -16,89 +16,262 @@
 
 package cd.go.plugin.secret.filebased.util;
 
-import lombok.Getter;
-
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.security.DigestOutputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
+/**
+ * Detects changes to a file, as cheaply as possible.
+ * <p>
+ * A single stat of the file decides almost every check: a different inode, modification time, size or change time
+ * means the file changed, and identical ones mean it did not. The contents are only hashed when the file was modified
+ * so close to the previous check that another write in the same timestamp tick would go unnoticed (the same "racy"
+ * problem that git has with its index). Even then, files that identify their contents with a header (see
+ * {@link HeaderReader}) are decided by reading the header alone.
+ */
 public class FileStat {
 
-    private final File file;
+    /**
+     * What a call to {@link #changed(int)} was decided by.
+     */
+    public enum Tier {
+        /** the file was checked too recently to look at it again */
+        INTERVAL,
+        /** the attributes of the file were enough */
+        METADATA,
+        /** the attributes were ambiguous, but reading the header at the start of the file was enough */
+        HEADER,
+        /** the attributes were ambiguous, and the contents had to be hashed */
+        DIGEST
+    }
 
-    private long lastStatTime;
+    private static final Map<Tier, LongAdder> DECISIONS = new EnumMap<>(Tier.class);
+
+    static {
+        for (Tier tier : Tier.values()) {
+            DECISIONS.put(tier, new LongAdder());
+        }
+    }
+
+    private static final boolean UNIX_ATTRIBUTES = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private static final String UNIX_ATTRIBUTE_NAMES = "unix:dev,ino,isDirectory,lastModifiedTime,ctime,size";
+
+    private final File file;
 
-    private boolean exists;
+    private final HeaderReader headerReader;
 
-    private long lastModified;
+    private long lastStatTime;
 
-    private boolean directory;
+    private Attributes attributes;
 
-    private long length;
+    // only known when the file was racily modified the last time it was looked at
+    private byte[] digest;
 
-    private List<Byte> digest;
+    // the header of the contents that were last read, when it could be trusted to identify them
+    private Object header;
 
-    @Getter(lazy = true)
     // lazy initialize, because performance
-    private final MessageDigest messageDigest = createDigester();
+    private MessageDigest messageDigest;
 
     public FileStat(File file) {
+        this(file, null);
+    }
+
+    public FileStat(File file, HeaderReader headerReader) {
         this.file = file;
+        this.headerReader = headerReader;
     }
 
-    public boolean changed(int withinInterval) {
+    public synchronized boolean changed(int withinInterval) {
         if (System.currentTimeMillis() <= lastStatTime + withinInterval) {
-            return false;
+            return decidedBy(Tier.INTERVAL, false);
         }
-        lastStatTime = System.currentTimeMillis();
         // cache original values
-        final boolean origExists = exists;
-        final long origLastModified = lastModified;
-        final boolean origDirectory = directory;
-        final long origLength = length;
-        final List<Byte> origDigest = digest;
+        final Attributes origAttributes = attributes;
+        final long origStatTime = lastStatTime;
+        final byte[] origDigest = digest;
+        final Object origHeader = header;
 
         // refresh the values
-        refresh();
+        lastStatTime = System.currentTimeMillis();
+        attributes = readAttributes(file.toPath());
+        digest = null;
+        header = null;
+
+        if (origAttributes == null || !attributes.equals(origAttributes)) {
+            // whoever reads the changed file next records its digest, see read()
+            return decidedBy(Tier.METADATA, true);
+        }
+
+        if (!origAttributes.isRacilyModified(origStatTime)) {
+            digest = origDigest;
+            header = origHeader;
+            return decidedBy(Tier.METADATA, false);
+        }
+
+        if (origHeader != null) {
+            if (origHeader.equals(readHeader())) {
+                digest = origDigest;
+                header = origHeader;
+                return decidedBy(Tier.HEADER, false);
+            }
+            return decidedBy(Tier.HEADER, true);
+        }
+
+        digest = computeDigest();
+        return decidedBy(Tier.DIGEST, !MessageDigest.isEqual(digest, origDigest));
+    }
+
+    /**
+     * Reads the file, recording what was read as the state that later calls to {@link #changed(int)} compare against.
+     * The digest is computed from the same bytes that are handed to the reader, so the file is only read once.
+     */
+    public <T> T read(ContentReader<T> contentReader) throws IOException {
+        return read(contentReader, result -> null);
+    }
+
+    /**
+     * Like {@link #read(ContentReader)}, additionally recording the header of what was read.
+     *
+     * @param trustedHeader extracts the header from what was read, or returns {@code null} if it cannot be trusted to
+     *                      identify the contents (e.g. because they were edited without updating it)
+     */
+    public <T> T read(ContentReader<T> contentReader, Function<T, Object> trustedHeader) throws IOException {
+        final long statTime = System.currentTimeMillis();
+        final Attributes readAttributes = readAttributes(file.toPath());
+        final MessageDigest readDigest = createDigester();
+
+        T result;
+        try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), readDigest)) {
+            result = contentReader.read(in);
+            // the reader may stop early, but the digest must cover the whole file
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+
+        synchronized (this) {
+            lastStatTime = statTime;
+            attributes = readAttributes;
+            digest = readDigest.digest();
+            header = headerReader == null ? null : trustedHeader.apply(result);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #read(ContentReader, Function)}, but maps the file into memory instead of reading it, so that only
+     * the parts the reader touches are read.
+     */
+    public <T> T map(BufferReader<T> bufferReader, Function<T, Object> trustedHeader) throws IOException {
+        return open(channel -> bufferReader.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())), trustedHeader);
+    }
+
+    /**
+     * Like {@link #read(ContentReader, Function)}, but hands the reader the open file, so that it reads only what it
+     * needs. As they are only compared against when the file was racily modified, the header and digest are only
+     * recorded then, in which case the digest is computed by reading the file again.
+     */
+    public <T> T open(ChannelReader<T> channelReader, Function<T, Object> trustedHeader) throws IOException {
+        final long statTime = System.currentTimeMillis();
+        final Attributes openedAttributes = readAttributes(file.toPath());
 
-        // check if any values have changed
-        return exists != origExists ||
-                lastModified != origLastModified ||
-                directory != origDirectory ||
-                length != origLength ||
-                !digest.equals(origDigest);
+        T result;
+        byte[] openedDigest = null;
+        Object openedHeader = null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            result = channelReader.read(channel);
+            if (openedAttributes.isRacilyModified(statTime)) {
+                openedHeader = headerReader == null || result == null ? null : trustedHeader.apply(result);
+                if (openedHeader == null) {
+                    openedDigest = computeDigest(channel);
+                }
+            }
+        }
+
+        synchronized (this) {
+            lastStatTime = statTime;
+            attributes = openedAttributes;
+            digest = openedDigest;
+            header = openedHeader;
+        }
+        return result;
+    }
+
+    private static byte[] computeDigest(FileChannel channel) throws IOException {
+        MessageDigest digester = createDigester();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        int read;
+        for (long position = 0; (read = channel.read(buffer.clear(), position)) != -1; position += read) {
+            digester.update(buffer.flip());
+        }
+        return digester.digest();
     }
 
-    void refresh() {
-        exists = file.exists();
-        directory = exists && file.isDirectory();
-        lastModified = exists ? file.lastModified() : 0;
-        length = (exists && !directory) ? file.length() : 0;
-        digest = (exists && !directory) ? computeDigest() : Collections.emptyList();
+    synchronized void refresh() {
+        lastStatTime = System.currentTimeMillis();
+        attributes = readAttributes(file.toPath());
+        // keep something to compare with when the file might be written to again without its attributes changing
+        digest = attributes.isRacilyModified(lastStatTime) ? computeDigest() : null;
     }
 
-    private List<Byte> computeDigest() {
+    private byte[] computeDigest() {
+        if (!attributes.exists || attributes.directory) {
+            return new byte[0];
+        }
+
         MessageDigest messageDigest = getMessageDigest();
         messageDigest.reset();
-        try {
-            Files.copy(file.toPath(), new DigestOutputStream(OutputStream.nullOutputStream(), messageDigest));
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        } catch (NoSuchFileException e) {
+            // deleted since it was stat'ed, the next check will notice
+            return new byte[0];
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        return messageDigest.digest();
+    }
 
-        byte[] digest = messageDigest.digest();
-        return IntStream.range(0, digest == null ? 0 : digest.length)
-                .mapToObj( i -> Byte.valueOf(digest[i]))
-                .collect(Collectors.toList());
+    private Object readHeader() {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return headerReader.read(channel);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private MessageDigest getMessageDigest() {
+        if (messageDigest == null) {
+            messageDigest = createDigester();
+        }
+        return messageDigest;
     }
 
     private static MessageDigest createDigester() {
@@ -109,7 +282,137 @@ public class FileStat {
         }
     }
 
+    private static Attributes readAttributes(Path path) {
+        try {
+            if (UNIX_ATTRIBUTES) {
+                Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTE_NAMES);
+                return new Attributes(true,
+                        (Boolean) attributes.get("isDirectory"),
+                        Arrays.asList(attributes.get("dev"), attributes.get("ino")),
+                        toNanos((FileTime) attributes.get("lastModifiedTime")),
+                        toNanos((FileTime) attributes.get("ctime")),
+                        (Long) attributes.get("size"));
+            }
+
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Attributes(true,
+                    attributes.isDirectory(),
+                    attributes.fileKey(),
+                    toNanos(attributes.lastModifiedTime()),
+                    0,
+                    attributes.size());
+        } catch (NoSuchFileException e) {
+            return Attributes.MISSING;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long toNanos(FileTime fileTime) {
+        return fileTime == null ? 0 : fileTime.to(TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean decidedBy(Tier tier, boolean changed) {
+        DECISIONS.get(tier).increment();
+        return changed;
+    }
+
+    /**
+     * @return the number of checks decided by each tier, across all files
+     */
+    public static Map<Tier, Long> decisions() {
+        Map<Tier, Long> decisions = new EnumMap<>(Tier.class);
+        DECISIONS.forEach((tier, count) -> decisions.put(tier, count.sum()));
+        return decisions;
+    }
+
     public File getFile() {
         return file;
     }
+
+    public interface ContentReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    public interface BufferReader<T> {
+        T read(ByteBuffer buffer) throws IOException;
+    }
+
+    public interface ChannelReader<T> {
+        T read(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Reads whatever identifies the contents of a file from the start of it, without reading all of it.
+     */
+    public interface HeaderReader {
+        /**
+         * @return the header, or {@code null} if the file does not have one
+         */
+        Object read(FileChannel channel) throws IOException;
+    }
+
+    private static final class Attributes {
+
+        private static final Attributes MISSING = new Attributes(false, false, null, 0, 0, 0);
+
+        // file systems with a coarse (1 or 2 second) timestamp resolution only ever report whole seconds
+        private static final long COARSE_GRANULARITY = TimeUnit.SECONDS.toNanos(2);
+
+        // kernels tend to update timestamps from a clock that ticks every few milliseconds
+        private static final long FINE_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(50);
+
+        private final boolean exists;
+
+        private final boolean directory;
+
+        private final Object fileKey;
+
+        private final long lastModified;
+
+        private final long changeTime;
+
+        private final long length;
+
+        private Attributes(boolean exists, boolean directory, Object fileKey, long lastModified, long changeTime, long length) {
+            this.exists = exists;
+            this.directory = directory;
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.changeTime = changeTime;
+            this.length = length;
+        }
+
+        /**
+         * @return whether the file was modified so close to {@code statTime} that it could be modified again without
+         * its modification time changing
+         */
+        private boolean isRacilyModified(long statTime) {
+            if (!exists || directory) {
+                return false;
+            }
+            long granularity = lastModified % TimeUnit.SECONDS.toNanos(1) == 0 ? COARSE_GRANULARITY : FINE_GRANULARITY;
+            return lastModified + granularity >= TimeUnit.MILLISECONDS.toNanos(statTime);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Attributes that = (Attributes) o;
+
+            return exists == that.exists &&
+                    directory == that.directory &&
+                    lastModified == that.lastModified &&
+                    changeTime == that.changeTime &&
+                    length == that.length &&
+                    Objects.equals(fileKey, that.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(exists, directory, fileKey, lastModified, changeTime, length);
+        }
+    }
 }
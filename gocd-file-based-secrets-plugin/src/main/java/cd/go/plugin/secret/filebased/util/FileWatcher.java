@@ -0,0 +1,257 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.util;
+
+import com.thoughtworks.go.plugin.api.logging.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the parent directories of any number of files with a single {@link WatchService} and a single background
+ * thread, notifying a callback whenever something happens to a watched file.
+ * <p>
+ * Besides the file itself, the directory entries it is reached through are watched as well, so that replacing the file
+ * with an atomic rename, or swapping a symlink (like the {@code ..data} link that Kubernetes uses for mounted secrets
+ * and config maps) is noticed too.
+ * <p>
+ * Callbacks are only hints: when the watch service overflows and events are lost, every file in the affected directory
+ * is reported as changed, and once a directory can no longer be watched the registration becomes invalid, so callers
+ * should fall back to polling.
+ */
+public class FileWatcher implements Closeable {
+
+    private static final Logger LOG = Logger.getLoggerFor(FileWatcher.class);
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Set<Registration>> registrationsByKey = new ConcurrentHashMap<>();
+
+    private final Thread thread;
+
+    public FileWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::run, "file-based-secrets-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Start watching a file.
+     *
+     * @param file     the file to watch, it need not exist yet but its parent directory must
+     * @param onChange invoked from the watcher thread whenever the file may have changed
+     * @return a registration which must be cancelled once the caller is no longer interested in the file
+     */
+    public Registration watch(File file, Runnable onChange) throws IOException {
+        Registration registration = new Registration(file.toPath().toAbsolutePath().normalize(), onChange);
+        registration.register();
+        return registration;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Set<Registration> registrations = registrationsByKey.getOrDefault(key, Collections.emptySet());
+            Set<Registration> triggered = new LinkedHashSet<>();
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    LOG.debug("Lost file system events in " + key.watchable() + ", rechecking all files in it.");
+                    triggered.addAll(registrations);
+                    break;
+                }
+
+                Path name = (Path) event.context();
+                for (Registration registration : registrations) {
+                    if (registration.isAffectedBy(key, name)) {
+                        triggered.add(registration);
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                // the directory is gone, e.g. the old target of a swapped symlink; registrations re-resolve below
+                registrationsByKey.remove(key);
+                triggered.addAll(registrations);
+            }
+
+            for (Registration registration : triggered) {
+                registration.fire();
+            }
+        }
+    }
+
+    public class Registration {
+
+        private final Path file;
+
+        private final Runnable onChange;
+
+        // names within each watched directory that affect this file
+        private volatile Map<WatchKey, Set<Path>> watchedNames = Collections.emptyMap();
+
+        private volatile boolean valid = true;
+
+        private volatile boolean cancelled;
+
+        private Registration(Path file, Runnable onChange) {
+            this.file = file;
+            this.onChange = onChange;
+        }
+
+        /**
+         * @return {@code false} once events for this file can no longer be relied upon
+         */
+        public boolean isValid() {
+            return valid && !cancelled;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            unregister(Collections.emptySet());
+        }
+
+        private boolean isAffectedBy(WatchKey key, Path name) {
+            Set<Path> names = watchedNames.get(key);
+            return names != null && names.contains(name);
+        }
+
+        private void fire() {
+            if (cancelled) {
+                return;
+            }
+
+            // a symlink may now point elsewhere, so re-resolve what needs to be watched before notifying
+            if (valid) {
+                try {
+                    register();
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                } catch (IOException e) {
+                    LOG.debug("Can no longer watch " + file + ", falling back to polling.", e);
+                    valid = false;
+                    unregister(Collections.emptySet());
+                }
+            }
+
+            try {
+                onChange.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Error while handling change to " + file, e);
+            }
+        }
+
+        private synchronized void register() throws IOException {
+            Map<WatchKey, Set<Path>> names = new HashMap<>();
+            for (Map.Entry<Path, Set<Path>> entry : resolveWatchedEntries(file).entrySet()) {
+                // registering a directory that is already watched hands back the existing key
+                WatchKey key = entry.getKey().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                registrationsByKey.computeIfAbsent(key, k -> new CopyOnWriteArraySet<>()).add(this);
+                names.computeIfAbsent(key, k -> new HashSet<>()).addAll(entry.getValue());
+            }
+            unregister(names.keySet());
+            watchedNames = names;
+        }
+
+        private synchronized void unregister(Set<WatchKey> keep) {
+            for (WatchKey key : watchedNames.keySet()) {
+                if (keep.contains(key)) {
+                    continue;
+                }
+                registrationsByKey.computeIfPresent(key, (k, registrations) -> {
+                    registrations.remove(this);
+                    if (registrations.isEmpty()) {
+                        k.cancel();
+                        return null;
+                    }
+                    return registrations;
+                });
+            }
+        }
+    }
+
+    /**
+     * Computes every directory entry the file is reached through: the file itself, every symlink along the way and
+     * the real file at the end of it.
+     */
+    static Map<Path, Set<Path>> resolveWatchedEntries(Path file) {
+        Map<Path, Set<Path>> entries = new LinkedHashMap<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.add(file);
+
+        // guard against symlink loops
+        int remainingLinks = 40;
+
+        while (!pending.isEmpty()) {
+            Path path = pending.poll();
+            Path parent = path.getParent();
+            if (parent == null || path.getFileName() == null) {
+                continue;
+            }
+            entries.computeIfAbsent(parent, p -> new HashSet<>()).add(path.getFileName());
+
+            if (remainingLinks-- <= 0) {
+                continue;
+            }
+
+            // a symlink anywhere along the path (e.g. `..data/db.json`) is an entry of its own parent directory
+            Path resolvedParent = parent;
+            try {
+                resolvedParent = parent.toRealPath();
+            } catch (IOException ignore) {
+            }
+            Path prefix = parent.getRoot();
+            for (Path component : parent) {
+                prefix = prefix == null ? component : prefix.resolve(component);
+                if (Files.isSymbolicLink(prefix)) {
+                    entries.computeIfAbsent(prefix.getParent(), p -> new HashSet<>()).add(prefix.getFileName());
+                }
+            }
+
+            Path resolved = resolvedParent.resolve(path.getFileName());
+            if (Files.isSymbolicLink(resolved)) {
+                try {
+                    pending.add(resolvedParent.resolve(Files.readSymbolicLink(resolved)).normalize());
+                } catch (IOException ignore) {
+                }
+            } else if (!resolved.equals(path)) {
+                pending.add(resolved);
+            }
+        }
+        return entries;
+    }
+}
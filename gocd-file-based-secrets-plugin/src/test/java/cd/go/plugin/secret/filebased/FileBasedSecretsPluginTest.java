@@ -17,6 +17,7 @@
 package cd.go.plugin.secret.filebased;
 
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import cd.go.plugin.secret.filebased.model.LookupSecretRequest;
 import com.google.gson.Gson;
 import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
@@ -114,7 +115,30 @@ class FileBasedSecretsPluginTest {
         }
 
         @Test
-        void shouldBeErrorWhenSecretFileIsDirectory(@TempDir File testDir) throws UnhandledRequestTypeException, JSONException {
+        void shouldBeErrorWhenAnyOfSeveralSecretFilesDoesNotExist(@TempDir File testDir) throws UnhandledRequestTypeException, IOException, JSONException {
+            File secretFile = new File(testDir, "secret.db");
+            secretFile.createNewFile();
+            File noneExistingFile = new File(testDir, "none-existing-file");
+            DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest("secrets", "1.0", REQUEST_VALIDATE_CONFIG);
+            request.setRequestBody(new Gson().toJson(Collections.singletonMap(SECRETS_FILE_PATH_PROPERTY,
+                    secretFile.getAbsolutePath() + File.pathSeparator + noneExistingFile.getAbsolutePath())));
+
+            GoPluginApiResponse response = secretsPlugin.handle(request);
+
+            assertThat(response.responseCode()).isEqualTo(200);
+
+            String expected = "[\n" +
+                    "  {\n" +
+                    "    \"key\": \"SecretsFilePath\",\n" +
+                    "    \"message\": \"" + String.format("No secret config file at path '%s'.", noneExistingFile.getAbsolutePath()) + "\"\n" +
+                    "  }\n" +
+                    "]";
+
+            JSONAssert.assertEquals(expected, response.responseBody(), true);
+        }
+
+        @Test
+        void shouldBeErrorWhenSecretFileIsDirectory(@TempDir File testDir) throws UnhandledRequestTypeException, JSONException, IOException, GeneralSecurityException {
             File notAFile = new File(testDir, "this-is-dir");
             notAFile.mkdir();
             DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest("secrets", "1.0", REQUEST_VALIDATE_CONFIG);
@@ -127,11 +151,19 @@ class FileBasedSecretsPluginTest {
             String expected = "[\n" +
                     "  {\n" +
                     "    \"key\": \"SecretsFilePath\",\n" +
-                    "    \"message\": \"" + String.format("Secret config file path '%s' is not a normal file.", notAFile.getAbsolutePath()) + "\"\n" +
+                    "    \"message\": \"" + String.format("Secret config file path '%s' is not a normal file, or a directory with a '.secret_key' file.", notAFile.getAbsolutePath()) + "\"\n" +
                     "  }\n" +
                     "]";
 
             JSONAssert.assertEquals(expected, response.responseBody(), true);
+
+            // unless it is a directory of secrets
+            SecretsDirectory.init(notAFile);
+
+            response = secretsPlugin.handle(request);
+
+            assertThat(response.responseCode()).isEqualTo(200);
+            assertThat(response.responseBody()).isEqualTo("[]");
         }
     }
 
@@ -175,5 +207,30 @@ class FileBasedSecretsPluginTest {
             assertThat(response.responseCode()).isEqualTo(404);
             assertEquals("{\"message\":\"Secrets with keys [non-exiting-key] not found.\"}", response.responseBody(), true);
         }
+
+        @Test
+        void shouldLookUpSecretsInADirectoryOfSecrets(@TempDir File testDir) throws UnhandledRequestTypeException, JSONException, IOException, GeneralSecurityException {
+            File directory = new File(testDir, "secrets.d");
+            SecretsDirectory.init(directory)
+                    .addSecret("username", "foo")
+                    .addSecret("password", "bar");
+            DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest("secrets", "1.0", LOOKUP_SECRET_REQUEST_NAME);
+            LookupSecretRequest lookupSecretRequest = new LookupSecretRequest(directory.getAbsolutePath(), Arrays.asList("username", "password"));
+
+            request.setRequestBody(lookupSecretRequest.toJSON());
+            GoPluginApiResponse response = secretsPlugin.handle(request);
+
+            assertThat(response.responseCode()).isEqualTo(200);
+            assertEquals("[\n" +
+                    "  {\n" +
+                    "    \"key\": \"username\",\n" +
+                    "    \"value\": \"foo\"\n" +
+                    "  },\n" +
+                    "  {\n" +
+                    "    \"key\": \"password\",\n" +
+                    "    \"value\": \"bar\"\n" +
+                    "  }\n" +
+                    "]", response.responseBody(), true);
+        }
     }
 }
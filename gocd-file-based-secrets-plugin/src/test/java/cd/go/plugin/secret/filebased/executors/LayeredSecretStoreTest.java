@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.InMemorySecretStore;
+import cd.go.plugin.secret.filebased.db.SecretStore;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LayeredSecretStoreTest {
+
+    @Test
+    void shouldTakeEachSecretFromTheFirstLayerThatHasIt() throws IOException {
+        InMemorySecretStore overrides = new InMemorySecretStore().addSecret("password", "overridden");
+        InMemorySecretStore shared = new InMemorySecretStore().addSecret("username", "admin").addSecret("password", "p@ssw0rd");
+        List<SecretStore> layers = Arrays.asList(overrides, shared);
+
+        LayeredSecretStore secretStore = new LayeredSecretStore(2).refresh(layers);
+
+        assertThat(secretStore.getSecret("username")).isEqualTo("admin");
+        assertThat(secretStore.getSecret("password")).isEqualTo("overridden");
+        assertThat(secretStore.getSecret("foo")).isNull();
+        assertThat(secretStore.getAllSecretKeys()).containsExactlyInAnyOrder("username", "password");
+    }
+
+    @Test
+    void shouldIndexTheSecretsOfLayersThatChanged() throws IOException {
+        InMemorySecretStore overrides = new InMemorySecretStore().addSecret("password", "overridden");
+        InMemorySecretStore shared = new InMemorySecretStore().addSecret("username", "admin").addSecret("password", "p@ssw0rd");
+        List<SecretStore> layers = Arrays.asList(overrides, shared);
+        LayeredSecretStore secretStore = new LayeredSecretStore(2).refresh(layers);
+        long generation = secretStore.getGeneration();
+
+        assertThat(secretStore.refresh(layers).getGeneration()).isEqualTo(generation);
+
+        overrides.removeSecret("password").addSecret("username", "root");
+        shared.addSecret("token", "t0ken");
+        secretStore.refresh(layers);
+
+        assertThat(secretStore.getGeneration()).isGreaterThan(generation);
+        assertThat(secretStore.getSecret("username")).isEqualTo("root");
+        assertThat(secretStore.getSecret("password")).isEqualTo("p@ssw0rd");
+        assertThat(secretStore.getSecret("token")).isEqualTo("t0ken");
+
+        shared.removeSecret("password");
+        assertThat(secretStore.refresh(layers).getSecret("password")).isNull();
+        assertThat(secretStore.getAllSecretKeys()).containsExactlyInAnyOrder("username", "token");
+    }
+
+    @Test
+    void shouldIndexALayerThatWasReplacedByAnotherStoreOfTheSameGeneration() throws IOException {
+        InMemorySecretStore overrides = new InMemorySecretStore().addSecret("password", "overridden");
+        InMemorySecretStore shared = new InMemorySecretStore().addSecret("username", "admin").addSecret("password", "p@ssw0rd");
+        LayeredSecretStore secretStore = new LayeredSecretStore(2).refresh(Arrays.asList(overrides, shared));
+
+        InMemorySecretStore replaced = new InMemorySecretStore().addSecret("token", "t0ken");
+        assertThat(replaced.getGeneration()).isEqualTo(overrides.getGeneration());
+        secretStore.refresh(Arrays.asList(replaced, shared));
+
+        assertThat(secretStore.getSecret("password")).isEqualTo("p@ssw0rd");
+        assertThat(secretStore.getSecret("token")).isEqualTo("t0ken");
+        assertThat(secretStore.getAllSecretKeys()).containsExactlyInAnyOrder("username", "password", "token");
+    }
+}
@@ -17,6 +17,7 @@
 package cd.go.plugin.secret.filebased.executors;
 
 import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.db.SecretsDirectory;
 import cd.go.plugin.secret.filebased.model.LookupSecretRequest;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
@@ -75,6 +76,82 @@ class LookupSecretsRequestExecutorTest {
                 "]", response.responseBody(), true);
     }
 
+    @Test
+    void shouldLookupSecretsInTheShardsOfAShardedDatabase(@TempDir Path tempDir) throws GeneralSecurityException, IOException, JSONException {
+        File manifestFile = new File(tempDir.toFile(), "sharded.json");
+        SecretsDatabase manifest = SecretsDatabase.sharded(4);
+        for (int shard = 0; shard < 4; shard++) {
+            manifest.newShard().saveTo(manifest.shardFile(manifestFile, shard));
+        }
+        manifest.saveTo(manifestFile);
+        for (String name : Arrays.asList("username", "password")) {
+            File shardFile = manifest.shardFile(manifestFile, manifest.shardOf(name));
+            SecretsDatabase.readFrom(shardFile).addSecret(name, name + "-value").saveTo(shardFile);
+        }
+
+        GoPluginApiRequest request = mock(GoPluginApiRequest.class);
+        when(request.requestBody()).thenReturn(new LookupSecretRequest(manifestFile.getAbsolutePath(),
+                Arrays.asList("username", "password")).toJSON());
+
+        GoPluginApiResponse response = new LookupSecretsRequestExecutor().execute(request);
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        assertEquals("[{\"key\": \"username\", \"value\": \"username-value\"}, {\"key\": \"password\", \"value\": \"password-value\"}]", response.responseBody(), true);
+    }
+
+    @Test
+    void shouldLookupSecretsInADirectory(@TempDir Path tempDir) throws GeneralSecurityException, IOException, JSONException {
+        File directory = new File(tempDir.toFile(), "secrets");
+        SecretsDirectory.init(directory).addSecret("username", "foo").addSecret("password", "bar");
+
+        GoPluginApiRequest request = mock(GoPluginApiRequest.class);
+        when(request.requestBody()).thenReturn(new LookupSecretRequest(directory.getAbsolutePath(),
+                Arrays.asList("username", "password", "missing")).toJSON());
+
+        GoPluginApiResponse response = new LookupSecretsRequestExecutor().execute(request);
+
+        assertThat(response.responseCode()).isEqualTo(404);
+        assertEquals("{\"message\":\"Secrets with keys [missing] not found.\"}", response.responseBody(), true);
+
+        when(request.requestBody()).thenReturn(new LookupSecretRequest(directory.getAbsolutePath(),
+                Arrays.asList("username", "password")).toJSON());
+        response = new LookupSecretsRequestExecutor().execute(request);
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        assertEquals("[{\"key\": \"username\", \"value\": \"foo\"}, {\"key\": \"password\", \"value\": \"bar\"}]", response.responseBody(), true);
+    }
+
+    @Test
+    void shouldTakeEachSecretFromTheFirstOfSeveralFilesThatHasIt(@TempDir Path tempDir) throws GeneralSecurityException, IOException, JSONException {
+        File overridesFile = new File(tempDir.toFile(), "overrides.json");
+        new SecretsDatabase().addSecret("password", "overridden").saveTo(overridesFile);
+        String secretsFilePath = overridesFile.getAbsolutePath() + File.pathSeparator + databaseFile.getAbsolutePath();
+
+        GoPluginApiRequest request = mock(GoPluginApiRequest.class);
+        when(request.requestBody()).thenReturn(new LookupSecretRequest(secretsFilePath,
+                Arrays.asList("username", "password")).toJSON());
+
+        GoPluginApiResponse response = new LookupSecretsRequestExecutor().execute(request);
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        assertEquals("[{\"key\": \"username\", \"value\": \"foo\"}, {\"key\": \"password\", \"value\": \"overridden\"}]", response.responseBody(), true);
+    }
+
+    @Test
+    void shouldLookupSecretsInASingleFileWhosePathHasTheSeparatorInIt(@TempDir Path tempDir) throws GeneralSecurityException, IOException, JSONException {
+        File secretsFile = new File(tempDir.toFile(), "env1" + File.pathSeparator + "secrets.json");
+        new SecretsDatabase().addSecret("password", "bar").saveTo(secretsFile);
+
+        GoPluginApiRequest request = mock(GoPluginApiRequest.class);
+        when(request.requestBody()).thenReturn(new LookupSecretRequest(secretsFile.getAbsolutePath(),
+                Arrays.asList("password")).toJSON());
+
+        GoPluginApiResponse response = new LookupSecretsRequestExecutor().execute(request);
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        assertEquals("[{\"key\": \"password\", \"value\": \"bar\"}]", response.responseBody(), true);
+    }
+
     @Test
     void shouldReturnEmptyResponseWhenSecretsAreNotPresent() throws JSONException {
         GoPluginApiRequest request = mock(GoPluginApiRequest.class);
@@ -87,6 +164,19 @@ class LookupSecretsRequestExecutorTest {
         assertEquals("{\"message\":\"Secrets with keys [randomKey1, randomKey2] not found.\"}", response.responseBody(), true);
     }
 
+    @Test
+    void shouldReuseTheResponseWhenTheSameSecretsAreMissingAgain() {
+        GoPluginApiRequest request = mock(GoPluginApiRequest.class);
+        when(request.requestBody()).thenReturn(
+                new LookupSecretRequest(databaseFile.getAbsolutePath(), Arrays.asList("username", "misspelled")).toJSON());
+
+        GoPluginApiResponse first = new LookupSecretsRequestExecutor().execute(request);
+        GoPluginApiResponse second = new LookupSecretsRequestExecutor().execute(request);
+
+        assertThat(second.responseCode()).isEqualTo(404);
+        assertThat(second.responseBody()).isSameAs(first.responseBody());
+    }
+
     @Test
     void shouldErrorAsAMapWhenAnyExceptionOccurs() throws JSONException {
         GoPluginApiRequest goPluginApiRequest = mock(GoPluginApiRequest.class);
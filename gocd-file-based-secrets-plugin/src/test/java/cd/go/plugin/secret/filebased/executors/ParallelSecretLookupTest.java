@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.InMemorySecretStore;
+import cd.go.plugin.secret.filebased.db.SecretStore;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+
+class ParallelSecretLookupTest {
+
+    @Test
+    void shouldLookUpManySecretsAcrossThreadsInTheOrderTheyWereAskedFor() throws IOException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        SecretStore secretStore = recordingThreads(secrets(200), threads);
+        List<String> names = new ArrayList<>();
+        for (int i = 199; i >= 0; i -= 2) {
+            names.add("secret-" + i);
+            names.add("missing-" + i);
+        }
+
+        Map<String, String> secrets = new ParallelSecretLookup(10, 3).getSecrets(secretStore, names);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 199; i >= 0; i -= 2) {
+            expected.add("secret-" + i);
+        }
+        assertThat(new ArrayList<>(secrets.keySet())).isEqualTo(expected);
+        assertThat(secrets.get("secret-99")).isEqualTo("value-99");
+        assertThat(threads).contains(Thread.currentThread());
+        assertThat(threads.size()).isGreaterThan(1);
+    }
+
+    @Test
+    void shouldLookUpFewSecretsOnTheCallingThread() throws IOException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        SecretStore secretStore = recordingThreads(secrets(20), threads);
+
+        Map<String, String> secrets = new ParallelSecretLookup(10, 3).getSecrets(secretStore, Arrays.asList("secret-1", "secret-2"));
+
+        assertThat(secrets).containsEntry("secret-1", "value-1").containsEntry("secret-2", "value-2");
+        assertThat(threads).containsExactly(Thread.currentThread());
+    }
+
+    @Test
+    void shouldFailLikeTheSecretStoreDoes() {
+        SecretStore secretStore = new SecretStore() {
+            @Override
+            public String getSecret(String name) throws IOException {
+                throw new NoSuchFileException(name);
+            }
+
+            @Override
+            public Set<String> getAllSecretKeys() {
+                return Collections.emptySet();
+            }
+
+            @Override
+            public long getGeneration() {
+                return 0;
+            }
+        };
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add("secret-" + i);
+        }
+
+        assertThatCode(() -> new ParallelSecretLookup(10, 3).getSecrets(secretStore, names)).isInstanceOf(NoSuchFileException.class);
+    }
+
+    private static InMemorySecretStore secrets(int count) {
+        InMemorySecretStore secretStore = new InMemorySecretStore();
+        for (int i = 0; i < count; i++) {
+            secretStore.addSecret("secret-" + i, "value-" + i);
+        }
+        return secretStore;
+    }
+
+    private static SecretStore recordingThreads(SecretStore secretStore, Set<Thread> threads) {
+        return new SecretStore() {
+            @Override
+            public String getSecret(String name) throws IOException {
+                threads.add(Thread.currentThread());
+                try {
+                    // long enough for the others to get going
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return secretStore.getSecret(name);
+            }
+
+            @Override
+            public Set<String> getAllSecretKeys() throws IOException {
+                return secretStore.getAllSecretKeys();
+            }
+
+            @Override
+            public long getGeneration() {
+                return secretStore.getGeneration();
+            }
+        };
+    }
+}
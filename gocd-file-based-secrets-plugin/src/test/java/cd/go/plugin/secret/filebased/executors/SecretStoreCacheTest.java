@@ -0,0 +1,236 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.executors;
+
+import cd.go.plugin.secret.filebased.db.SecretStore;
+import cd.go.plugin.secret.filebased.db.SecretsDatabase;
+import cd.go.plugin.secret.filebased.executors.LookupSecretsRequestExecutor.CacheEntryFactory;
+import cd.go.plugin.secret.filebased.util.FileWatcher;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SecretStoreCacheTest {
+
+    private final List<Runnable> reloads = new ArrayList<>();
+
+    private final SecretStoreCache secretStoreCache = new SecretStoreCache(8, 0, 0, new CacheEntryFactory(null, false), reloads::add);
+
+    private File databaseFile;
+
+    private SecretsDatabase secretsDatabase;
+
+    @BeforeEach
+    void setup(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        databaseFile = new File(tempDir, "secrets.json");
+        secretsDatabase = new SecretsDatabase().addSecret("password", "p@ssw0rd");
+        secretsDatabase.saveTo(databaseFile);
+    }
+
+    @Test
+    void shouldKeepLookingUpTheSecretsReadBeforeUntilTheChangedFileIsReadAgain() throws GeneralSecurityException, IOException, InterruptedException {
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("p@ssw0rd");
+
+        secretsDatabase.addSecret("password", "changed").saveTo(databaseFile);
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("p@ssw0rd");
+
+        checkForChanges();
+        assertThat(reloads).hasSize(1);
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("p@ssw0rd");
+
+        reloads.remove(0).run();
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("changed");
+    }
+
+    @Test
+    void shouldReadTheFileOnceForChangesNoticedBeforeItIsReadAgain() throws GeneralSecurityException, IOException, InterruptedException {
+        secretStoreCache.get(databaseFile);
+
+        secretsDatabase.addSecret("password", "changed").saveTo(databaseFile);
+        checkForChanges();
+        secretsDatabase.addSecret("password", "changed again").saveTo(databaseFile);
+        checkForChanges();
+
+        assertThat(reloads).hasSize(1);
+        reloads.remove(0).run();
+        assertThat(reloads).isEmpty();
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("changed again");
+    }
+
+    @Test
+    void shouldKeepLookingUpTheSecretsReadBeforeWhenTheChangedFileCannotBeRead() throws IOException, InterruptedException {
+        secretStoreCache.get(databaseFile);
+
+        Files.writeString(databaseFile.toPath(), "{\"secret_key\": ", StandardCharsets.UTF_8);
+        checkForChanges();
+        reloads.remove(0).run();
+
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("p@ssw0rd");
+    }
+
+    @Test
+    void shouldDecryptAllTheSecretsOfAFileBeforeLookingThemUpWhenAskedTo() throws GeneralSecurityException, IOException, InterruptedException {
+        SecretsDatabase preDecrypted = (SecretsDatabase) secretStoreCache.get(databaseFile, true);
+        long size = preDecrypted.getEstimatedSize();
+        assertThat(preDecrypted.getSecret("password")).isEqualTo("p@ssw0rd");
+        assertThat(preDecrypted.getEstimatedSize()).isEqualTo(size);
+
+        // and again once the file is read again, even by lookups that do not ask for it
+        secretsDatabase.addSecret("password", "changed").saveTo(databaseFile);
+        checkForChanges();
+        reloads.remove(0).run();
+        SecretsDatabase reread = (SecretsDatabase) secretStoreCache.get(databaseFile);
+        size = reread.getEstimatedSize();
+        assertThat(reread.getSecret("password")).isEqualTo("changed");
+        assertThat(reread.getEstimatedSize()).isEqualTo(size);
+    }
+
+    @Test
+    void shouldDecryptAllTheSecretsAlreadyReadInTheBackgroundWhenFirstAskedTo() throws IOException {
+        SecretsDatabase lazilyDecrypted = (SecretsDatabase) secretStoreCache.get(databaseFile);
+        long size = lazilyDecrypted.getEstimatedSize();
+
+        secretStoreCache.get(databaseFile, true);
+        secretStoreCache.get(databaseFile, true);
+        assertThat(reloads).hasSize(1);
+        reloads.remove(0).run();
+
+        assertThat(lazilyDecrypted.getEstimatedSize()).isGreaterThan(size);
+    }
+
+    @Test
+    void shouldEvictTheLeastRecentlyUsedFilesOverTheMemoryBudget(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File otherFile = new File(tempDir, "other.json");
+        new SecretsDatabase().addSecret("username", "admin").saveTo(otherFile);
+        SecretStoreCache secretStoreCache = new SecretStoreCache(8, 1, 0, new CacheEntryFactory(null, false), reloads::add);
+        secretStoreCache.get(databaseFile).getSecret("password");
+        secretStoreCache.get(otherFile).getSecret("username");
+
+        secretStoreCache.evict();
+
+        assertThat(secretStoreCache.getStatistics().getEntries()).isEqualTo(1);
+        assertThat(secretStoreCache.getStatistics().getEvictedForSize()).isEqualTo(1);
+        assertThat(secretStoreCache.getStatistics().getEstimatedSize()).isGreaterThan(0);
+        assertThat(secretStoreCache.get(databaseFile).getSecret("password")).isEqualTo("p@ssw0rd");
+    }
+
+    @Test
+    void shouldEvictFilesThatWereNotLookedUpForAWhile() throws IOException, InterruptedException {
+        SecretStoreCache secretStoreCache = new SecretStoreCache(8, 0, 10, new CacheEntryFactory(null, false), reloads::add);
+        secretStoreCache.get(databaseFile);
+        Thread.sleep(50);
+
+        secretStoreCache.evict();
+
+        assertThat(secretStoreCache.getStatistics().getEntries()).isEqualTo(0);
+        assertThat(secretStoreCache.getStatistics().getExpired()).isEqualTo(1);
+        assertThat(secretStoreCache.getStatistics().getEstimatedSize()).isEqualTo(0);
+    }
+
+    @Test
+    void shouldReadAFileOnceHoweverItIsSpelled(@TempDir File tempDir) throws IOException {
+        File link = new File(tempDir, "link.json");
+        Files.createSymbolicLink(link.toPath(), databaseFile.toPath());
+
+        SecretStore secretStore = secretStoreCache.get(databaseFile);
+
+        assertThat(secretStoreCache.get(new File(databaseFile.getParentFile(), "./" + databaseFile.getName()))).isSameAs(secretStore);
+        assertThat(secretStoreCache.get(link)).isSameAs(secretStore);
+        assertThat(secretStoreCache.getStatistics().getEntries()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldFollowALinkToAnotherFileOnceItIsCheckedAgain(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File otherFile = new File(tempDir, "other.json");
+        new SecretsDatabase().addSecret("password", "other").saveTo(otherFile);
+        File link = new File(tempDir, "link.json");
+        Files.createSymbolicLink(link.toPath(), databaseFile.toPath());
+        assertThat(secretStoreCache.get(link).getSecret("password")).isEqualTo("p@ssw0rd");
+
+        Files.delete(link.toPath());
+        Files.createSymbolicLink(link.toPath(), otherFile.toPath());
+        assertThat(secretStoreCache.get(link).getSecret("password")).isEqualTo("p@ssw0rd");
+
+        secretStoreCache.checkRealFiles();
+        assertThat(secretStoreCache.get(link).getSecret("password")).isEqualTo("other");
+    }
+
+    @Test
+    void shouldFollowASwappedDataDirectoryAsSoonAsItIsSwappedWhenWatchingFiles(@TempDir Path tempDir) throws Exception {
+        // the layout used by kubernetes for mounted secrets
+        new SecretsDatabase().addSecret("password", "v1").saveTo(Files.createDirectory(tempDir.resolve("..v1")).resolve("secrets.json").toFile());
+        Files.createSymbolicLink(tempDir.resolve("..data"), Paths.get("..v1"));
+        File link = Files.createSymbolicLink(tempDir.resolve("secrets.json"), Paths.get("..data/secrets.json")).toFile();
+
+        try (FileWatcher fileWatcher = new FileWatcher()) {
+            SecretStoreCache secretStoreCache = new SecretStoreCache(8, 0, 0, new CacheEntryFactory(fileWatcher, false), reloads::add);
+            assertThat(secretStoreCache.get(link).getSecret("password")).isEqualTo("v1");
+
+            new SecretsDatabase().addSecret("password", "v2").saveTo(Files.createDirectory(tempDir.resolve("..v2")).resolve("secrets.json").toFile());
+            Files.move(Files.createSymbolicLink(tempDir.resolve("..data_tmp"), Paths.get("..v2")), tempDir.resolve("..data"), ATOMIC_MOVE);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!"v2".equals(secretStoreCache.get(link).getSecret("password")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(secretStoreCache.get(link).getSecret("password")).isEqualTo("v2");
+            // without the file it led to before
+            assertThat(secretStoreCache.getStatistics().getEntries()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void shouldTellWhetherAShardedDatabaseChangedWithoutReadingItsShards(@TempDir File tempDir) throws GeneralSecurityException, IOException {
+        File manifestFile = new File(tempDir, "sharded.json");
+        SecretsDatabase manifest = SecretsDatabase.sharded(4);
+        for (int shard = 0; shard < 4; shard++) {
+            manifest.newShard().saveTo(manifest.shardFile(manifestFile, shard));
+        }
+        manifest.saveTo(manifestFile);
+        File shardFile = manifest.shardFile(manifestFile, manifest.shardOf("password"));
+        SecretsDatabase.readFrom(shardFile).addSecret("password", "p@ssw0rd").saveTo(shardFile);
+
+        SecretStore secretStore = secretStoreCache.get(manifestFile);
+        long generation = secretStore.getGeneration();
+
+        assertThat(secretStoreCache.getStatistics().getEntries()).isEqualTo(1);
+        assertThat(secretStoreCache.get(manifestFile)).isSameAs(secretStore);
+
+        assertThat(secretStore.getSecret("password")).isEqualTo("p@ssw0rd");
+        assertThat(secretStoreCache.getStatistics().getEntries()).isEqualTo(2);
+        assertThat(secretStore.getGeneration()).isGreaterThan(generation);
+    }
+
+    // changes made within the same millisecond as the previous check are only noticed after it
+    private void checkForChanges() throws InterruptedException {
+        Thread.sleep(5);
+        secretStoreCache.checkForChanges();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConcurrentLRUCacheTest {
+
+    @Test
+    void shouldHoldAsManyEntriesAsItsCapacity() {
+        List<String> evicted = new ArrayList<>();
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(3, evicted::add);
+
+        for (int key = 0; key < 3; key++) {
+            cache.computeIfAbsent(key, String::valueOf);
+        }
+        assertThat(cache.size()).isEqualTo(3);
+        assertThat(evicted).isEmpty();
+
+        cache.computeIfAbsent(3, String::valueOf);
+        assertThat(cache.size()).isEqualTo(3);
+        assertThat(evicted).containsExactly("0");
+    }
+
+    @Test
+    void shouldEvictTheLeastRecentlyUsedEntry() {
+        List<String> evicted = new ArrayList<>();
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(2, evicted::add);
+        cache.computeIfAbsent(0, String::valueOf);
+        cache.computeIfAbsent(1, String::valueOf);
+
+        assertThat(cache.get(0)).isEqualTo("0");
+        cache.computeIfAbsent(2, String::valueOf);
+
+        assertThat(evicted).containsExactly("1");
+        assertThat(cache.get(1)).isNull();
+        assertThat(cache.get(0)).isEqualTo("0");
+        assertThat(cache.get(2)).isEqualTo("2");
+    }
+
+    @Test
+    void shouldKeepRecentlyUsedEntriesOfACacheLargerThanTheSample() {
+        List<String> evicted = new ArrayList<>();
+        int capacity = ConcurrentLRUCache.SAMPLE_SIZE * 8;
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(capacity, evicted::add);
+        for (int key = 0; key < capacity; key++) {
+            cache.computeIfAbsent(key, String::valueOf);
+        }
+
+        for (int key = capacity; key < capacity * 3; key++) {
+            assertThat(cache.get(0)).isEqualTo("0");
+            cache.computeIfAbsent(key, String::valueOf);
+            assertThat(cache.size()).isEqualTo(capacity);
+        }
+
+        assertThat(evicted).hasSize(capacity * 2).doesNotContain("0");
+    }
+
+    @Test
+    void shouldOnlyCreateValuesThatAreAbsent() {
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(2);
+        cache.computeIfAbsent(0, String::valueOf);
+
+        assertThat(cache.computeIfAbsent(0, key -> "other")).isEqualTo("0");
+        assertThat(cache.remove(0)).isEqualTo("0");
+        assertThat(cache.computeIfAbsent(0, key -> "other")).isEqualTo("other");
+    }
+
+    @Test
+    void shouldEvictTheLeastRecentlyUsedEntriesUntilTheRestWeighLittleEnough() {
+        List<String> evicted = new ArrayList<>();
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(8, evicted::add);
+        cache.computeIfAbsent(100, String::valueOf);
+        cache.computeIfAbsent(20, String::valueOf);
+        cache.computeIfAbsent(3, String::valueOf);
+        cache.get(100);
+
+        assertThat(cache.evictToWeight(Integer::parseInt, 130)).isEqualTo(123);
+        assertThat(evicted).isEmpty();
+
+        assertThat(cache.evictToWeight(Integer::parseInt, 110)).isEqualTo(103);
+        assertThat(evicted).containsExactly("20");
+
+        // the most recently used one stays, however much it weighs
+        assertThat(cache.evictToWeight(Integer::parseInt, 0)).isEqualTo(100);
+        assertThat(evicted).containsExactly("20", "3");
+        assertThat(cache.get(100)).isEqualTo("100");
+    }
+
+    @Test
+    void shouldEvictEntriesThatWereNotUsedForAWhile() throws InterruptedException {
+        List<String> evicted = new ArrayList<>();
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(8, evicted::add);
+        cache.computeIfAbsent(0, String::valueOf);
+        cache.computeIfAbsent(1, String::valueOf);
+        Thread.sleep(50);
+        cache.get(1);
+
+        assertThat(cache.evictIdle(TimeUnit.MILLISECONDS.toNanos(25))).isEqualTo(1);
+        assertThat(evicted).containsExactly("0");
+        assertThat(cache.get(1)).isEqualTo("1");
+    }
+
+    @Test
+    void shouldNotAllowACacheThatCannotHoldAnything() {
+        assertThatThrownBy(() -> new ConcurrentLRUCache<>(0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
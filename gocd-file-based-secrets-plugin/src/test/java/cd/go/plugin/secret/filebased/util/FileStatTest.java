@@ -22,7 +22,13 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.UUID;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -73,5 +79,172 @@ class FileStatTest {
             Thread.sleep(100);
             assertThat(fileStat.changed(110)).isFalse();
         }
+
+        @Test
+        void shouldDecideByMetadataAloneWhenFileWasNotModifiedRecently(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+            assertThat(file.setLastModified(System.currentTimeMillis() - 60_000)).isTrue();
+
+            FileStat fileStat = new FileStat(file);
+            fileStat.refresh();
+            Thread.sleep(5);
+
+            Map<FileStat.Tier, Long> before = FileStat.decisions();
+            assertThat(fileStat.changed(0)).isFalse();
+            Map<FileStat.Tier, Long> after = FileStat.decisions();
+
+            assertThat(after.get(FileStat.Tier.METADATA)).isGreaterThan(before.get(FileStat.Tier.METADATA));
+            assertThat(after.get(FileStat.Tier.DIGEST)).isEqualTo(before.get(FileStat.Tier.DIGEST));
+        }
+
+        @Test
+        void shouldHashContentsWhenFileWasModifiedJustBeforeItWasChecked(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            fileStat.refresh();
+            Thread.sleep(5);
+
+            Map<FileStat.Tier, Long> before = FileStat.decisions();
+            assertThat(fileStat.changed(0)).isFalse();
+            Map<FileStat.Tier, Long> after = FileStat.decisions();
+
+            assertThat(after.get(FileStat.Tier.DIGEST)).isGreaterThan(before.get(FileStat.Tier.DIGEST));
+        }
+
+        @Test
+        void shouldReturnTrueIfFileIsReplaced(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+            long lastModified = file.lastModified();
+
+            FileStat fileStat = new FileStat(file);
+            fileStat.refresh();
+
+            File replacement = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(replacement.toPath(), "bar", UTF_8);
+            assertThat(replacement.setLastModified(lastModified)).isTrue();
+            Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            Thread.sleep(5);
+            assertThat(fileStat.changed(0)).isTrue();
+        }
+    }
+
+    @Nested
+    class Read_method {
+
+        @Test
+        void shouldReadContentsAndRememberWhatWasRead(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            String contents = fileStat.read(in -> new String(in.readAllBytes(), UTF_8));
+            assertThat(contents).isEqualTo("foo");
+
+            Thread.sleep(5);
+            assertThat(fileStat.changed(0)).isFalse();
+        }
+
+        @Test
+        void shouldDigestTheWholeFileEvenIfReaderStopsEarly(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            int firstByte = fileStat.read(InputStream::read);
+            assertThat(firstByte).isEqualTo((int) 'f');
+
+            Thread.sleep(5);
+            assertThat(fileStat.changed(0)).isFalse();
+        }
+
+        @Test
+        void shouldReportChangesMadeAfterTheFileWasRead(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            fileStat.read(InputStream::readAllBytes);
+
+            Thread.sleep(5);
+            Files.writeString(file.toPath(), "bar", UTF_8);
+            assertThat(fileStat.changed(0)).isTrue();
+        }
+
+        @Test
+        void shouldDecideByHeaderInsteadOfHashingContents(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "1\nfoo", UTF_8);
+
+            FileStat fileStat = new FileStat(file, channel -> {
+                ByteBuffer buffer = ByteBuffer.allocate(1);
+                channel.read(buffer, 0);
+                return buffer.get(0);
+            });
+            fileStat.read(InputStream::readAllBytes, contents -> contents[0]);
+            Thread.sleep(5);
+
+            Map<FileStat.Tier, Long> before = FileStat.decisions();
+            assertThat(fileStat.changed(0)).isFalse();
+            Map<FileStat.Tier, Long> after = FileStat.decisions();
+
+            assertThat(after.get(FileStat.Tier.HEADER)).isGreaterThan(before.get(FileStat.Tier.HEADER));
+            assertThat(after.get(FileStat.Tier.DIGEST)).isEqualTo(before.get(FileStat.Tier.DIGEST));
+        }
+    }
+
+    @Nested
+    class Map_method {
+
+        @Test
+        void shouldMapContentsAndRememberWhatWasMapped(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            String contents = fileStat.map(buffer -> UTF_8.decode(buffer).toString(), result -> null);
+            assertThat(contents).isEqualTo("foo");
+
+            Thread.sleep(5);
+            assertThat(fileStat.changed(0)).isFalse();
+        }
+
+        @Test
+        void shouldReportChangesMadeAfterTheFileWasMapped(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            fileStat.map(buffer -> buffer.get(0), result -> null);
+
+            Thread.sleep(5);
+            Files.writeString(file.toPath(), "bar", UTF_8);
+            assertThat(fileStat.changed(0)).isTrue();
+        }
+    }
+
+    @Nested
+    class Open_method {
+
+        @Test
+        void shouldRememberWhatWasOpenedWithoutReadingAllOfIt(@TempDir File tempDir) throws IOException, InterruptedException {
+            File file = new File(tempDir, UUID.randomUUID().toString());
+            Files.writeString(file.toPath(), "foo", UTF_8);
+
+            FileStat fileStat = new FileStat(file);
+            Long size = fileStat.open(FileChannel::size, result -> null);
+            assertThat(size).isEqualTo(3);
+
+            Thread.sleep(5);
+            assertThat(fileStat.changed(0)).isFalse();
+
+            Thread.sleep(5);
+            Files.writeString(file.toPath(), "bar", UTF_8, StandardOpenOption.APPEND);
+            assertThat(fileStat.changed(0)).isTrue();
+        }
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.plugin.secret.filebased.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileWatcherTest {
+
+    private FileWatcher fileWatcher;
+
+    private final Semaphore changes = new Semaphore(0);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fileWatcher = new FileWatcher();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileWatcher.close();
+    }
+
+    @Test
+    void shouldNotifyWhenFileIsModified(@TempDir Path tempDir) throws Exception {
+        Path file = Files.writeString(tempDir.resolve("db.json"), "foo");
+        fileWatcher.watch(file.toFile(), changes::release);
+
+        Files.writeString(file, "bar");
+
+        assertThat(changes.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void shouldNotifyWhenFileIsReplacedByAtomicRename(@TempDir Path tempDir) throws Exception {
+        Path file = Files.writeString(tempDir.resolve("db.json"), "foo");
+        fileWatcher.watch(file.toFile(), changes::release);
+
+        Files.move(Files.writeString(tempDir.resolve("db.json.tmp"), "bar"), file, ATOMIC_MOVE);
+
+        assertThat(changes.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void shouldNotNotifyWhenOtherFilesInTheDirectoryChange(@TempDir Path tempDir) throws Exception {
+        Path file = Files.writeString(tempDir.resolve("db.json"), "foo");
+        fileWatcher.watch(file.toFile(), changes::release);
+
+        Files.writeString(tempDir.resolve("other.json"), "bar");
+
+        assertThat(changes.tryAcquire(1, TimeUnit.SECONDS)).isFalse();
+    }
+
+    @Test
+    void shouldNotifyWhenSymlinkedDataDirectoryIsSwapped(@TempDir Path tempDir) throws Exception {
+        // the layout used by kubernetes for mounted secrets
+        Files.writeString(Files.createDirectory(tempDir.resolve("..v1")).resolve("db.json"), "foo");
+        Files.createSymbolicLink(tempDir.resolve("..data"), Paths.get("..v1"));
+        Path file = Files.createSymbolicLink(tempDir.resolve("db.json"), Paths.get("..data/db.json"));
+
+        FileWatcher.Registration registration = fileWatcher.watch(file.toFile(), changes::release);
+
+        Files.writeString(Files.createDirectory(tempDir.resolve("..v2")).resolve("db.json"), "bar");
+        Files.move(Files.createSymbolicLink(tempDir.resolve("..data_tmp"), Paths.get("..v2")), tempDir.resolve("..data"), ATOMIC_MOVE);
+
+        assertThat(changes.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(registration.isValid()).isTrue();
+
+        // and keeps following the new target
+        changes.drainPermits();
+        Files.writeString(tempDir.resolve("..v2").resolve("db.json"), "baz");
+        assertThat(changes.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void shouldStopNotifyingOnceCancelled(@TempDir Path tempDir) throws Exception {
+        Path file = Files.writeString(tempDir.resolve("db.json"), "foo");
+        FileWatcher.Registration registration = fileWatcher.watch(file.toFile(), changes::release);
+
+        registration.cancel();
+        Files.writeString(file, "bar");
+
+        assertThat(changes.tryAcquire(1, TimeUnit.SECONDS)).isFalse();
+        assertThat(registration.isValid()).isFalse();
+    }
+}